@@ -0,0 +1,169 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.io.EncodedFrame;
+import uk.co.maxtingle.communication.common.io.Framing;
+import uk.co.maxtingle.communication.common.io.IConnection;
+import uk.co.maxtingle.communication.common.io.IWritabilityListener;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Helpers shared by the benchmarks
+ */
+final class BenchmarkSupport
+{
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Stops anything being logged, logging every message
+     * would swamp whatever is being measured
+     */
+    static void quiet() {
+        Debugger.setLevel(LogLevel.OFF);
+    }
+
+    /**
+     * Finds a port on loopback that nothing is listening on
+     *
+     * @return The port
+     */
+    static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+        try {
+            return socket.getLocalPort();
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Creates a socket connected to another over loopback,
+     * the other end is closed and never read
+     *
+     * @return The connected socket
+     */
+    static Socket connectedSocket() throws IOException {
+        ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+
+        try {
+            Socket socket = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            listener.accept();
+            return socket;
+        }
+        finally {
+            listener.close();
+        }
+    }
+
+    /**
+     * Creates a request with a couple of params
+     *
+     * @return The message
+     */
+    static Message smallMessage() {
+        return new Message("getUser", new Object[]{"bob", 42});
+    }
+
+    /**
+     * Creates a message with a few KB of nested params
+     *
+     * @return The message
+     */
+    static Message largeMessage() {
+        Object[] rows = new Object[50];
+
+        for(int i = 0; i < rows.length; i++) {
+            Map<String, Object> row = new HashMap<String, Object>();
+            row.put("id", i);
+            row.put("name", "user number " + i);
+            row.put("active", i % 2 == 0);
+            row.put("score", i * 1.5);
+            rows[i] = row;
+        }
+
+        return new Message("syncUsers", rows);
+    }
+
+    /**
+     * A connection that throws away everything written to
+     * it, for measuring what happens before the socket
+     */
+    static class DiscardConnection implements IConnection
+    {
+        private volatile boolean _open = true;
+
+        @Override
+        public void write(@NotNull byte[] payload, @Nullable Framing switchTo, @Nullable CompletableFuture<Void> written) {
+            if(written != null) {
+                written.complete(null);
+            }
+        }
+
+        @Override
+        public void write(@NotNull EncodedFrame frame, @Nullable CompletableFuture<Void> written) {
+            if(written != null) {
+                written.complete(null);
+            }
+        }
+
+        @Override
+        public void setFlushPolicy(int flushBufferSize, long flushDelayMicros) {
+        }
+
+        @Override
+        public void setWriteBufferWaterMarks(int low, int high) {
+        }
+
+        @Override
+        public void setWritabilityListener(@Nullable IWritabilityListener listener) {
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public long getPendingBytes() {
+            return 0;
+        }
+
+        @Override
+        public Framing getOutboundFraming() {
+            return Framing.NEWLINE;
+        }
+
+        @Override
+        public Framing getInboundFraming() {
+            return Framing.NEWLINE;
+        }
+
+        @Override
+        public void setInboundFraming(@NotNull Framing framing) {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return this._open;
+        }
+
+        @Override
+        public void close() {
+            this._open = false;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.maxtingle.communication.common.AuthState;
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.server.ExecutionMode;
+import uk.co.maxtingle.communication.server.Server;
+import uk.co.maxtingle.communication.server.ServerClient;
+import uk.co.maxtingle.communication.server.ServerOptions;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server.broadcast to different numbers of clients. The clients
+ * are plain sockets read and thrown away by a single thread so
+ * they cost as little as possible, and each broadcast waits for
+ * any client past its high water mark to drain like a well behaved
+ * producer would, so the queues don't grow without bound and the
+ * time includes getting the bytes onto the sockets
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark
+{
+    @Param({"1", "100", "1000"})
+    public int clients;
+
+    @Param({"512"})
+    public int broadcastChunkSize;
+
+    private Server                   _server;
+    private Selector                 _selector;
+    private Thread                   _reader;
+    private ArrayList<SocketChannel> _channels;
+    private Message                  _message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.quiet();
+
+        ServerOptions options = new ServerOptions();
+        options.port = BenchmarkSupport.freePort();
+        options.executionMode = ExecutionMode.SELECTOR;
+        options.broadcastChunkSize = this.broadcastChunkSize;
+        options.registerMBean = false;
+
+        this._server = new Server(options);
+        this._server.start();
+
+        this._selector = Selector.open();
+        this._channels = new ArrayList<SocketChannel>(this.clients);
+
+        for(int i = 0; i < this.clients; i++) {
+            SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), options.port));
+            channel.configureBlocking(false);
+            channel.register(this._selector, SelectionKey.OP_READ);
+            this._channels.add(channel);
+        }
+
+        this._reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run() {
+                BroadcastBenchmark.this._discardReads();
+            }
+        }, "Broadcast reader");
+        this._reader.setDaemon(true);
+        this._reader.start();
+
+        while(this._server.getRegistry().size(AuthState.ACCEPTED) < this.clients) {
+            Thread.sleep(10);
+        }
+
+        this._message = new Message("news", new Object[]{"something happened", 42});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this._server.stop();
+        this._reader.interrupt();
+        this._selector.close();
+
+        for(SocketChannel channel : this._channels) {
+            channel.close();
+        }
+    }
+
+    @Benchmark
+    public int broadcast() throws Exception {
+        int sent = this._server.broadcast(this._message);
+
+        for(ServerClient client : this._server.getRegistry().getInState(AuthState.ACCEPTED)) {
+            while(!client.isWritable() && client.isReady()) {
+                Thread.yield();
+            }
+        }
+
+        return sent;
+    }
+
+    private void _discardReads() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+
+        try {
+            while(!Thread.currentThread().isInterrupted()) {
+                this._selector.select();
+
+                Iterator<SelectionKey> keys = this._selector.selectedKeys().iterator();
+                while(keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    buffer.clear();
+                    if(((SocketChannel) key.channel()).read(buffer) < 0) {
+                        key.cancel();
+                    }
+                }
+            }
+        }
+        catch(Exception e) {
+            //the selector was closed, the trial is over
+        }
+    }
+}
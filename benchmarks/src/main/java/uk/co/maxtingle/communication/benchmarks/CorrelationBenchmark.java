@@ -0,0 +1,95 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.IdStrategy;
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.metrics.MetricsRegistry;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a message that is kept waiting for a reply and then
+ * handling the reply, so the message is looked up, removed and has
+ * its reply listeners fired. Writes go nowhere so only the encoding
+ * and the bookkeeping either side of the socket are measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CorrelationBenchmark
+{
+    @Param({"COUNTER", "RANDOM"})
+    public IdStrategy idStrategy;
+
+    /** messages already waiting for replies that are never answered, so the lookups aren't in an empty table */
+    @Param({"0", "1000"})
+    public int outstanding;
+
+    @Param({"false", "true"})
+    public boolean recordMetrics;
+
+    private BaseClient _client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.quiet();
+
+        this._client = new DiscardingClient();
+        this._client.idStrategy = this.idStrategy;
+        this._client.replyTimeoutMillis = 0; //nothing should expire part way through
+        this._client.metricsRegistry = this.recordMetrics ? new MetricsRegistry() : null;
+        this._client.connect(BenchmarkSupport.connectedSocket());
+        ((DiscardingClient) this._client).discardWrites();
+
+        for(int i = 0; i < this.outstanding; i++) {
+            this._client.sendMessage(new Message("unanswered"));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this._client.disconnect();
+    }
+
+    @Benchmark
+    public Message sendAndHandleReply() throws Exception {
+        Message request = new Message("getUser", new Object[]{"bob"});
+        this._client.sendMessage(request);
+
+        SerializableMessage reply = new SerializableMessage();
+        reply.request = "user";
+        reply.success = true;
+        reply.responseTo = request.getId();
+
+        Message received = Message.fromSerializable(reply, this._client);
+        this._client.handleMessage(received);
+        return received.getResponseTo();
+    }
+
+    /**
+     * A client whose writes are thrown away once connected
+     */
+    static class DiscardingClient extends BaseClient
+    {
+        void discardWrites() {
+            this._connection = new BenchmarkSupport.DiscardConnection(); //the socket stays open so the client is still ready
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.maxtingle.communication.common.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message.generateId, which takes 130 random bits from the
+ * shared SecureRandom, alone and checked against the ids already
+ * waiting for replies. Also run with several threads as every
+ * client's sending threads share the one SecureRandom
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class IdGenerationBenchmark
+{
+    private final Map<String, Message> _used = new HashMap<String, Message>();
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.quiet();
+
+        for(int i = 0; i < 10000; i++) {
+            Message message = new Message("used");
+            message.generateId(null);
+            this._used.put(message.getId(), message);
+        }
+    }
+
+    @Benchmark
+    public String generateId() throws Exception {
+        Message message = new Message("ping");
+        message.generateId(null);
+        return message.getId();
+    }
+
+    @Benchmark
+    public String generateIdAvoidingUsed() throws Exception {
+        Message message = new Message("ping");
+        message.generateId(this._used);
+        return message.getId();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String generateIdContended() throws Exception {
+        Message message = new Message("ping");
+        message.generateId(null);
+        return message.getId();
+    }
+}
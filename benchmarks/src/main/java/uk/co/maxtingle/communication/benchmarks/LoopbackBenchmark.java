@@ -0,0 +1,104 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.events.MessageReceived;
+import uk.co.maxtingle.communication.server.ExecutionMode;
+import uk.co.maxtingle.communication.server.Server;
+import uk.co.maxtingle.communication.server.ServerOptions;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A full round trip over loopback, the client sends a message
+ * with sendMessage, the server echoes it back and the client
+ * reads the reply with getMessage and handles it, under each
+ * of the server's execution modes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class LoopbackBenchmark
+{
+    @Param({"SELECTOR", "THREAD_PER_CONNECTION"})
+    public ExecutionMode executionMode;
+
+    @Param({"small", "large"})
+    public String size;
+
+    private Server     _server;
+    private BaseClient _client;
+    private Object[]   _params;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        BenchmarkSupport.quiet();
+
+        ServerOptions options = new ServerOptions();
+        options.port = BenchmarkSupport.freePort();
+        options.executionMode = this.executionMode;
+        options.registerMBean = false;
+
+        this._server = new Server(options);
+        this._server.onMessageReceived(new MessageReceived()
+        {
+            @Override
+            public void onMessageReceived(BaseClient client, Message message) throws Exception {
+                message.respond(new Message(true, message.params));
+            }
+        });
+        this._server.start();
+
+        this._client = new BlockingClient();
+        this._client.tcpNoDelay = true;
+        this._client.connect(new Socket(InetAddress.getLoopbackAddress(), options.port));
+        this._client.getMessage(); //the server's greeting, no auth is used so it's __AUTHENTICATED__
+
+        this._params = "large".equals(this.size) ? BenchmarkSupport.largeMessage().params : BenchmarkSupport.smallMessage().params;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        this._client.disconnect();
+        this._server.stop();
+    }
+
+    @Benchmark
+    public Message roundTrip() throws Exception {
+        this._client.sendMessage(new Message("echo", this._params));
+
+        Message reply = this._client.getMessage();
+        while(ServerOptions.HEART_BEAT.equals(reply.request)) {
+            reply = this._client.getMessage(); //the server beats its heart if the connection sits idle for a minute
+        }
+
+        this._client.handleMessage(reply);
+        return reply;
+    }
+
+    /**
+     * A client with no reply listener thread, replies are
+     * read by the benchmark thread itself
+     */
+    static class BlockingClient extends BaseClient
+    {
+    }
+}
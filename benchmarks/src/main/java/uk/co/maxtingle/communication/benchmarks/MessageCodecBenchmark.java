@@ -0,0 +1,67 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.codec.BinaryCodec;
+import uk.co.maxtingle.communication.common.codec.ICodec;
+import uk.co.maxtingle.communication.common.codec.JsonCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding a single message with each codec,
+ * as the client does when sending and receiving
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageCodecBenchmark
+{
+    /** small is a request with a couple of params, large has a few KB of nested params */
+    @Param({"small", "large"})
+    public String size;
+
+    @Param({JsonCodec.NAME, BinaryCodec.NAME})
+    public String codec;
+
+    private Message             _message;
+    private SerializableMessage _serializable;
+    private ICodec              _codec;
+    private byte[]              _encoded;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.quiet();
+
+        this._message = "large".equals(this.size) ? BenchmarkSupport.largeMessage() : BenchmarkSupport.smallMessage();
+        this._message.generateId(null);
+        this._serializable = new SerializableMessage(this._message);
+        this._codec = BinaryCodec.NAME.equals(this.codec) ? new BinaryCodec() : new JsonCodec();
+        this._encoded = this._codec.encode(this._serializable);
+    }
+
+    @Benchmark
+    public byte[] encode() throws Exception {
+        return this._codec.encode(new SerializableMessage(this._message));
+    }
+
+    @Benchmark
+    public SerializableMessage decode() throws Exception {
+        return this._codec.decode(ByteBuffer.wrap(this._encoded));
+    }
+}
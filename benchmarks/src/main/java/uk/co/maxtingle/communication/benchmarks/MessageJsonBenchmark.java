@@ -0,0 +1,55 @@
+package uk.co.maxtingle.communication.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.maxtingle.communication.common.Message;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message.toString and Message.fromJson, the JSON
+ * conversions the library's users call directly
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MessageJsonBenchmark
+{
+    /** small is a request with a couple of params, large has a few KB of nested params */
+    @Param({"small", "large"})
+    public String size;
+
+    private Message _message;
+    private String  _json;
+
+    @Setup
+    public void setUp() throws Exception {
+        BenchmarkSupport.quiet();
+
+        this._message = "large".equals(this.size) ? BenchmarkSupport.largeMessage() : BenchmarkSupport.smallMessage();
+        this._message.generateId(null);
+        this._json = this._message.toString();
+    }
+
+    @Benchmark
+    public String messageToString() {
+        return this._message.toString();
+    }
+
+    @Benchmark
+    public Message messageFromJson() {
+        return Message.fromJson(this._json, null);
+    }
+}
@@ -1,14 +1,29 @@
 package uk.co.maxtingle.communication.client;
 
-import com.sun.istack.internal.NotNull;
 import uk.co.maxtingle.communication.common.AuthState;
 import uk.co.maxtingle.communication.common.BaseClient;
 import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.MessageRouter;
+import uk.co.maxtingle.communication.common.Threads;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.codec.ICodec;
+import uk.co.maxtingle.communication.common.codec.JsonCodec;
+import uk.co.maxtingle.communication.common.events.MessageReceived;
 import uk.co.maxtingle.communication.common.exception.AuthException;
+import uk.co.maxtingle.communication.common.io.ChannelConnection;
+import uk.co.maxtingle.communication.common.io.EventLoopGroup;
+import uk.co.maxtingle.communication.common.io.Framing;
+import uk.co.maxtingle.communication.common.io.IConnectionListener;
 import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+import uk.co.maxtingle.communication.metrics.MetricsRegistry;
 import uk.co.maxtingle.communication.server.ServerOptions;
 
+import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -19,10 +34,58 @@ import java.util.Map;
  */
 public class Client extends BaseClient
 {
-    private Thread  _heartThread;
+    /* Routes the messages received until the client is authenticated */
+    private static final MessageRouter _authRouter = new MessageRouter();
+
+    static {
+        Client._authRouter.handle(ServerOptions.REQUEST_MAGIC, new MessageReceived()
+        {
+            @Override
+            public void onMessageReceived(@NotNull BaseClient client, @NotNull Message msg) throws Exception {
+                ((Client) client)._sendMagic(msg);
+            }
+        });
+        Client._authRouter.handle(ServerOptions.REQUEST_CREDENTIALS, new MessageReceived()
+        {
+            @Override
+            public void onMessageReceived(@NotNull BaseClient client, @NotNull Message msg) throws Exception {
+                ((Client) client)._sendCredentials(msg);
+            }
+        });
+        Client._authRouter.handle(ServerOptions.ACCEPTED_AUTH, new MessageReceived()
+        {
+            @Override
+            public void onMessageReceived(@NotNull BaseClient client, @NotNull Message msg) throws Exception {
+                client.setAuthState(AuthState.ACCEPTED);
+            }
+        });
+    }
+
     private Thread  _replyListener;
     private boolean _listeningForReplies;
 
+    /**
+     * The event loops to read the client's replies on instead
+     * of a reply listener thread of its own, so thousands of
+     * clients only need as many threads as the group has loops.
+     * Listeners are then fired on the loop thread so must not
+     * block. Must be set before connecting, null uses a thread
+     */
+    public EventLoopGroup eventLoopGroup = null;
+
+    /**
+     * Whether or not to switch to length prefixed framing
+     * when the server offers it, so messages are read by
+     * their length rather than scanned for a newline
+     */
+    public boolean lengthFraming = true;
+
+    /**
+     * The codec to switch to if the server offers it along
+     * with length prefixed framing, JSON is used otherwise
+     */
+    public ICodec codec = new JsonCodec();
+
     //auth details
     private String _magic;
     private String _username;
@@ -34,7 +97,7 @@ public class Client extends BaseClient
      * up extra options or listeners, using the connect method
      */
     public Client() {
-
+        this.metricsRegistry = MetricsRegistry.getClientRegistry();
     }
 
     /**
@@ -93,10 +156,33 @@ public class Client extends BaseClient
         this._username = username;
         this._password = password;
         this._magic = sendMagic;
+        this.metricsRegistry = MetricsRegistry.getClientRegistry();
 
         this.connect(socket);
     }
 
+    /**
+     * Creates a new client and connects to the address
+     * through one of the loops of the group, then contacts
+     * the server immediately with the authentication
+     * information the server asks for
+     *
+     * @param address   The address of the server
+     * @param group     The event loops to read replies on, null reads them on a thread of its own
+     * @param sendMagic The magic to send to the server if it requests it
+     * @param username  The username to send to the server on auth request
+     * @param password  The password associated with the username
+     */
+    public Client(@NotNull SocketAddress address, EventLoopGroup group, String sendMagic, String username, String password) throws Exception {
+        this._username = username;
+        this._password = password;
+        this._magic = sendMagic;
+        this.metricsRegistry = MetricsRegistry.getClientRegistry();
+        this.eventLoopGroup = group;
+
+        this.connect(address);
+    }
+
     /**
      * Gets whether or not the reply listener is currently running
      *
@@ -110,70 +196,107 @@ public class Client extends BaseClient
      * Associates a socket with the client and
      * sets all the socket options and sets up
      * all the reader / writers. Also starts
-     * the reply listener and heart of the client
+     * the reply listener of the client, or with an
+     * eventLoopGroup attaches the socket's channel to one
+     * of its loops, for which the socket must have come
+     * from a SocketChannel
      *
      * @param socket The socket to bind to
      */
     @Override
     public void connect(@NotNull Socket socket) throws Exception {
+        if(this.eventLoopGroup != null) {
+            if(socket.getChannel() == null) {
+                throw new IOException("Clients using an event loop group need a socket opened from a SocketChannel, see connect(SocketAddress)");
+            }
+
+            this.connect(new ChannelConnection(socket.getChannel(), this.eventLoopGroup.next(), this.maxFrameLength));
+            return;
+        }
+
         super.connect(socket);
         this._listenForReplies(); //the server handles its own replies all on one thread not one thread per client
-        this._startHeart();
     }
 
     /**
-     * "Closes down" the client, shuts down all the readers, writers
-     * and the bound socket then calls all the disconnect listeners
+     * Opens a connection to the server, attached to one of the
+     * loops of the eventLoopGroup if there is one and otherwise
+     * read by a reply listener thread
+     *
+     * @param address The address of the server
      */
-    @Override
-    public void disconnect() {
-        if (this._replyListener != null && this._replyListener.isAlive()) {
-            this._replyListener.interrupt();
-            this._replyListener = null;
+    public void connect(@NotNull SocketAddress address) throws Exception {
+        if(this.eventLoopGroup == null) {
+            Socket socket = new Socket();
+            socket.connect(address);
+            this.connect(socket);
+            return;
         }
 
-        if (this._heartThread != null && this._heartThread.isAlive()) {
-            this._heartThread.interrupt();
-            this._heartThread = null;
-        }
+        SocketChannel channel = SocketChannel.open(address);
 
-        super.disconnect();
+        try {
+            this.connect(new ChannelConnection(channel, this.eventLoopGroup.next(), this.maxFrameLength));
+        }
+        catch(Exception e) {
+            channel.close();
+            throw e;
+        }
     }
 
-    protected void _startHeart() {
-        if(this._heartThread != null || !this.isReady()) {
-            return;
-        }
+    /**
+     * Associates a non-blocking connection with the client
+     * and starts reading replies on the connection's loop
+     *
+     * @param connection The connection to bind to
+     */
+    @Override
+    public void connect(@NotNull ChannelConnection connection) throws Exception {
+        super.connect(connection);
 
-        this._heartThread = new Thread(new Runnable()
+        this._listeningForReplies = true;
+        connection.open(new IConnectionListener()
         {
             @Override
-            public void run() {
+            public void onFrame(@NotNull ByteBuffer frame) throws Exception {
                 try {
-                    Thread.sleep(ServerOptions.HEART_BMP); //will have only just connected, no need to beat the heart straight away
+                    Client.this._handleReply(Client.this.parseMessage(frame));
                 }
-                catch(Exception e) {
-                    if(!Client.this.isStopped()) {
-                        Debugger.log(Client.this._getDebuggerCategory(), "Failed to skip first beat " + e.getMessage());
-                    }
+                catch(AuthException e) {
+                    Client.this.disconnect();
+                    Debugger.log(Client.this._getDebuggerCategory(), e);
                 }
+            }
 
-                while(Client.this.isReady()) {
-                    try {
-                        Client.this.sendMessage(new Message(ServerOptions.HEART_BEAT));
-                        Thread.sleep(ServerOptions.HEART_BMP);
-                    }
-                    catch(Exception e) {
-                        if(!Client.this.isStopped()) {
-                            Debugger.log(Client.this._getDebuggerCategory(), "Heart beat failed, client died: " + e.getMessage());
-                            Client.this.disconnect();
-                        }
-                    }
+            @Override
+            public void onClosed(Exception cause) {
+                Client.this._listeningForReplies = false;
+
+                if(cause != null && !Client.this.isStopped()) {
+                    Debugger.log(LogLevel.WARN, Client.this._getDebuggerCategory(), "Failed to read reply from server ", cause);
                 }
+
+                Client.this.disconnect();
             }
         });
-        this._heartThread.setName("Client heart");
-        this._heartThread.start();
+    }
+
+    /**
+     * "Closes down" the client, shuts down all the readers, writers
+     * and the bound socket then calls all the disconnect listeners
+     */
+    @Override
+    public void disconnect() {
+        if (this._replyListener != null && this._replyListener.isAlive()) {
+            this._replyListener.interrupt();
+            this._replyListener = null;
+        }
+
+        if(this._connection instanceof ChannelConnection) {
+            this._listeningForReplies = false; //the loop is told nothing of a local close
+        }
+
+        super.disconnect();
     }
 
     protected void _listenForReplies() {
@@ -182,7 +305,7 @@ public class Client extends BaseClient
         }
 
         this._listeningForReplies = true;
-        this._replyListener = new Thread(new Runnable()
+        this._replyListener = Threads.create("Reply listener", new Runnable()
         {
             @Override
             public void run() {
@@ -190,67 +313,105 @@ public class Client extends BaseClient
 
                 try {
                     while (isReady()) {
-                        if (!Client.this.isMessageWaiting()) {
-                            continue;
-                        }
-
-                        Message message = Client.this.getMessage();
-                        if(ServerOptions.HEART_BEAT.equals(message.request)) {
-                            continue; //just a heartbeat message, ignore it
-                        }
-
-                        /* Handle the message */
-                        if(Client.this.getAuthState() != AuthState.ACCEPTED) {
-                            Client.this._handleAuth(message);
-                        }
-                        else {
-                            Client.this.handleMessage(message);
-                        }
+                        Client.this._handleReply(Client.this.getMessage()); //blocks until a message arrives or the socket is closed
                     }
                 }
                 catch(AuthException e) {
                     disconnect();
-                    Debugger.log(Client.this._getDebuggerCategory(), e.toString());
+                    Debugger.log(Client.this._getDebuggerCategory(), e);
                 }
                 catch(Exception e) {
-                    disconnect();
-                    Debugger.log(Client.this._getDebuggerCategory(), "Failed to read reply from server socket " + e.toString());
+                    if(!Client.this.isStopped()) { //closing the socket is what wakes the read up on disconnect
+                        disconnect();
+                        Debugger.log(LogLevel.WARN, Client.this._getDebuggerCategory(), "Failed to read reply from server socket ", e);
+                    }
                 }
 
                 Client.this._listeningForReplies = false;
             }
-        });
-        this._replyListener.setName("Reply listener");
+        }, this.useVirtualThreads);
         this._replyListener.start();
     }
 
-    protected void _handleAuth(Message message) throws Exception {
-        //handling special server commands
-        if (ServerOptions.REQUEST_MAGIC.equals(message.request)) { //sending magic
-            if (Client.this._magic == null || Client.this._magic.trim().equals("")) {
-                throw new Exception("Server requested magic but no magic to reply with");
-            }
+    protected void _handleReply(Message message) throws Exception {
+        if(ServerOptions.HEART_BEAT.equals(message.request)) {
+            return; //just a heartbeat message, ignore it
+        }
+        else if(ServerOptions.UPGRADE.equals(message.request) && Boolean.TRUE.equals(message.success)) {
+            message.loadParams(); //the codec agreed on is in them
+            this._upgraded(message);
+            return;
+        }
+
+        this._requestUpgrade(message);
 
-            Client.this.setAuthState(AuthState.AWAITING_MAGIC);
-            message.respond(new Message(ServerOptions.SEND_MAGIC, new Object[]{_magic}));
+        /* Handle the message */
+        if(this.getAuthState() != AuthState.ACCEPTED) {
+            this._handleAuth(message);
         }
-        else if (ServerOptions.REQUEST_CREDENTIALS.equals(message.request)) { //sending credentials
-            if (Client.this._username == null || Client.this._password == null || Client.this._username.trim().equals("")) {
-                throw new Exception("Server requested credentials but no credentials to reply with");
-            }
+        else {
+            this.handleMessage(message);
+        }
+    }
+
+    protected void _requestUpgrade(Message message) throws Exception {
+        if(!this.lengthFraming || message.getUpgrades() == null || this._connection.getOutboundFraming() != Framing.NEWLINE) {
+            return;
+        }
+
+        boolean lengthOffered = false;
+        boolean codecOffered = false;
+
+        for(String upgrade : message.getUpgrades()) {
+            lengthOffered |= Framing.LENGTH_PREFIXED.getToken().equals(upgrade);
+            codecOffered |= this.codec != null && !JsonCodec.NAME.equals(upgrade) && this.codec.getName().equals(upgrade);
+        }
+
+        if(!lengthOffered) {
+            return;
+        }
+
+        Object[] params = codecOffered ? new Object[]{Framing.LENGTH_PREFIXED.getToken(), this.codec.getName()} : new Object[]{Framing.LENGTH_PREFIXED.getToken()};
+        this._sendAndSwitch(null, new Message(ServerOptions.UPGRADE, params), Framing.LENGTH_PREFIXED);
+    }
 
-            Client.this.setAuthState(AuthState.AWAITING_CREDENTIALS);
+    protected void _upgraded(Message ack) {
+        this._connection.setInboundFraming(Framing.LENGTH_PREFIXED); //everything after the ack is length prefixed
 
-            Map<String, String> authParams = new HashMap<String, String>();
-            authParams.put("username", Client.this._username);
-            authParams.put("password", Client.this._password);
-            message.respond(new Message(ServerOptions.SEND_CREDENTIALS, new Object[]{authParams}));
+        if(ack.params != null && ack.params.length == 2 && this.codec != null && this.codec.getName().equals(ack.params[1])) {
+            this._setCodec(this.codec);
         }
-        else if (ServerOptions.ACCEPTED_AUTH.equals(message.request)) {
-            setAuthState(AuthState.ACCEPTED);
+    }
+
+    protected void _handleAuth(Message message) throws Exception {
+        if(Client._authRouter.route(this, message)) { //handling special server commands
+            return;
         }
-        else if (message.success != null && !message.success && getAuthState() != AuthState.ACCEPTED) { //not authed and reply from server
-            throw new AuthException("Authentication failed: " + message.request);
+
+        if(message.success != null && !message.success && this.getAuthState() != AuthState.ACCEPTED) { //not authed and reply from server
+            throw new AuthException("Authentication failed: " + message.request); //the params are never decoded
         }
     }
+
+    private void _sendMagic(Message message) throws Exception {
+        if (this._magic == null || this._magic.trim().equals("")) {
+            throw new Exception("Server requested magic but no magic to reply with");
+        }
+
+        this.setAuthState(AuthState.AWAITING_MAGIC);
+        message.respond(new Message(ServerOptions.SEND_MAGIC, new Object[]{this._magic}));
+    }
+
+    private void _sendCredentials(Message message) throws Exception {
+        if (this._username == null || this._password == null || this._username.trim().equals("")) {
+            throw new Exception("Server requested credentials but no credentials to reply with");
+        }
+
+        this.setAuthState(AuthState.AWAITING_CREDENTIALS);
+
+        Map<String, String> authParams = new HashMap<String, String>();
+        authParams.put("username", this._username);
+        authParams.put("password", this._password);
+        message.respond(new Message(ServerOptions.SEND_CREDENTIALS, new Object[]{authParams}));
+    }
 }
@@ -1,19 +1,41 @@
 package uk.co.maxtingle.communication.common;
 
-import com.google.gson.JsonSyntaxException;
-import com.sun.istack.internal.NotNull;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.codec.ICodec;
+import uk.co.maxtingle.communication.common.codec.JsonCodec;
+import uk.co.maxtingle.communication.common.codec.ParamSchemas;
 import uk.co.maxtingle.communication.common.events.AuthStateChanged;
 import uk.co.maxtingle.communication.common.events.DisconnectListener;
 import uk.co.maxtingle.communication.common.events.MessageReceived;
+import uk.co.maxtingle.communication.common.events.WritabilityChanged;
 import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+import uk.co.maxtingle.communication.common.io.ChannelConnection;
+import uk.co.maxtingle.communication.common.io.EncodedFrame;
+import uk.co.maxtingle.communication.common.io.FrameDecoder;
+import uk.co.maxtingle.communication.common.io.Framing;
+import uk.co.maxtingle.communication.common.io.IConnection;
+import uk.co.maxtingle.communication.common.io.IWritabilityListener;
+import uk.co.maxtingle.communication.common.io.OutboundQueue;
+import uk.co.maxtingle.communication.common.io.StreamConnection;
 import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+import uk.co.maxtingle.communication.metrics.ConnectionMetrics;
+import uk.co.maxtingle.communication.metrics.MetricsRegistry;
 import uk.co.maxtingle.communication.server.ServerOptions;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 /**
  * A base class for the Client that connects
@@ -25,19 +47,30 @@ import java.util.HashMap;
  */
 public abstract class BaseClient
 {
-    protected Socket             _socket;
-    protected OutputStreamWriter _writer;
-    protected InputStream        _inputStream;
-    protected BufferedReader     _reader;
+    private static final JsonCodec _jsonCodec = new JsonCodec();
 
-    protected boolean _closed = false;
+    private static final Map<String, EncodedFrame> _heartbeatFrames = new ConcurrentHashMap<String, EncodedFrame>(); //by codec name
+
+    private final    AtomicLong                  _idCounter        = new AtomicLong();
+    private final    Map<String, PendingRequest> _pendingRequests  = new ConcurrentHashMap<String, PendingRequest>();
+    private volatile CorrelationTable            _sentMessages     = new SequenceCorrelationTable(this._idCounter); //replaced on connect
+    private volatile MessageHistory              _receivedMessages = new MessageHistory(0, 0); //replaced on connect
+    private volatile ConnectionMetrics           _metrics;
+    private volatile long                        _lastActivity;
+    private volatile HashedWheelTimer.Timeout    _heartbeat;
+
+    protected volatile Socket      _socket;
+    protected          IConnection _connection;
+    protected volatile ICodec      _codec = BaseClient._jsonCodec; //JSON until both ends agree on something else
+
+    protected final AtomicBoolean _closed = new AtomicBoolean(false); //disconnect can be called from several threads at once
 
     /* Client event handlers and tracking */
     protected ArrayList<DisconnectListener> _disconnectListeners      = new ArrayList<DisconnectListener>();
     protected ArrayList<AuthStateChanged>   _authStateListeners       = new ArrayList<AuthStateChanged>();
     protected ArrayList<MessageReceived>    _messageReceivedListeners = new ArrayList<MessageReceived>();
-    protected HashMap<String, Message>      _receivedMessages         = new HashMap<String, Message>();
-    protected HashMap<String, Message>      _sentMessages             = new HashMap<String, Message>();
+    protected ArrayList<WritabilityChanged> _writabilityListeners     = new ArrayList<WritabilityChanged>();
+    protected MessageRouter                 _router                   = new MessageRouter();
     protected AuthState                     _authState                = AuthState.CONNECTED;
 
     /* Client settings */
@@ -56,10 +89,112 @@ public abstract class BaseClient
      */
     public transient boolean keepMessages = true; //can disable this for memory usage but doing so will mean manual replies needed
 
+    /**
+     * How ids are generated for the messages sent, a counter
+     * unless the other end needs random ids. Must be set before connecting
+     */
+    public IdStrategy idStrategy = IdStrategy.COUNTER;
+
+    /**
+     * The number of received messages to keep for getRecivedMessages
+     * and getReceivedMessage, the oldest are dropped once this many
+     * have been received. 0 keeps none. Must be set before connecting
+     */
+    public int receivedHistorySize = 512;
+
+    /**
+     * How long in milliseconds to keep received messages for,
+     * 0 or less keeps them until they are pushed out by newer
+     * ones. Must be set before connecting
+     */
+    public long receivedHistoryMillis = 0;
+
+    /**
+     * The most sent messages kept waiting for replies at
+     * once, what happens past this is set by replyOverflowPolicy.
+     * Heartbeats and the other reserved requests are never kept
+     */
+    public int maxAwaitingReply = 10000;
+
+    /**
+     * How long in milliseconds a sent message is kept waiting for
+     * a reply, a reply after this is handled as if it wasn't a reply.
+     * 0 or less keeps messages until they are replied to
+     */
+    public long replyTimeoutMillis = 5 * 60 * 1000;
+
+    /**
+     * What to do when sending a message while maxAwaitingReply
+     * messages are already waiting for replies
+     */
+    public ReplyOverflowPolicy replyOverflowPolicy = ReplyOverflowPolicy.EVICT_OLDEST;
+
+    /**
+     * Whether or not the reply listener and the threads writing
+     * to a blocking socket should be virtual threads rather than
+     * platform threads, only used if the JVM supports virtual
+     * threads. Without them writes are made by the thread sending
+     * unless another is already writing. Note that virtual threads
+     * do not keep the JVM alive. Must be set before connecting
+     */
+    public boolean useVirtualThreads = false;
+
+    /**
+     * The types the params of each request received are decoded
+     * as, see ParamSchemas. Server side clients share the one on
+     * the ServerOptions
+     */
+    public ParamSchemas paramSchemas = new ParamSchemas();
+
+    /**
+     * The largest message in bytes that will be accepted
+     * from the server / client before the connection is
+     * dropped, must be set before connecting
+     */
+    public int maxFrameLength = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+
+    /**
+     * The number of bytes waiting to be written that causes
+     * them to be flushed straight away, must be set before connecting
+     */
+    public int flushBufferSize = IConnection.DEFAULT_FLUSH_BUFFER_SIZE;
+
+    /**
+     * The longest in microseconds a message waits to be flushed
+     * so that more messages can go in the same write, 0 flushes
+     * as soon as nothing else is being written. Must be set before connecting
+     */
+    public long flushDelayMicros = 0;
+
+    /**
+     * Whether to disable Nagle's algorithm on the socket so small
+     * writes are sent immediately, null leaves the OS default.
+     * Must be set before connecting
+     */
+    public Boolean tcpNoDelay = null;
+
+    /**
+     * The bytes waiting to be written at which the client stops
+     * being writable, see isWritable. Must be set before connecting
+     */
+    public int writeBufferHighWaterMark = OutboundQueue.DEFAULT_HIGH_WATER_MARK;
+
+    /**
+     * The bytes waiting to be written at which the client becomes
+     * writable again. Must be set before connecting
+     */
+    public int writeBufferLowWaterMark = OutboundQueue.DEFAULT_LOW_WATER_MARK;
+
+    /**
+     * The registry the client's metrics are recorded to, see
+     * getMetrics. null records none. Must be set before connecting
+     */
+    public MetricsRegistry metricsRegistry = null;
+
     /**
      * Associates a socket with the client and
      * sets all the socket options and sets up
-     * all the reader / writers
+     * the connection to read and write through
      *
      * @param socket The socket to bind to
      */
@@ -70,41 +205,111 @@ public abstract class BaseClient
 
         this._socket = socket;
         this._socket.setKeepAlive(true);
-        this._inputStream = this._socket.getInputStream();
-        this._writer = new OutputStreamWriter(this._socket.getOutputStream());
-        this._reader = new BufferedReader(new InputStreamReader(this._inputStream));
+        this._connection = new StreamConnection(socket, this.maxFrameLength, this.useVirtualThreads);
+        this._configureConnection();
     }
 
     /**
-     * Gets all the messages the server has sent to this client / this client has received
+     * Associates a non-blocking connection with the client,
+     * messages will be written through the connection and
+     * read by whatever event loop is driving it rather
+     * than with getMessage
      *
-     * @return The received messages
+     * @param connection The connection to bind to
+     */
+    public void connect(@NotNull ChannelConnection connection) throws Exception {
+        if(this._socket != null) {
+            throw new Exception("Already connected");
+        }
+
+        this._connection = connection;
+        this._socket = connection.getChannel().socket();
+        this._socket.setKeepAlive(true);
+        this._configureConnection();
+    }
+
+    private void _configureConnection() throws IOException {
+        this._sentMessages = CorrelationTable.create(this.idStrategy, this._idCounter, this._pendingRequests);
+        this._receivedMessages = new MessageHistory(this.receivedHistorySize, this.receivedHistoryMillis);
+        this._metrics = this.metricsRegistry == null ? null : this.metricsRegistry.register(this);
+
+        if(this.tcpNoDelay != null) {
+            this._socket.setTcpNoDelay(this.tcpNoDelay);
+        }
+
+        this._connection.setFlushPolicy(this.flushBufferSize, this.flushDelayMicros);
+        this._connection.setWriteBufferWaterMarks(this.writeBufferLowWaterMark, this.writeBufferHighWaterMark);
+        this._connection.setWritabilityListener(new IWritabilityListener()
+        {
+            @Override
+            public void onWritabilityChanged(boolean writable) {
+                for(WritabilityChanged listener : BaseClient.this._writabilityListeners) {
+                    listener.onWritabilityChanged(BaseClient.this, writable);
+                }
+            }
+        });
+
+        this._startHeart();
+    }
+
+    /**
+     * Gets the most recent messages the server has sent to this client / this client
+     * has received, up to receivedHistorySize of them
+     *
+     * @return A copy of the received messages, oldest first
      */
     public Collection<Message> getRecivedMessages() {
-        return this._receivedMessages.values();
+        Collection<Message> messages = this._receivedMessages.values();
+
+        for(Message message : messages) {
+            this._loadParams(message);
+        }
+
+        return messages;
     }
 
     /**
-     * Gets all the messages the client has sent to the server / the server has sent to the client
+     * Gets the messages the client has sent to the server / the server has sent
+     * to the client that are still waiting for a reply, replied to and timed out
+     * messages are forgotten
      *
-     * @return The sent messages
+     * @return A copy of the sent messages, oldest first
      */
     public Collection<Message> getSentMessages() {
         return this._sentMessages.values();
     }
 
     /**
-     * Gets a single received message based upon its id
+     * Gets a single received message based upon its id, if it is still kept
      *
      * @param id The id of the message
      * @return The received message or null if it's not found
      */
     public Message getReceivedMessage(@NotNull String id) {
-        return this._receivedMessages.get(id);
+        Message message = this._receivedMessages.get(id);
+
+        if(message != null) {
+            this._loadParams(message);
+        }
+
+        return message;
     }
 
     /**
-     * Gets a single sent message based upon its id
+     * Decodes the params of a kept message that nothing has read
+     * yet, one that can't be is still returned without them
+     */
+    private void _loadParams(Message message) {
+        try {
+            message.loadParams();
+        }
+        catch(InvalidMessageException e) {
+            Debugger.log(LogLevel.WARN, this._getDebuggerCategory(), "Received message has invalid params (" + e.getMessage() + ")");
+        }
+    }
+
+    /**
+     * Gets a single sent message that is still waiting for a reply based upon its id
      *
      * @param id The id of the message
      * @return The sent message or null if it's not found
@@ -113,6 +318,49 @@ public abstract class BaseClient
         return this._sentMessages.get(id);
     }
 
+    /**
+     * Gets the connection that this client reads
+     * and writes through
+     *
+     * @return The connection or null if the BaseClient is not yet connected
+     */
+    public IConnection getConnection() {
+        return this._connection;
+    }
+
+    /**
+     * Gets the codec messages are currently encoded with,
+     * always JSON until an upgrade to another codec has
+     * been agreed with the other end
+     *
+     * @return The codec in use
+     */
+    public ICodec getCodec() {
+        return this._codec;
+    }
+
+    /**
+     * Gets the messages sent and received, their sizes and how long
+     * they took to encode and decode and how long the client took
+     * to be authenticated. Kept after disconnecting
+     *
+     * @return The metrics or null if the client isn't connected or has no metricsRegistry
+     */
+    public ConnectionMetrics getMetrics() {
+        return this._metrics;
+    }
+
+    /**
+     * Gets the number of messages received from the server / client
+     * waiting to be handled, always 0 for clients that handle them
+     * as soon as they are read
+     *
+     * @return The number of messages waiting
+     */
+    public int getPendingMessages() {
+        return 0;
+    }
+
     /**
      * Gets the socket that this client is bound too
      *
@@ -143,8 +391,15 @@ public abstract class BaseClient
             listener.onAuthStateChanged(this.getAuthState(), state, this);
         }
 
-        Debugger.log(this._getDebuggerCategory(), "Auth state changed from " + this.getAuthState() + " to " + state + " for " + this._socket.getInetAddress().toString());
+        if(Debugger.isEnabled(LogLevel.INFO)) {
+            Debugger.log(LogLevel.INFO, this._getDebuggerCategory(), "Auth state changed from " + this.getAuthState() + " to " + state + " for " + this._socket.getInetAddress().toString());
+        }
         this._authState = state;
+
+        ConnectionMetrics metrics = this._metrics;
+        if(state == AuthState.ACCEPTED && metrics != null) {
+            metrics.authenticated();
+        }
     }
 
     /**
@@ -182,6 +437,53 @@ public abstract class BaseClient
         this._messageReceivedListeners.add(listener);
     }
 
+    /**
+     * Sets the handler for messages received with the given
+     * request, found with a single lookup rather than comparing
+     * the request in a MessageReceived listener. The MessageReceived
+     * listeners still get every message
+     *
+     * @param request The request of the messages to handle
+     * @param handler The handler, or null to remove the request's handler
+     */
+    public void handle(@NotNull String request, MessageReceived handler) {
+        this._router.handle(request, handler);
+    }
+
+    /**
+     * Sets the handler for messages received that
+     * no handler is set for
+     *
+     * @param handler The handler, or null to leave them unhandled
+     */
+    public void setFallbackHandler(MessageReceived handler) {
+        this._router.setFallbackHandler(handler);
+    }
+
+    /**
+     * Adds a WritabilityChanged listener to be fired
+     * when the messages waiting to be written pass the
+     * high water mark or fall back to the low water mark
+     *
+     * @param listener The listener to add
+     */
+    public void onWritabilityChange(@NotNull WritabilityChanged listener) {
+        this._writabilityListeners.add(listener);
+    }
+
+    /**
+     * Gets whether or not the messages waiting to be written
+     * are below the high water mark. Sending while not writable
+     * still works but the messages queue up in memory, so anything
+     * producing lots of messages should wait for the WritabilityChanged
+     * event before carrying on
+     *
+     * @return Whether the client is writable
+     */
+    public boolean isWritable() {
+        return this._connection != null && this._connection.isWritable();
+    }
+
     /**
      * Gets whether or not the client has been stopped
      * Meaning that all its listeners, writers and readers
@@ -190,49 +492,65 @@ public abstract class BaseClient
      * @return Whether or not the client is disconnected
      */
     public boolean isStopped() {
-        return this._closed;
+        return this._closed.get();
     }
 
     /**
      * Checks whether or not there is a message waiting
      * from the server / client for non blocking io
-     * input
+     * input. Always false for clients bound to a ChannelConnection
+     * as their messages are read by the event loop
      *
      * @return Whether or not there is a message waiting
      */
     public boolean isMessageWaiting() throws Exception {
-        return this._inputStream.available() > 0;
+        return this._connection instanceof StreamConnection && ((StreamConnection) this._connection).available() > 0;
     }
 
     /**
      * Sends a message to the client / server
      * and if keepMessages is true, generates an
      * id for the message and adds it to the list
-     * of sent messages
+     * of sent messages. Safe to call from any thread.
+     * The message is queued to be written, but on a
+     * blocking socket without useVirtualThreads the
+     * calling thread does the writing if nothing else
+     * is, blocking until the socket has taken it
      *
      * @param msg The message to send
      */
     public void sendMessage(@NotNull Message msg) throws Exception {
-        if(!this.isReady()) {
-            throw new IOException("Client not ready to send messages");
+        this._send(msg, null, null);
+    }
+
+    /**
+     * Sends a message to the client / server the same
+     * as sendMessage, returning a future that completes once
+     * the message has been written to the socket, or fails
+     * if the message couldn't be encoded or written
+     *
+     * @param msg The message to send
+     * @return The future for the write
+     */
+    public CompletableFuture<Void> sendAsync(@NotNull Message msg) {
+        CompletableFuture<Void> written = new CompletableFuture<Void>();
+
+        try {
+            this._send(msg, null, written);
         }
-        else if(this.keepMessages) {
-            msg.generateId(this._sentMessages); //generate an id for reply detection
-            this._sentMessages.put(msg.getId(), msg);
+        catch(Exception e) {
+            written.completeExceptionally(e);
         }
 
-        if(BaseClient.logHeartbeat || !ServerOptions.HEART_BEAT.equals(msg.request)) {
-            Debugger.log(this._getDebuggerCategory(), "Sending message " + msg.toString());
-        }
-        this._writer.write(msg.toString() + "\n");
-        this._writer.flush();
+        return written;
     }
 
     /**
      * Gets the latest unread message from the
      * server / client. Method will be blocking
      * if isMessageWaiting is not checked before
-     * its used as it uses readLine on an IOStream
+     * its used as it waits for a whole frame to
+     * be read from the socket
      *
      * @throws IOException Null message or client not ready to received messages
      * @throws InvalidMessageException JSON parsing of the message failed
@@ -242,26 +560,90 @@ public abstract class BaseClient
         if(!this.isReady()) {
             throw new IOException("Not ready to get messages");
         }
+        else if(!(this._connection instanceof StreamConnection)) {
+            throw new IOException("Messages for this client are read by its event loop");
+        }
 
-        String line = this._reader.readLine();
+        ByteBuffer frame = ((StreamConnection) this._connection).readFrame();
 
-        if(line == null) {
+        if(frame == null) {
             throw new Exception("Null message received");
         }
 
+        return this.parseMessage(frame);
+    }
+
+    /**
+     * Parses a single line of JSON sent by the server / client
+     * into a message bound to this client
+     *
+     * @param line The JSON line that was received
+     * @throws InvalidMessageException JSON parsing of the message failed
+     * @return The message
+     */
+    public Message parseMessage(@NotNull String line) throws InvalidMessageException {
         try {
-            Message message = Message.fromJson(line, this);
+            Message message = Message.fromSerializable(JsonCodec.fromJson(line), this);
 
-            if(BaseClient.logHeartbeat || !ServerOptions.HEART_BEAT.equals(message.request)) {
-                Debugger.log(this._getDebuggerCategory(), "Got message " + line);
+            if(Debugger.isEnabled(LogLevel.DEBUG) && (BaseClient.logHeartbeat || !ServerOptions.HEART_BEAT.equals(message.request))) {
+                Debugger.log(LogLevel.DEBUG, this._getDebuggerCategory(), "Got message ", line);
             }
 
             return message;
         }
-        catch(JsonSyntaxException e) {
-            Debugger.log(this._getDebuggerCategory(), "Got message " + line);
-            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        catch(InvalidMessageException e) {
+            if(Debugger.isEnabled(LogLevel.WARN)) {
+                Debugger.log(LogLevel.WARN, this._getDebuggerCategory(), "Got invalid message ", line);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a single frame sent by the server / client into a
+     * message bound to this client, using the codec in use. Frames
+     * that are JSON are always decoded as JSON, as the other end may
+     * still be sending some while it switches codec
+     *
+     * @param frame The payload of the frame that was received
+     * @throws InvalidMessageException Decoding of the message failed
+     * @return The message
+     */
+    public Message parseMessage(@NotNull ByteBuffer frame) throws InvalidMessageException {
+        ConnectionMetrics metrics = this._metrics;
+        this._markActive();
+
+        if(metrics == null) {
+            return this._decode(frame);
+        }
+
+        int size = frame.remaining();
+        long start = System.nanoTime();
+        Message message = this._decode(frame);
+        metrics.received(size, System.nanoTime() - start);
+        return message;
+    }
+
+    private Message _decode(ByteBuffer frame) throws InvalidMessageException {
+        ICodec codec = this._codec;
+        boolean json = codec == BaseClient._jsonCodec || JsonCodec.isJson(frame);
+        Message message;
+
+        try {
+            message = Message.fromSerializable((json ? BaseClient._jsonCodec : codec).decodeHeader(frame, this.paramSchemas), this); //params are decoded by loadParams
+        }
+        catch(InvalidMessageException e) {
+            if(json && Debugger.isEnabled(LogLevel.WARN)) {
+                Debugger.log(LogLevel.WARN, this._getDebuggerCategory(), "Got invalid message ", JsonCodec.toString(frame));
+            }
+            throw e;
+        }
+
+        if(Debugger.isEnabled(LogLevel.DEBUG) && (BaseClient.logHeartbeat || !ServerOptions.HEART_BEAT.equals(message.request))) {
+            Debugger.log(LogLevel.DEBUG, this._getDebuggerCategory(), "Got message ", json ? JsonCodec.toString(frame) : message); //toString is only called if it's logged
         }
+
+        return message;
     }
 
     /**
@@ -274,15 +656,34 @@ public abstract class BaseClient
      * @param message The message to handle
      */
     public void handleMessage(@NotNull Message message) throws Exception {
-        if (this.keepMessages) {
-            this._receivedMessages.put(message.getId(), message);
-            message.loadResponseTo(this._sentMessages);
+        if (this.keepMessages && this._receivedMessages.isEnabled()) {
+            this._receivedMessages.add(message);
+        }
+
+        Message responseTo = message._responseToId == null ? null : this._sentMessages.remove(message._responseToId);
+        if(responseTo != null) {
+            message.loadParams();
+            this._recordRoundTrip(responseTo);
+            message._responseToMessage = responseTo;
+            responseTo.triggerReplyEvents(message);
+        }
 
-            if(message.getResponseTo() != null) {
-                message.getResponseTo().triggerReplyEvents(message);
+        if(message._responseToId != null) {
+            PendingRequest pending = this._pendingRequests.remove(message._responseToId);
+
+            if(pending != null) {
+                message.loadParams();
+                this._recordRoundTrip(pending.getRequest());
+                pending.complete(message);
             }
         }
 
+        this._router.route(this, message);
+
+        if(!this._messageReceivedListeners.isEmpty()) {
+            message.loadParams();
+        }
+
         for (MessageReceived listener : this._messageReceivedListeners) {
             listener.onMessageReceived(BaseClient.this, message);
         }
@@ -296,7 +697,8 @@ public abstract class BaseClient
      * @return Whether the client is ready for IO actions
      */
     public boolean isReady() {
-        return !this._closed && this._socket != null && !this._socket.isClosed() && this._socket.isConnected();
+        Socket socket = this._socket;
+        return !this._closed.get() && socket != null && !socket.isClosed() && socket.isConnected();
     }
 
     /**
@@ -304,34 +706,297 @@ public abstract class BaseClient
      * and the bound socket then calls all the disconnect listeners
      */
     public void disconnect() {
-        this._closed = true;
+        if(this._markClosed()) {
+            this._close();
+        }
+    }
 
-        String boundAddress = this._socket.getInetAddress().getHostAddress();
+    /**
+     * Marks the client as closed if it is connected and hasn't been
+     * already, only one of several threads disconnecting at once
+     * gets true and so goes on to close it
+     *
+     * @return Whether the client was marked closed by this call
+     */
+    protected boolean _markClosed() {
+        return this._socket != null && this._closed.compareAndSet(false, true);
+    }
 
-        try {
-            if (this._reader != null) {
-                this._reader.close();
-            }
+    /**
+     * Closes the connection and calls the disconnect listeners,
+     * only called by whoever marked the client closed
+     */
+    protected void _close() {
+        Socket socket = this._socket;
 
-            if (this._writer != null) {
-                this._writer.close();
-            }
+        HashedWheelTimer.Timeout heartbeat = this._heartbeat;
+        if(heartbeat != null) {
+            heartbeat.cancel();
+        }
 
-            if (this._socket != null) {
-                this._socket.close();
+        String boundAddress = Debugger.isEnabled(LogLevel.INFO) ? socket.getInetAddress().getHostAddress() : null;
+
+        try {
+            if (this._connection != null) {
+                this._connection.close(); //closes the socket once anything already sent has been written
+            }
+            else {
+                socket.close();
             }
         }
         catch (Exception e) {
-            Debugger.log(this._getDebuggerCategory(), "Failed to stop reader / writer / socket: " + e.toString());
+            Debugger.log(LogLevel.WARN, this._getDebuggerCategory(), "Failed to close connection / socket: ", e);
         }
 
         this._socket = null;
 
+        IOException disconnected = new IOException("Client disconnected");
+        for (PendingRequest pending : this._pendingRequests.values()) {
+            pending.fail(disconnected);
+        }
+        this._sentMessages.clear(); //no replies can come now
+
+        if(this._metrics != null && this.metricsRegistry != null) {
+            this.metricsRegistry.unregister(this._metrics); //kept for getMetrics, just no longer open
+        }
+
         for (DisconnectListener listener : this._disconnectListeners) {
             listener.onDisconnect(this);
         }
 
-        Debugger.log(this._getDebuggerCategory(), "Client " + boundAddress + " disconnected");
+        if(boundAddress != null) {
+            Debugger.log(LogLevel.INFO, this._getDebuggerCategory(), "Client " + boundAddress + " disconnected");
+        }
+    }
+
+    /**
+     * Sends a message to the client / server and waits for the reply
+     * to it without blocking. The future completes with the reply,
+     * or fails with a TimeoutException if none arrives within the
+     * timeout, or with the reason if the message couldn't be sent
+     * or the client disconnects first. Either way the request is
+     * forgotten once the future completes, it isn't kept in the
+     * sent messages. The future is completed on the thread that
+     * read the reply, so anything chained on to it must not block
+     *
+     * @param msg     The message to send
+     * @param timeout How long to wait for the reply
+     * @return The future for the reply
+     */
+    public CompletableFuture<Message> request(@NotNull Message msg, @NotNull Duration timeout) {
+        final PendingRequest pending = new PendingRequest(this, msg, timeout.toMillis());
+
+        try {
+            if(!this.isReady()) {
+                throw new IOException("Client not ready to send messages");
+            }
+
+            CorrelationTable sent = this._sentMessages;
+            if(sent instanceof HashCorrelationTable) { //not used by any sent message either, or the reply would go to the message
+                msg._assignId(((HashCorrelationTable) sent).newId());
+            }
+            else {
+                msg._assignId(SequenceCorrelationTable.toId(this._idCounter.incrementAndGet()));
+            }
+
+            if(this._metrics != null) {
+                msg._sentAt = System.nanoTime();
+            }
+
+            this._pendingRequests.put(msg.getId(), pending);
+            pending.setTimeout(Timers.get().schedule(pending, timeout.toNanos(), TimeUnit.NANOSECONDS));
+
+            CompletableFuture<Void> written = new CompletableFuture<Void>();
+            written.whenComplete(new BiConsumer<Void, Throwable>()
+            {
+                @Override
+                public void accept(Void ignored, Throwable failure) {
+                    if(failure != null) {
+                        pending.fail(failure);
+                    }
+                }
+            });
+
+            this._write(msg, null, written);
+        }
+        catch(Exception e) {
+            pending.fail(e);
+        }
+
+        return pending.getFuture();
+    }
+
+    /**
+     * Removes a request from the requests waiting for replies
+     *
+     * @param pending The request to remove
+     * @return Whether it was still waiting
+     */
+    boolean _removeRequest(@NotNull PendingRequest pending) {
+        String id = pending.getRequest().getId();
+        return id != null && this._pendingRequests.remove(id, pending);
+    }
+
+    protected void _send(Message msg, Framing switchTo, CompletableFuture<Void> written) throws Exception {
+        if(!this.isReady()) {
+            throw new IOException("Client not ready to send messages");
+        }
+        else if(this.keepMessages && !ServerOptions.isReserved(msg.request)) {
+            if(this._metrics != null) {
+                msg._sentAt = System.nanoTime(); //before it can be replied to
+            }
+
+            this._sentMessages.add(msg, this.maxAwaitingReply, this.replyTimeoutMillis, this.replyOverflowPolicy);
+        }
+
+        this._write(msg, switchTo, written);
+    }
+
+    private void _write(Message msg, Framing switchTo, CompletableFuture<Void> written) throws Exception {
+        ICodec codec = this._codec;
+        ConnectionMetrics metrics = this._metrics;
+        long start = metrics == null ? 0 : System.nanoTime();
+        byte[] payload = codec.encode(new SerializableMessage(msg));
+
+        if(metrics != null) {
+            metrics.sent(payload.length, System.nanoTime() - start);
+        }
+
+        if(Debugger.isEnabled(LogLevel.DEBUG) && (BaseClient.logHeartbeat || !ServerOptions.HEART_BEAT.equals(msg.request))) {
+            Debugger.log(LogLevel.DEBUG, this._getDebuggerCategory(), "Sending message ", codec == BaseClient._jsonCodec ? new String(payload, JsonCodec.CHARSET) : msg);
+        }
+
+        this._connection.write(payload, switchTo, written);
+        this._markActive();
+    }
+
+    /**
+     * Sends a message in reply to another and then switches
+     * the outbound framing, used for the framing upgrade
+     * handshake where the other end must know exactly which
+     * frame is the last one in the old framing
+     *
+     * @param replyTo  The message being replied to, or null if it isn't a reply
+     * @param msg      The message to send
+     * @param switchTo The framing to use after the message
+     */
+    protected void _sendAndSwitch(Message replyTo, Message msg, Framing switchTo) throws Exception {
+        if(replyTo != null) {
+            msg._responseToId = replyTo.getId();
+        }
+
+        this._send(msg, switchTo, null);
+    }
+
+    /**
+     * Marks the message with the upgrades this end
+     * supports, so the other end can ask for one
+     *
+     * @param msg      The message to offer the upgrades on
+     * @param upgrades The tokens of the upgrades offered
+     */
+    protected void _offerUpgrades(Message msg, String[] upgrades) {
+        msg._upgrades = upgrades;
+    }
+
+    /**
+     * Switches the codec messages are encoded with, messages
+     * already encoded are still sent as they were
+     *
+     * @param codec The codec to use from now on
+     */
+    protected void _setCodec(@NotNull ICodec codec) {
+        this._codec = codec;
+    }
+
+    /**
+     * Notes that something has just been read from or written to
+     * the connection, so no heartbeat is needed for a while
+     */
+    protected void _markActive() {
+        long now = Timers.WHEEL.getTime();
+
+        if(this._lastActivity != now) { //busy connections only write this once a tick
+            this._lastActivity = now;
+        }
+    }
+
+    /**
+     * Starts checking the connection for being idle, from then on
+     * whenever nothing has been read or written for HEART_BMP a heartbeat
+     * is sent. Every client shares the one timer, so this costs nothing
+     * between checks and busy connections never send heartbeats at all
+     */
+    protected void _startHeart() {
+        if(this._heartbeat != null || !this.isReady()) {
+            return;
+        }
+
+        this._lastActivity = Timers.WHEEL.getTime(); //will have only just connected, no need to beat the heart straight away
+        this._scheduleBeat(ServerOptions.HEART_BMP);
+    }
+
+    private void _scheduleBeat(long delayMillis) {
+        this._heartbeat = Timers.WHEEL.schedule(new Runnable()
+        {
+            @Override
+            public void run() {
+                BaseClient.this._beat();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void _beat() {
+        if(!this.isReady()) {
+            return;
+        }
+
+        long interval = ServerOptions.HEART_BMP;
+        long idle = TimeUnit.NANOSECONDS.toMillis(Timers.WHEEL.getTime() - this._lastActivity);
+
+        if(idle < interval) {
+            this._scheduleBeat(interval - idle); //something happened since the last check
+            return;
+        }
+
+        try {
+            ICodec codec = this._codec;
+            EncodedFrame frame = BaseClient._heartbeatFrames.get(codec.getName());
+
+            if(frame == null) { //two threads may both encode it, either copy is fine
+                frame = new EncodedFrame(codec.encode(new SerializableMessage(new Message(ServerOptions.HEART_BEAT))));
+                BaseClient._heartbeatFrames.put(codec.getName(), frame);
+            }
+
+            if(BaseClient.logHeartbeat && Debugger.isEnabled(LogLevel.DEBUG)) {
+                Debugger.log(LogLevel.DEBUG, this._getDebuggerCategory(), "Sending heartbeat after " + idle + "ms idle");
+            }
+
+            this._connection.write(frame, null);
+            this._markActive();
+
+            ConnectionMetrics metrics = this._metrics;
+            if(metrics != null) {
+                metrics.sent(frame.getPayload().length);
+            }
+        }
+        catch(Exception e) {
+            if(!this.isStopped()) {
+                Debugger.log(LogLevel.WARN, this._getDebuggerCategory(), "Heart beat failed, client died: ", e.getMessage());
+                this.disconnect();
+            }
+            return;
+        }
+
+        this._scheduleBeat(interval);
+    }
+
+    private void _recordRoundTrip(Message sent) {
+        ConnectionMetrics metrics = this._metrics;
+
+        if(metrics != null && sent._sentAt != 0) {
+            metrics.roundTrip(sent.request, System.nanoTime() - sent._sentAt);
+        }
     }
 
     protected String _getDebuggerCategory() {
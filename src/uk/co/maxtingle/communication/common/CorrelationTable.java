@@ -0,0 +1,81 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sent messages that can still receive a reply, keyed by
+ * id. A message leaves the table when its reply arrives, once
+ * it has waited longer than the reply timeout or when room is
+ * needed for newer messages
+ */
+abstract class CorrelationTable
+{
+    /**
+     * Creates a table for the way the client generates ids
+     *
+     * @param strategy The id strategy of the client
+     * @param counter  The counter ids come from if the strategy is COUNTER
+     * @param requests The requests waiting for replies by id, whose ids random ids mustn't reuse
+     * @return The new table
+     */
+    static CorrelationTable create(@NotNull IdStrategy strategy, @NotNull AtomicLong counter, @NotNull Map<String, ?> requests) {
+        return strategy == IdStrategy.COUNTER ? new SequenceCorrelationTable(counter) : new HashCorrelationTable(requests);
+    }
+
+    /**
+     * Gives the message an id and keeps it until it is replied to
+     *
+     * @param message        The message being sent
+     * @param maxMessages    The most messages to keep at once
+     * @param timeoutMillis  How long to keep a message without a reply, 0 or less keeps it until replied to
+     * @param overflowPolicy What to do when maxMessages are already kept
+     * @throws Exception The table is full and the policy is REJECT, or the message already has an id
+     */
+    abstract void add(@NotNull Message message, int maxMessages, long timeoutMillis, @NotNull ReplyOverflowPolicy overflowPolicy) throws Exception;
+
+    /**
+     * Takes the message a reply is to out of the table
+     *
+     * @param id The id the reply is to
+     * @return The message or null if it isn't waiting for a reply
+     */
+    abstract Message remove(@NotNull String id);
+
+    /**
+     * Gets a message that is still waiting for a reply
+     *
+     * @param id The id of the message
+     * @return The message or null if it isn't waiting for a reply
+     */
+    abstract Message get(@NotNull String id);
+
+    /**
+     * Gets a copy of the messages waiting for replies
+     *
+     * @return The messages, oldest first
+     */
+    abstract Collection<Message> values();
+
+    /**
+     * Forgets every message, used once no more replies can arrive
+     */
+    abstract void clear();
+
+    /**
+     * A kept message and when it stops waiting for a reply
+     */
+    static class Entry
+    {
+        final Message message;
+        final long    expiresAt;
+
+        Entry(Message message, long expiresAt) {
+            this.message = message;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
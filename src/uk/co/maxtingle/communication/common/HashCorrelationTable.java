@@ -0,0 +1,111 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A correlation table for random ids, kept in a map in the
+ * order the messages were sent, which is also the order they
+ * time out in, so expired ones are cleared from the front
+ * whenever a message is added without needing a timer. Ids
+ * are never the same as a request's still waiting for a reply,
+ * or its reply would be taken for a reply to the message
+ */
+class HashCorrelationTable extends CorrelationTable
+{
+    private final LinkedHashMap<String, Entry> _messages = new LinkedHashMap<String, Entry>(); //guarded by this
+    private final Map<String, ?>               _requests;
+
+    /**
+     * @param requests The requests waiting for replies by id
+     */
+    HashCorrelationTable(@NotNull Map<String, ?> requests) {
+        this._requests = requests;
+    }
+
+    @Override
+    synchronized void add(@NotNull Message message, int maxMessages, long timeoutMillis, @NotNull ReplyOverflowPolicy overflowPolicy) throws Exception {
+        long now = System.currentTimeMillis();
+        this._expire(now);
+
+        if(this._messages.size() >= maxMessages) {
+            if(overflowPolicy == ReplyOverflowPolicy.REJECT) {
+                throw new IOException("Too many messages waiting for replies");
+            }
+            else if(overflowPolicy == ReplyOverflowPolicy.SEND_UNTRACKED || this._messages.isEmpty()) {
+                message._assignId(this._newId()); //still sent with an id as the other end may rely on one
+                return;
+            }
+
+            Iterator<Entry> oldest = this._messages.values().iterator();
+            oldest.next();
+            oldest.remove();
+        }
+
+        message._assignId(this._newId()); //generate an id for reply detection
+        this._messages.put(message.getId(), new Entry(message, timeoutMillis > 0 ? now + timeoutMillis : Long.MAX_VALUE));
+    }
+
+    @Override
+    synchronized Message remove(@NotNull String id) {
+        Entry entry = this._messages.remove(id);
+        return entry == null || entry.expiresAt < System.currentTimeMillis() ? null : entry.message;
+    }
+
+    @Override
+    synchronized Message get(@NotNull String id) {
+        Entry entry = this._messages.get(id);
+        return entry == null || entry.expiresAt < System.currentTimeMillis() ? null : entry.message;
+    }
+
+    @Override
+    synchronized Collection<Message> values() {
+        ArrayList<Message> messages = new ArrayList<Message>(this._messages.size());
+
+        for(Entry entry : this._messages.values()) {
+            messages.add(entry.message);
+        }
+
+        return messages;
+    }
+
+    @Override
+    synchronized void clear() {
+        this._messages.clear();
+    }
+
+    /**
+     * Generates a random id that no message in the table
+     * or request waiting for a reply has
+     *
+     * @return The id
+     */
+    synchronized String newId() {
+        return this._newId();
+    }
+
+    private String _newId() {
+        String id;
+
+        do {
+            id = Message._randomId();
+        }
+        while(this._messages.containsKey(id) || this._requests.containsKey(id));
+
+        return id;
+    }
+
+    private void _expire(long now) {
+        Iterator<Entry> entries = this._messages.values().iterator();
+
+        while(entries.hasNext() && entries.next().expiresAt < now) {
+            entries.remove();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for lots of timeouts that don't need to be exact,
+ * such as a heartbeat per connection. Timeouts go in a wheel of
+ * buckets, one per tick, and the shared timer thread moves round the
+ * wheel a tick at a time running whatever is due in the bucket it
+ * reaches, so scheduling and cancelling cost the same however many
+ * timeouts there are. Timeouts run up to a tick late.
+ *
+ * The time of the last tick is also kept as a cheap clock for
+ * things that only need to know roughly when something happened
+ */
+public class HashedWheelTimer
+{
+    private static final int MAX_ADDED_PER_TICK = 100000; //so a flood of new timeouts can't stall the wheel
+
+    private final long                    _tickNanos;
+    private final ArrayDeque<Timeout>[]   _wheel;
+    private final int                     _mask;
+    private final Queue<Timeout>          _added   = new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicBoolean           _started = new AtomicBoolean(false);
+    private final long                    _startTime;
+
+    private          long _tick; //only touched by the timer thread
+    private volatile long _now;
+
+    /**
+     * Creates a new timer, it starts ticking on the shared
+     * timer thread the first time a timeout is scheduled
+     *
+     * @param tickDuration  How long each tick is, the most a timeout can run late by
+     * @param unit          The unit of the tick duration
+     * @param ticksPerWheel How many buckets the wheel has, rounded up to a power of two
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public HashedWheelTimer(long tickDuration, @NotNull TimeUnit unit, int ticksPerWheel) {
+        int size = Integer.highestOneBit(Math.max(2, ticksPerWheel - 1)) << 1;
+
+        this._tickNanos = Math.max(1, unit.toNanos(tickDuration));
+        this._wheel = new ArrayDeque[size];
+        this._mask = size - 1;
+        this._startTime = System.nanoTime();
+        this._now = this._startTime;
+
+        for(int i = 0; i < size; i++) {
+            this._wheel[i] = new ArrayDeque<Timeout>();
+        }
+    }
+
+    /**
+     * Gets the System.nanoTime of the last tick, which is never
+     * more than a tick behind. Much cheaper than System.nanoTime
+     * when called for every message
+     *
+     * @return The time of the last tick in nanoseconds
+     */
+    public long getTime() {
+        return this._now;
+    }
+
+    /**
+     * Runs a task once the delay has passed, on the timer
+     * thread, so the task must not block
+     *
+     * @param task  What to run
+     * @param delay How long to wait
+     * @param unit  The unit of the delay
+     * @return The timeout, which can be cancelled
+     */
+    public Timeout schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+        if(this._started.compareAndSet(false, true)) {
+            this._start();
+        }
+
+        Timeout timeout = new Timeout(task, System.nanoTime() - this._startTime + Math.max(0, unit.toNanos(delay)));
+        this._added.add(timeout);
+        return timeout;
+    }
+
+    private void _start() {
+        Timers.get().scheduleAtFixedRate(new Runnable()
+        {
+            @Override
+            public void run() {
+                HashedWheelTimer.this._tick();
+            }
+        }, this._tickNanos, this._tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void _tick() {
+        this._now = System.nanoTime();
+
+        while(true) { //catches up on any ticks missed while the timer thread was busy
+            long deadline = this._tickNanos * (this._tick + 1);
+
+            if(this._now - this._startTime < deadline) {
+                return;
+            }
+
+            this._transferAdded();
+            this._expire(this._wheel[(int) (this._tick & this._mask)], deadline);
+            this._tick++;
+        }
+    }
+
+    private void _transferAdded() {
+        for(int i = 0; i < HashedWheelTimer.MAX_ADDED_PER_TICK; i++) {
+            Timeout timeout = this._added.poll();
+
+            if(timeout == null) {
+                return;
+            }
+            else if(timeout.isCancelled()) {
+                continue;
+            }
+
+            long ticks = timeout._deadline / this._tickNanos;
+            timeout._rounds = (ticks - this._tick) / this._wheel.length;
+            this._wheel[(int) (Math.max(ticks, this._tick) & this._mask)].add(timeout); //already due goes in this tick's bucket
+        }
+    }
+
+    private void _expire(ArrayDeque<Timeout> bucket, long deadline) {
+        for(int i = bucket.size(); i > 0; i--) {
+            Timeout timeout = bucket.poll();
+
+            if(timeout.isCancelled()) {
+                continue;
+            }
+            else if(timeout._rounds > 0 || timeout._deadline > deadline) {
+                timeout._rounds--;
+                bucket.add(timeout); //comes round again on a later turn of the wheel
+                continue;
+            }
+
+            timeout._run();
+        }
+    }
+
+    /**
+     * A task waiting on the timer
+     */
+    public static class Timeout
+    {
+        private static final int WAITING   = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED   = 2;
+
+        private final Runnable      _task;
+        private final long          _deadline; //nanoseconds after the timer started
+        private final AtomicInteger _state = new AtomicInteger(Timeout.WAITING);
+        private       long          _rounds; //only touched by the timer thread
+
+        private Timeout(Runnable task, long deadline) {
+            this._task = task;
+            this._deadline = deadline;
+        }
+
+        /**
+         * Stops the task running if it hasn't already
+         *
+         * @return Whether the task was stopped, false if it has already ran or been cancelled
+         */
+        public boolean cancel() {
+            return this._state.compareAndSet(Timeout.WAITING, Timeout.CANCELLED);
+        }
+
+        /**
+         * Gets whether or not the timeout was cancelled
+         *
+         * @return Whether cancel stopped the task
+         */
+        public boolean isCancelled() {
+            return this._state.get() == Timeout.CANCELLED;
+        }
+
+        private void _run() {
+            if(!this._state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                return;
+            }
+
+            try {
+                this._task.run();
+            }
+            catch(Throwable e) {
+                Debugger.log(LogLevel.ERROR, "Timer", "Timer task failed ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package uk.co.maxtingle.communication.common;
+
+/**
+ * How a client generates the ids of the messages it sends,
+ * ids only need to be unique for the connection they are sent on
+ */
+public enum IdStrategy
+{
+    /**
+     * A counter per connection written in base 32, so ids are short,
+     * cheap to make and can never collide. The binary codec sends
+     * them as varints and replies are looked up without hashing
+     */
+    COUNTER,
+
+    /**
+     * 130 random bits from a SecureRandom written in base 32, as ids
+     * always used to be. For peers that rely on ids being unguessable
+     * or unique across connections
+     */
+    RANDOM
+}
@@ -1,15 +1,16 @@
 package uk.co.maxtingle.communication.common;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
-import com.sun.istack.internal.NotNull;
-import com.sun.istack.internal.Nullable;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.codec.EncodedParams;
+import uk.co.maxtingle.communication.common.codec.JsonCodec;
 import uk.co.maxtingle.communication.common.events.MessageReceived;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
 
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -18,8 +19,7 @@ import java.util.Map;
  */
 public class Message
 {
-    private static final Gson         _jsonParser = new Gson();
-    private static final SecureRandom _random     = new SecureRandom();
+    private static final SecureRandom _random = new SecureRandom();
 
     /**
      * The parameters of the request,
@@ -48,9 +48,12 @@ public class Message
 
 
     String             _responseToId; //the message this message is a response to
+    String[]           _upgrades; //the connection upgrades the sender supports, only on the greeting
     private String     _id;
     private BaseClient _client; //needs to be private so not serialized
-    private Message    _responseToMessage;
+    private EncodedParams _encodedParams; //the params as received until loadParams decodes them
+    Message            _responseToMessage; //set by the client when it finds the message this is a response to
+    long               _sentAt; //System.nanoTime when sent, only set if it is waiting for a reply and metrics are recorded
     private ArrayList<MessageReceived> _replyListeners = new ArrayList<MessageReceived>();
 
     /**
@@ -136,6 +139,17 @@ public class Message
         return this._id;
     }
 
+    /**
+     * Gets the connection upgrades the other end offered
+     * on this message, such as length prefixed framing.
+     * Only set on the first message the server sends
+     *
+     * @return The tokens of the upgrades offered or null if none were
+     */
+    public String[] getUpgrades() {
+        return this._upgrades;
+    }
+
     /**
      * Generates an id for this message and avoids
      * using once already used
@@ -148,7 +162,7 @@ public class Message
             throw new Exception("Id already generated");
         }
 
-        String generated = new BigInteger(130, Message._random).toString(32);
+        String generated = Message._randomId();
         if(usedKeys != null && usedKeys.containsKey(generated)) {
             this.generateId(usedKeys);
         }
@@ -157,6 +171,29 @@ public class Message
         }
     }
 
+    /**
+     * Generates a random id without checking whether it is used
+     *
+     * @return The id
+     */
+    static String _randomId() {
+        return new BigInteger(130, Message._random).toString(32);
+    }
+
+    /**
+     * Sets the id of this message to one generated by the client
+     *
+     * @param id The id to use
+     * @throws Exception ID is already generated
+     */
+    void _assignId(@NotNull String id) throws Exception {
+        if(this._id != null) {
+            throw new Exception("Id already generated");
+        }
+
+        this._id = id;
+    }
+
     /**
      * Adds a MessageReceived listener to be fired when a
      * reply is sent to this message
@@ -197,12 +234,14 @@ public class Message
      * @param sentMessages The messages that have been sent before, with the string as their id
      * @throws Exception Response to message already loaded
      */
-    public void loadResponseTo(@NotNull HashMap<String, Message> sentMessages) throws Exception {
+    public void loadResponseTo(@NotNull Map<String, Message> sentMessages) throws Exception {
         if(this._responseToMessage != null) {
             throw new Exception("Response to message already loaded");
         }
 
-        this._responseToMessage = sentMessages.get(this._responseToId);
+        if(this._responseToId != null) {
+            this._responseToMessage = sentMessages.get(this._responseToId);
+        }
     }
 
     /**
@@ -221,6 +260,26 @@ public class Message
         this._client.sendMessage(message);
     }
 
+    /**
+     * Decodes the params of a received message if they haven't
+     * been already. Received messages only have their request,
+     * ids and success decoded at first, the client calls this once
+     * a handler has been found for the message and before any
+     * listeners, onReply or request futures get it, so params is
+     * always set there and messages nothing reads never pay for it
+     *
+     * @return The params
+     * @throws InvalidMessageException The params could not be decoded
+     */
+    public synchronized Object[] loadParams() throws InvalidMessageException {
+        if(this._encodedParams != null) {
+            this.params = this._encodedParams.decode(this.request);
+            this._encodedParams = null;
+        }
+
+        return this.params;
+    }
+
     /**
      * Creates a clone of this message in every way
      * exception the id of this message
@@ -229,6 +288,7 @@ public class Message
      */
     @Override
     public Message clone() {
+        this._loadParamsQuietly();
         Message clone = new Message(this.request, this.params);
         clone._responseToMessage = this._responseToMessage;
         clone._replyListeners = this._replyListeners;
@@ -239,12 +299,13 @@ public class Message
 
     /**
      * Converts this message into a SerialzableMessage and then
-     * into a JSON string for sending to the opposing end
+     * into a JSON string, whatever codec the message is sent with
      *
      * @return String The JSON stirng
      */
     public String toString() {
-        return Message._jsonParser.toJson(new SerializableMessage(this));
+        this._loadParamsQuietly();
+        return JsonCodec.toJson(new SerializableMessage(this));
     }
 
     /**
@@ -256,17 +317,44 @@ public class Message
      * @return The message
      */
     public static Message fromJson(String json, BaseClient baseClient) throws JsonSyntaxException {
-        SerializableMessage serializableMessage = Message._jsonParser.fromJson(json, SerializableMessage.class);
+        try {
+            return Message.fromSerializable(JsonCodec.fromJson(json), baseClient);
+        }
+        catch(InvalidMessageException e) {
+            throw new JsonSyntaxException(e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a message from one decoded by a codec
+     * by copying over the data into a new instance of a Message
+     *
+     * @param serializableMessage The decoded message
+     * @param baseClient          The client the message was received by
+     * @return The message
+     */
+    public static Message fromSerializable(@NotNull SerializableMessage serializableMessage, @Nullable BaseClient baseClient) {
         Message message = new Message(serializableMessage.request);
         message.success = serializableMessage.success;
         message.params = serializableMessage.params;
+        message._encodedParams = serializableMessage.encodedParams;
         message._client = baseClient;
         message._responseToId = serializableMessage.responseTo;
         message._id = serializableMessage.id;
+        message._upgrades = serializableMessage.upgrades;
 
         return message;
     }
 
+    private void _loadParamsQuietly() {
+        try {
+            this.loadParams();
+        }
+        catch(InvalidMessageException e) {
+            //left out, the client logs it when it loads them
+        }
+    }
+
     void setClient(BaseClient baseClient) {
         this._client = baseClient;
     }
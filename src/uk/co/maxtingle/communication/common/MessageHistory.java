@@ -0,0 +1,142 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * The most recent messages a client has received, kept in a
+ * ring so adding a message and dropping the oldest one are both
+ * constant time. Messages can also be dropped once they are
+ * older than a set age. Messages with ids can be looked up by
+ * id for as long as they are still kept
+ */
+class MessageHistory
+{
+    private final Message[]                _messages;
+    private final long[]                   _receivedAt;
+    private final HashMap<String, Integer> _slots; //the slot of each kept message with an id
+    private final long                     _maxAgeMillis;
+
+    /* All guarded by this */
+    private int _next;
+    private int _size;
+
+    /**
+     * Creates a new empty history
+     *
+     * @param capacity     The most messages to keep, 0 keeps none
+     * @param maxAgeMillis The longest to keep a message, 0 or less for no limit
+     */
+    MessageHistory(int capacity, long maxAgeMillis) {
+        capacity = Math.max(0, capacity);
+
+        this._messages = new Message[capacity];
+        this._receivedAt = new long[capacity];
+        this._slots = new HashMap<String, Integer>(Math.min(capacity, 1024));
+        this._maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Gets whether or not any messages are kept at all
+     *
+     * @return Whether the history is enabled
+     */
+    boolean isEnabled() {
+        return this._messages.length > 0;
+    }
+
+    /**
+     * Adds a message, dropping the oldest if the
+     * history is full and any that are too old
+     *
+     * @param message The message that was received
+     */
+    synchronized void add(@NotNull Message message) {
+        if(this._messages.length == 0) {
+            return;
+        }
+
+        long now = this._maxAgeMillis > 0 ? System.currentTimeMillis() : 0;
+        this._dropExpired(now);
+
+        if(this._size == this._messages.length) {
+            this._drop(this._next); //the oldest
+        }
+
+        this._messages[this._next] = message;
+        this._receivedAt[this._next] = now;
+        this._size++;
+
+        if(message.getId() != null) {
+            this._slots.put(message.getId(), this._next);
+        }
+
+        this._next = (this._next + 1) % this._messages.length;
+    }
+
+    /**
+     * Gets a message that is still kept by its id
+     *
+     * @param id The id of the message
+     * @return The message or null if it isn't kept
+     */
+    synchronized Message get(@NotNull String id) {
+        Integer slot = this._slots.get(id);
+
+        if(slot == null || this._isExpired(slot, System.currentTimeMillis())) {
+            return null;
+        }
+
+        return this._messages[slot];
+    }
+
+    /**
+     * Gets a copy of the messages still kept
+     *
+     * @return The messages, oldest first
+     */
+    synchronized Collection<Message> values() {
+        ArrayList<Message> messages = new ArrayList<Message>(this._size);
+        long now = System.currentTimeMillis();
+
+        if(this._size == 0) {
+            return messages;
+        }
+
+        for(int i = 0, slot = this._oldest(); i < this._size; i++, slot = (slot + 1) % this._messages.length) {
+            if(!this._isExpired(slot, now)) {
+                messages.add(this._messages[slot]);
+            }
+        }
+
+        return messages;
+    }
+
+    private void _dropExpired(long now) {
+        while(this._size > 0 && this._isExpired(this._oldest(), now)) {
+            this._drop(this._oldest());
+        }
+    }
+
+    private void _drop(int slot) {
+        Message message = this._messages[slot];
+
+        if(message.getId() != null) {
+            this._slots.remove(message.getId(), slot); //a newer message may have the same id
+        }
+
+        this._messages[slot] = null;
+        this._size--;
+    }
+
+    private int _oldest() {
+        return (this._next - this._size + this._messages.length) % this._messages.length;
+    }
+
+    private boolean _isExpired(int slot, long now) {
+        return this._maxAgeMillis > 0 && now - this._receivedAt[slot] > this._maxAgeMillis;
+    }
+}
@@ -0,0 +1,91 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.events.MessageReceived;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Routes messages to the handler registered for their request,
+ * so each message costs one hash lookup however many requests
+ * are handled rather than every listener comparing the request
+ * itself. Handlers are expected to be registered up front, each
+ * change copies the table so routing never locks
+ */
+public class MessageRouter
+{
+    private volatile Map<String, MessageReceived> _handlers = Collections.emptyMap();
+    private volatile MessageReceived              _fallback;
+
+    /**
+     * Sets the handler for messages with the given request,
+     * replacing any handler already set for it
+     *
+     * @param request The request of the messages to handle
+     * @param handler The handler, or null to remove the request's handler
+     */
+    public synchronized void handle(@NotNull String request, @Nullable MessageReceived handler) {
+        Map<String, MessageReceived> handlers = new HashMap<String, MessageReceived>(this._handlers);
+
+        if(handler == null) {
+            handlers.remove(request);
+        }
+        else {
+            handlers.put(request, handler);
+        }
+
+        this._handlers = handlers;
+    }
+
+    /**
+     * Sets the handler for messages that no handler is set for,
+     * including ones with no request
+     *
+     * @param handler The handler, or null to leave them unhandled
+     */
+    public void setFallbackHandler(@Nullable MessageReceived handler) {
+        this._fallback = handler;
+    }
+
+    /**
+     * Gets the handler set for the request
+     *
+     * @param request The request
+     * @return The handler or null if none is set for the request
+     */
+    public MessageReceived getHandler(@NotNull String request) {
+        return this._handlers.get(request);
+    }
+
+    /**
+     * Gets whether or not any handlers have been set
+     *
+     * @return Whether there is anything to route to
+     */
+    public boolean isEmpty() {
+        return this._fallback == null && this._handlers.isEmpty();
+    }
+
+    /**
+     * Runs the handler for the message's request, or the
+     * fallback handler if there isn't one
+     *
+     * @param client  The client that received the message
+     * @param message The message to route
+     * @return Whether a handler was ran
+     */
+    public boolean route(@NotNull BaseClient client, @NotNull Message message) throws Exception {
+        MessageReceived handler = message.request == null ? null : this._handlers.get(message.request);
+
+        if(handler == null && (handler = this._fallback) == null) {
+            return false;
+        }
+
+        message.loadParams(); //only once something is going to read them
+        handler.onMessageReceived(client, message);
+        return true;
+    }
+}
@@ -0,0 +1,84 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request sent with BaseClient.request that is waiting
+ * for its reply. Whichever of the reply, the timeout or the
+ * client disconnecting comes first completes the future and
+ * removes the request from the client's pending requests
+ */
+class PendingRequest implements Runnable
+{
+    private final BaseClient                 _client;
+    private final Message                    _request;
+    private final long                       _timeoutMillis;
+    private final CompletableFuture<Message> _future = new CompletableFuture<Message>();
+
+    private volatile ScheduledFuture<?> _timeout;
+
+    PendingRequest(@NotNull BaseClient client, @NotNull Message request, long timeoutMillis) {
+        this._client = client;
+        this._request = request;
+        this._timeoutMillis = timeoutMillis;
+    }
+
+    Message getRequest() {
+        return this._request;
+    }
+
+    CompletableFuture<Message> getFuture() {
+        return this._future;
+    }
+
+    void setTimeout(@NotNull ScheduledFuture<?> timeout) {
+        this._timeout = timeout;
+
+        if(this._future.isDone()) { //finished before the timeout was even set
+            timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Completes the request with its reply
+     *
+     * @param reply The reply that was received
+     */
+    void complete(@NotNull Message reply) {
+        this._cancelTimeout();
+        this._future.complete(reply);
+    }
+
+    /**
+     * Fails the request, removing it from the client
+     *
+     * @param cause Why no reply will come
+     */
+    void fail(@NotNull Throwable cause) {
+        this._client._removeRequest(this);
+        this._cancelTimeout();
+        this._future.completeExceptionally(cause);
+    }
+
+    /**
+     * Fired by the client's timer once the timeout has passed
+     */
+    @Override
+    public void run() {
+        if(this._client._removeRequest(this)) {
+            this._future.completeExceptionally(new TimeoutException("No reply to " + this._request.request + " within " + this._timeoutMillis + "ms"));
+        }
+    }
+
+    private void _cancelTimeout() {
+        ScheduledFuture<?> timeout = this._timeout;
+
+        if(timeout != null) {
+            timeout.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package uk.co.maxtingle.communication.common;
+
+/**
+ * What a client does when sending a message while
+ * BaseClient.maxAwaitingReply messages are already
+ * being kept waiting for replies
+ */
+public enum ReplyOverflowPolicy
+{
+    /**
+     * The oldest message waiting for a reply is forgotten,
+     * a reply to it later on is handled as if it wasn't a reply
+     */
+    EVICT_OLDEST,
+
+    /**
+     * The new message is sent without being kept, so a
+     * reply to it is handled as if it wasn't a reply
+     */
+    SEND_UNTRACKED,
+
+    /**
+     * The new message is not sent and sendMessage throws
+     */
+    REJECT
+}
@@ -0,0 +1,220 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A correlation table for counter ids. Ids are handed out in
+ * the order messages are added, so the kept messages are a
+ * window of ids held in a ring and a reply is found by its
+ * offset from the oldest id, no hashing or boxing needed.
+ * Messages replied to leave gaps that are skipped once they
+ * reach the front. The window is limited to a few times the
+ * most messages kept, if it would grow past that because an old
+ * message is still waiting the oldest messages are dropped
+ */
+class SequenceCorrelationTable extends CorrelationTable
+{
+    private static final int INITIAL_SLOTS = 16;
+
+    private final AtomicLong _counter;
+
+    /* All guarded by this */
+    private Entry[] _slots = new Entry[SequenceCorrelationTable.INITIAL_SLOTS]; //always a power of two
+    private long    _firstId; //the id in the head slot, always a kept message while there are any
+    private int     _head;
+    private int     _span;    //slots from the head to the newest message
+    private int     _size;
+
+    SequenceCorrelationTable(@NotNull AtomicLong counter) {
+        this._counter = counter;
+    }
+
+    /**
+     * Gets the id for a counter value
+     *
+     * @param value The counter value
+     * @return The id to send
+     */
+    static String toId(long value) {
+        return Long.toString(value, 32);
+    }
+
+    /**
+     * Gets the counter value of an id
+     *
+     * @param id The id
+     * @return The counter value or -1 if the id isn't a counter id
+     */
+    static long parseId(@NotNull String id) {
+        if(id.isEmpty() || id.length() > 12 || (id.length() > 1 && id.charAt(0) == '0')) { //12 base 32 digits always fit in a long
+            return -1;
+        }
+
+        long value = 0;
+        for(int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+
+            if(c >= '0' && c <= '9') {
+                value = (value << 5) | (c - '0');
+            }
+            else if(c >= 'a' && c <= 'v') {
+                value = (value << 5) | (c - 'a' + 10);
+            }
+            else {
+                return -1; //not written by Long.toString, so not one of ours
+            }
+        }
+
+        return value;
+    }
+
+    @Override
+    synchronized void add(@NotNull Message message, int maxMessages, long timeoutMillis, @NotNull ReplyOverflowPolicy overflowPolicy) throws Exception {
+        long now = System.currentTimeMillis();
+        this._expire(now);
+
+        if(this._size >= maxMessages) {
+            if(overflowPolicy == ReplyOverflowPolicy.REJECT) {
+                throw new IOException("Too many messages waiting for replies");
+            }
+            else if(overflowPolicy == ReplyOverflowPolicy.SEND_UNTRACKED || this._size == 0) {
+                message._assignId(SequenceCorrelationTable.toId(this._counter.incrementAndGet())); //still sent with an id as the other end may rely on one
+                return;
+            }
+
+            this._dropOldest();
+        }
+
+        long id = this._counter.incrementAndGet(); //taken under the lock so ids reach the ring in order
+        message._assignId(SequenceCorrelationTable.toId(id));
+        this._put(id, new Entry(message, timeoutMillis > 0 ? now + timeoutMillis : Long.MAX_VALUE), Math.max(maxMessages, 1));
+    }
+
+    @Override
+    synchronized Message remove(@NotNull String id) {
+        int slot = this._slotOf(id);
+
+        if(slot == -1) {
+            return null;
+        }
+
+        Entry entry = this._slots[slot];
+        this._slots[slot] = null;
+        this._size--;
+        this._skipGaps();
+
+        return entry.expiresAt < System.currentTimeMillis() ? null : entry.message;
+    }
+
+    @Override
+    synchronized Message get(@NotNull String id) {
+        int slot = this._slotOf(id);
+        return slot == -1 || this._slots[slot].expiresAt < System.currentTimeMillis() ? null : this._slots[slot].message;
+    }
+
+    @Override
+    synchronized Collection<Message> values() {
+        ArrayList<Message> messages = new ArrayList<Message>(this._size);
+
+        for(int i = 0; i < this._span; i++) {
+            Entry entry = this._slots[(this._head + i) & (this._slots.length - 1)];
+
+            if(entry != null) {
+                messages.add(entry.message);
+            }
+        }
+
+        return messages;
+    }
+
+    @Override
+    synchronized void clear() {
+        this._slots = new Entry[SequenceCorrelationTable.INITIAL_SLOTS];
+        this._head = 0;
+        this._span = 0;
+        this._size = 0;
+    }
+
+    private int _slotOf(String id) {
+        long offset = SequenceCorrelationTable.parseId(id) - this._firstId;
+
+        if(this._size == 0 || offset < 0 || offset >= this._span) {
+            return -1;
+        }
+
+        int slot = (int) (this._head + offset) & (this._slots.length - 1);
+        return this._slots[slot] == null ? -1 : slot;
+    }
+
+    private void _put(long id, Entry entry, int maxMessages) {
+        if(this._size == 0) {
+            this._firstId = id;
+            this._head = 0;
+            this._span = 0;
+        }
+
+        long offset = id - this._firstId;
+        while(offset >= this._slots.length) {
+            if(this._slots.length < maxMessages * 4) {
+                this._grow();
+            }
+            else { //an old message is holding the window open, drop it
+                this._dropOldest();
+                offset = this._size == 0 ? 0 : id - this._firstId;
+
+                if(this._size == 0) {
+                    this._firstId = id;
+                }
+            }
+        }
+
+        this._slots[(int) (this._head + offset) & (this._slots.length - 1)] = entry;
+        this._span = (int) offset + 1;
+        this._size++;
+    }
+
+    private void _grow() {
+        Entry[] larger = new Entry[this._slots.length * 2];
+
+        for(int i = 0; i < this._span; i++) {
+            larger[i] = this._slots[(this._head + i) & (this._slots.length - 1)];
+        }
+
+        this._slots = larger;
+        this._head = 0;
+    }
+
+    private void _expire(long now) {
+        while(this._size > 0 && this._slots[this._head].expiresAt < now) {
+            this._dropOldest();
+        }
+    }
+
+    private void _dropOldest() {
+        this._slots[this._head] = null;
+        this._size--;
+        this._skipGaps();
+    }
+
+    /**
+     * Moves the head on to the oldest message still kept
+     */
+    private void _skipGaps() {
+        if(this._size == 0) {
+            this._head = 0;
+            this._span = 0;
+            return;
+        }
+
+        while(this._slots[this._head] == null) {
+            this._head = (this._head + 1) & (this._slots.length - 1);
+            this._firstId++;
+            this._span--;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks one at a time in the order they were submitted
+ * on top of a shared executor. Many of these can share the
+ * same pool, tasks from different SerialExecutors run in
+ * parallel while tasks from the same one never overlap
+ */
+public class SerialExecutor implements Executor
+{
+    /**
+     * How many tasks to run before giving the pool thread
+     * back so one busy queue can't starve the others
+     */
+    private static final int BATCH_SIZE = 16;
+
+    private final Executor        _executor;
+    private final Queue<Runnable> _tasks     = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger   _size      = new AtomicInteger();
+    private final AtomicBoolean   _scheduled = new AtomicBoolean(false);
+    private final Runnable        _drain     = new Runnable()
+    {
+        @Override
+        public void run() {
+            SerialExecutor.this._drain();
+        }
+    };
+
+    /**
+     * Creates a new serial executor which runs its
+     * tasks on the executor given
+     *
+     * @param executor The executor to run the tasks on
+     */
+    public SerialExecutor(@NotNull Executor executor) {
+        this._executor = executor;
+    }
+
+    /**
+     * Gets the number of tasks waiting to be ran,
+     * including the one currently running
+     *
+     * @return The number of tasks queued
+     */
+    public int size() {
+        return this._size.get();
+    }
+
+    /**
+     * Queues the task to run after all the tasks
+     * submitted before it have finished
+     *
+     * @param task The task to run
+     * @throws RejectedExecutionException The executor rejected the task, it isn't queued
+     */
+    @Override
+    public void execute(@NotNull Runnable task) {
+        this._tasks.add(task);
+        this._size.incrementAndGet();
+
+        try {
+            this._schedule();
+        }
+        catch(RejectedExecutionException e) {
+            if(this._tasks.remove(task)) { //the caller gives back whatever it reserved for the task, so it must never run
+                this._size.decrementAndGet();
+            }
+            throw e;
+        }
+    }
+
+    private void _schedule() {
+        if(!this._scheduled.compareAndSet(false, true)) {
+            return; //already queued on the executor, it will pick this task up
+        }
+
+        try {
+            this._executor.execute(this._drain);
+        }
+        catch(RejectedExecutionException e) {
+            this._scheduled.set(false);
+            throw e;
+        }
+    }
+
+    private void _drain() {
+        try {
+            Runnable task;
+
+            for(int i = 0; i < SerialExecutor.BATCH_SIZE && (task = this._tasks.poll()) != null; i++) {
+                try {
+                    task.run();
+                }
+                finally {
+                    this._size.decrementAndGet();
+                }
+            }
+        }
+        finally {
+            this._scheduled.set(false);
+        }
+
+        if(!this._tasks.isEmpty()) {
+            this._schedule();
+        }
+    }
+}
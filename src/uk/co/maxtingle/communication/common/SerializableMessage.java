@@ -1,5 +1,7 @@
 package uk.co.maxtingle.communication.common;
 
+import uk.co.maxtingle.communication.common.codec.EncodedParams;
+
 /**
  * The message that is sent between the server and client
  * then turned into a proper Message instance based upon
@@ -14,10 +16,21 @@ public class SerializableMessage
     public Boolean            success;
     public String id;
     public String responseTo; //the message this message is a response to
+    public String[] upgrades; //connection upgrades offered, null and so left out of the JSON on almost every message
+    public transient EncodedParams encodedParams; //set instead of params by decodeHeader, never sent
+
+    /**
+     * Creates a new empty instance of the SerializableMessage
+     * for a codec to decode a message into
+     */
+    public SerializableMessage() {
+
+    }
 
     /**
      * Creates a new instance of the SerializableMessage and
-     * loads in the params, request, success, id and response to id
+     * loads in the params, request, success, id, response to id
+     * and upgrades
      * of the message
      */
     public SerializableMessage(Message message) {
@@ -26,5 +39,6 @@ public class SerializableMessage
         this.success = message.success;
         this.id = message.getId();
         this.responseTo = message._responseToId;
+        this.upgrades = message._upgrades;
     }
 }
\ No newline at end of file
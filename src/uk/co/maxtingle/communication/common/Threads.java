@@ -0,0 +1,76 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads used by the clients and server.
+ * Virtual threads are used when asked for and the JVM
+ * supports them (Java 21 onwards), otherwise a normal
+ * platform thread is created so the library still runs
+ * on older JVMs
+ */
+public final class Threads
+{
+    private static final Method _ofVirtual; //a builder per thread, they aren't safe to share between threads
+    private static final Method _builderName;
+    private static final Method _builderUnstarted;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            name = builderClass.getMethod("name", String.class);
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+        }
+        catch(Exception e) {
+            ofVirtual = null; //not on a JVM with virtual threads
+        }
+
+        _ofVirtual = ofVirtual;
+        _builderName = name;
+        _builderUnstarted = unstarted;
+    }
+
+    private Threads() {}
+
+    /**
+     * Gets whether or not the JVM supports virtual threads
+     *
+     * @return Whether virtual threads can be created
+     */
+    public static boolean isVirtualSupported() {
+        return Threads._ofVirtual != null;
+    }
+
+    /**
+     * Creates a new unstarted thread
+     *
+     * @param name    The name of the thread
+     * @param task    What the thread should run
+     * @param virtual Whether to create a virtual thread if they are supported
+     * @return The thread, virtual if requested and supported
+     */
+    public static Thread create(@NotNull String name, @NotNull Runnable task, boolean virtual) {
+        if(virtual && Threads._ofVirtual != null) {
+            try {
+                Object builder = Threads._builderName.invoke(Threads._ofVirtual.invoke(null), name);
+                return (Thread) Threads._builderUnstarted.invoke(builder, task);
+            }
+            catch(Exception e) {
+                Debugger.log(LogLevel.WARN, "Threads", "Failed to create virtual thread, using a platform thread ", e);
+            }
+        }
+
+        Thread thread = new Thread(task);
+        thread.setName(name);
+        return thread;
+    }
+}
@@ -0,0 +1,65 @@
+package uk.co.maxtingle.communication.common;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The one "Timer" thread shared by everything in the JVM that
+ * needs to run something later: request timeouts, delayed flushes,
+ * close timeouts and the ticks of the heartbeat wheel. Tasks run on
+ * it must never block, anything that might is handed to another
+ * thread by the task
+ */
+public final class Timers
+{
+    /** The wheel heartbeats are scheduled on, ticked by the timer thread */
+    public static final HashedWheelTimer WHEEL = new HashedWheelTimer(100, TimeUnit.MILLISECONDS, 512);
+
+    private static volatile Thread _thread;
+
+    private Timers() {}
+
+    /**
+     * Gets the shared scheduler, starting its thread the first time
+     *
+     * @return The scheduler
+     */
+    public static ScheduledExecutorService get() {
+        return Timers.Scheduler.INSTANCE; //created when first used, without a lock on every call after
+    }
+
+    /**
+     * Holds the scheduler so it is only created once something schedules on it
+     */
+    private static final class Scheduler
+    {
+        static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(@NotNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "Timer");
+                thread.setDaemon(true); //nothing it runs should keep the JVM alive on its own
+                Timers._thread = thread;
+                return thread;
+            }
+        });
+
+        static {
+            Scheduler.INSTANCE.setRemoveOnCancelPolicy(true); //most timeouts are cancelled, don't keep them around
+        }
+    }
+
+    /**
+     * Gets whether the current thread is the timer thread,
+     * so code that may block can avoid doing so on it
+     *
+     * @return Whether this is the timer thread
+     */
+    public static boolean isTimerThread() {
+        return Thread.currentThread() == Timers._thread;
+    }
+}
@@ -0,0 +1,650 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary codec for talking between Java peers, only
+ * usable once length prefixed framing is in use as the payload
+ * can contain any byte. Ids are written as varints rather than
+ * strings and params are written with a one byte type tag, so
+ * the common types are encoded without reflection or building
+ * any strings
+ *
+ * Params decode as the type they were sent as, so ints come back
+ * as Integer rather than the Double JSON gives, Object[] and
+ * Collections come back as ArrayList and Maps as LinkedHashMap.
+ * Anything else is sent as JSON and decoded the way the JSON codec
+ * would decode it. Params of requests registered in the ParamSchemas
+ * given to decodeHeader are decoded as the types registered instead
+ */
+public class BinaryCodec implements ICodec
+{
+    /** The name of the binary codec */
+    public static final String NAME = "binary";
+
+    /** The first byte of every binary message, never the { that starts a JSON one */
+    public static final byte VERSION = (byte) 0xB1;
+
+    private static final int MAX_DEPTH = 64;
+
+    /* Which of the message's fields are present */
+    private static final int FLAG_REQUEST     = 1;
+    private static final int FLAG_SUCCESS     = 1 << 1;
+    private static final int FLAG_SUCCEEDED   = 1 << 2;
+    private static final int FLAG_ID          = 1 << 3;
+    private static final int FLAG_RESPONSE_TO = 1 << 4;
+    private static final int FLAG_PARAMS      = 1 << 5;
+    private static final int FLAG_UPGRADES    = 1 << 6;
+
+    /* How an id is written */
+    private static final byte ID_NUMBER = 0;
+    private static final byte ID_BIG    = 1;
+    private static final byte ID_TEXT   = 2;
+
+    /* Param type tags */
+    private static final byte TYPE_NULL   = 0;
+    private static final byte TYPE_TRUE   = 1;
+    private static final byte TYPE_FALSE  = 2;
+    private static final byte TYPE_INT    = 3;
+    private static final byte TYPE_LONG   = 4;
+    private static final byte TYPE_DOUBLE = 5;
+    private static final byte TYPE_FLOAT  = 6;
+    private static final byte TYPE_STRING = 7;
+    private static final byte TYPE_LIST   = 8;
+    private static final byte TYPE_MAP    = 9;
+    private static final byte TYPE_BYTES  = 10;
+    private static final byte TYPE_JSON   = 11;
+
+    private static final Gson _gson = new Gson();
+
+    @Override
+    public String getName() {
+        return BinaryCodec.NAME;
+    }
+
+    @Override
+    public byte[] encode(@NotNull SerializableMessage message) throws IOException {
+        Output out = new Output();
+        int flags = 0;
+
+        if(message.request != null) {
+            flags |= BinaryCodec.FLAG_REQUEST;
+        }
+        if(message.success != null) {
+            flags |= message.success ? BinaryCodec.FLAG_SUCCESS | BinaryCodec.FLAG_SUCCEEDED : BinaryCodec.FLAG_SUCCESS;
+        }
+        if(message.id != null) {
+            flags |= BinaryCodec.FLAG_ID;
+        }
+        if(message.responseTo != null) {
+            flags |= BinaryCodec.FLAG_RESPONSE_TO;
+        }
+        if(message.params != null) {
+            flags |= BinaryCodec.FLAG_PARAMS;
+        }
+        if(message.upgrades != null) {
+            flags |= BinaryCodec.FLAG_UPGRADES;
+        }
+
+        out.writeByte(BinaryCodec.VERSION);
+        out.writeByte(flags);
+
+        if(message.request != null) {
+            out.writeString(message.request);
+        }
+        if(message.id != null) {
+            BinaryCodec._writeId(out, message.id);
+        }
+        if(message.responseTo != null) {
+            BinaryCodec._writeId(out, message.responseTo);
+        }
+        if(message.params != null) {
+            out.writeVarint(message.params.length);
+            for(Object param : message.params) {
+                BinaryCodec._writeValue(out, param, 0);
+            }
+        }
+        if(message.upgrades != null) {
+            out.writeVarint(message.upgrades.length);
+            for(String upgrade : message.upgrades) {
+                out.writeString(upgrade);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public SerializableMessage decode(@NotNull ByteBuffer payload) throws InvalidMessageException {
+        return BinaryCodec._decode(payload, false, null);
+    }
+
+    @Override
+    public SerializableMessage decodeHeader(@NotNull ByteBuffer payload, @Nullable ParamSchemas schemas) throws InvalidMessageException {
+        return BinaryCodec._decode(payload, true, schemas);
+    }
+
+    private static SerializableMessage _decode(ByteBuffer payload, boolean header, ParamSchemas schemas) throws InvalidMessageException {
+        ByteBuffer in = payload.duplicate();
+
+        try {
+            if(in.get() != BinaryCodec.VERSION) {
+                throw new InvalidMessageException("Not a binary message");
+            }
+
+            int flags = in.get() & 0xFF;
+            SerializableMessage message = new SerializableMessage();
+
+            if((flags & BinaryCodec.FLAG_REQUEST) != 0) {
+                message.request = BinaryCodec._readString(in);
+            }
+            if((flags & BinaryCodec.FLAG_SUCCESS) != 0) {
+                message.success = (flags & BinaryCodec.FLAG_SUCCEEDED) != 0;
+            }
+            if((flags & BinaryCodec.FLAG_ID) != 0) {
+                message.id = BinaryCodec._readId(in);
+            }
+            if((flags & BinaryCodec.FLAG_RESPONSE_TO) != 0) {
+                message.responseTo = BinaryCodec._readId(in);
+            }
+            if((flags & BinaryCodec.FLAG_PARAMS) != 0 && header) {
+                message.encodedParams = BinaryCodec._skipParams(in, schemas);
+            }
+            else if((flags & BinaryCodec.FLAG_PARAMS) != 0) {
+                message.params = BinaryCodec._readParams(in, message.request, schemas);
+            }
+            if((flags & BinaryCodec.FLAG_UPGRADES) != 0) {
+                message.upgrades = new String[BinaryCodec._readLength(in)];
+                for(int i = 0; i < message.upgrades.length; i++) {
+                    message.upgrades[i] = BinaryCodec._readString(in);
+                }
+            }
+
+            if(in.hasRemaining()) {
+                throw new InvalidMessageException("Trailing bytes after binary message");
+            }
+
+            return message;
+        }
+        catch(BufferUnderflowException e) {
+            throw new InvalidMessageException("Binary message truncated");
+        }
+        catch(JsonParseException e) {
+            throw new InvalidMessageException("JSON param parsing failed: " + e.getMessage());
+        }
+    }
+
+    private static Object[] _readParams(ByteBuffer in, String request, ParamSchemas schemas) throws InvalidMessageException {
+        Type[] schema = ParamSchemas.get(schemas, request);
+        Object[] params = new Object[BinaryCodec._readLength(in)];
+
+        for(int i = 0; i < params.length; i++) {
+            params[i] = BinaryCodec._readParam(in, ParamSchemas.typeOf(schema, i));
+        }
+
+        return params;
+    }
+
+    /**
+     * Finds the end of the params and copies them out of
+     * the payload so they can be decoded later
+     */
+    private static BinaryParams _skipParams(ByteBuffer in, ParamSchemas schemas) throws InvalidMessageException {
+        int start = in.position();
+        int size = BinaryCodec._readLength(in);
+
+        for(int i = 0; i < size; i++) {
+            BinaryCodec._skipValue(in, 0);
+        }
+
+        byte[] params = new byte[in.position() - start];
+        in.position(start);
+        in.get(params);
+
+        return new BinaryParams(params, schemas);
+    }
+
+    private static void _writeId(Output out, String id) {
+        if(!BinaryCodec._isCanonicalNumber(id)) { //not one of ours, send it as it is
+            out.writeByte(BinaryCodec.ID_TEXT);
+            out.writeString(id);
+        }
+        else if(id.length() <= 12) { //12 base 32 digits is 60 bits, always fits in a long
+            out.writeByte(BinaryCodec.ID_NUMBER);
+            out.writeVarint(Long.parseLong(id, 32));
+        }
+        else {
+            byte[] magnitude = new BigInteger(id, 32).toByteArray();
+            out.writeByte(BinaryCodec.ID_BIG);
+            out.writeVarint(magnitude.length);
+            out.writeBytes(magnitude, 0, magnitude.length);
+        }
+    }
+
+    private static String _readId(ByteBuffer in) throws InvalidMessageException {
+        byte type = in.get();
+
+        if(type == BinaryCodec.ID_NUMBER) {
+            return Long.toString(BinaryCodec._readVarint(in), 32);
+        }
+        else if(type == BinaryCodec.ID_BIG) {
+            byte[] magnitude = new byte[BinaryCodec._readLength(in)];
+            in.get(magnitude);
+            return new BigInteger(1, magnitude).toString(32);
+        }
+        else if(type == BinaryCodec.ID_TEXT) {
+            return BinaryCodec._readString(in);
+        }
+
+        throw new InvalidMessageException("Unknown id type " + type);
+    }
+
+    /**
+     * Gets whether the id is a base 32 number written the way
+     * BigInteger / Long write them, so it can be sent as a number
+     * and still come out as exactly the same string
+     */
+    private static boolean _isCanonicalNumber(String id) {
+        if(id.isEmpty() || (id.length() > 1 && id.charAt(0) == '0')) {
+            return false;
+        }
+
+        for(int i = 0; i < id.length(); i++) {
+            char c = id.charAt(i);
+            if(!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'v')) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static void _writeValue(Output out, Object value, int depth) throws IOException {
+        if(depth > BinaryCodec.MAX_DEPTH) {
+            throw new IOException("Params nested too deeply to encode");
+        }
+
+        if(value == null) {
+            out.writeByte(BinaryCodec.TYPE_NULL);
+        }
+        else if(value instanceof String) {
+            out.writeByte(BinaryCodec.TYPE_STRING);
+            out.writeString((String) value);
+        }
+        else if(value instanceof Boolean) {
+            out.writeByte((Boolean) value ? BinaryCodec.TYPE_TRUE : BinaryCodec.TYPE_FALSE);
+        }
+        else if(value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.writeByte(BinaryCodec.TYPE_INT);
+            out.writeVarint(BinaryCodec._zigZag(((Number) value).longValue()));
+        }
+        else if(value instanceof Long) {
+            out.writeByte(BinaryCodec.TYPE_LONG);
+            out.writeVarint(BinaryCodec._zigZag((Long) value));
+        }
+        else if(value instanceof Double) {
+            out.writeByte(BinaryCodec.TYPE_DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        }
+        else if(value instanceof Float) {
+            out.writeByte(BinaryCodec.TYPE_FLOAT);
+            out.writeInt(Float.floatToIntBits((Float) value));
+        }
+        else if(value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BinaryCodec.TYPE_BYTES);
+            out.writeVarint(bytes.length);
+            out.writeBytes(bytes, 0, bytes.length);
+        }
+        else if(value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            out.writeByte(BinaryCodec.TYPE_LIST);
+            out.writeVarint(values.length);
+            for(Object item : values) {
+                BinaryCodec._writeValue(out, item, depth + 1);
+            }
+        }
+        else if(value instanceof Collection) {
+            Collection<?> values = (Collection<?>) value;
+            out.writeByte(BinaryCodec.TYPE_LIST);
+            out.writeVarint(values.size());
+            for(Object item : values) {
+                BinaryCodec._writeValue(out, item, depth + 1);
+            }
+        }
+        else if(value instanceof Map) {
+            Map<?, ?> values = (Map<?, ?>) value;
+            out.writeByte(BinaryCodec.TYPE_MAP);
+            out.writeVarint(values.size());
+            for(Map.Entry<?, ?> entry : values.entrySet()) {
+                out.writeString(String.valueOf(entry.getKey())); //JSON keys are always strings too
+                BinaryCodec._writeValue(out, entry.getValue(), depth + 1);
+            }
+        }
+        else if(value instanceof Character || value instanceof Enum) {
+            out.writeByte(BinaryCodec.TYPE_STRING);
+            out.writeString(value instanceof Enum ? ((Enum<?>) value).name() : value.toString());
+        }
+        else { //an object of the application's, leave it to Gson
+            out.writeByte(BinaryCodec.TYPE_JSON);
+            out.writeString(BinaryCodec._gson.toJson(value));
+        }
+    }
+
+    /**
+     * Reads a param as the type registered for it, objects sent as
+     * JSON are decoded straight into the type and anything that
+     * isn't already an instance of it is converted by Gson
+     */
+    private static Object _readParam(ByteBuffer in, Type type) throws InvalidMessageException {
+        if(type == null) {
+            return BinaryCodec._readValue(in, 0);
+        }
+        else if(in.get(in.position()) == BinaryCodec.TYPE_JSON) {
+            in.get();
+            return BinaryCodec._gson.fromJson(BinaryCodec._readString(in), type);
+        }
+
+        Object value = BinaryCodec._readValue(in, 0);
+        Class<?> raw = TypeToken.get(type).getRawType();
+
+        if(value == null || (raw.isInstance(value) && !(type instanceof ParameterizedType))) {
+            return value;
+        }
+
+        return BinaryCodec._gson.fromJson(BinaryCodec._gson.toJsonTree(value), type);
+    }
+
+    private static Object _readValue(ByteBuffer in, int depth) throws InvalidMessageException {
+        if(depth > BinaryCodec.MAX_DEPTH) {
+            throw new InvalidMessageException("Params nested too deeply");
+        }
+
+        byte type = in.get();
+
+        switch(type) {
+            case BinaryCodec.TYPE_NULL:
+                return null;
+            case BinaryCodec.TYPE_TRUE:
+                return Boolean.TRUE;
+            case BinaryCodec.TYPE_FALSE:
+                return Boolean.FALSE;
+            case BinaryCodec.TYPE_INT:
+                return (int) BinaryCodec._unZigZag(BinaryCodec._readVarint(in));
+            case BinaryCodec.TYPE_LONG:
+                return BinaryCodec._unZigZag(BinaryCodec._readVarint(in));
+            case BinaryCodec.TYPE_DOUBLE:
+                return Double.longBitsToDouble(in.getLong());
+            case BinaryCodec.TYPE_FLOAT:
+                return Float.intBitsToFloat(in.getInt());
+            case BinaryCodec.TYPE_STRING:
+                return BinaryCodec._readString(in);
+            case BinaryCodec.TYPE_BYTES: {
+                byte[] bytes = new byte[BinaryCodec._readLength(in)];
+                in.get(bytes);
+                return bytes;
+            }
+            case BinaryCodec.TYPE_LIST: {
+                int size = BinaryCodec._readLength(in);
+                List<Object> values = new ArrayList<Object>(size);
+                for(int i = 0; i < size; i++) {
+                    values.add(BinaryCodec._readValue(in, depth + 1));
+                }
+                return values;
+            }
+            case BinaryCodec.TYPE_MAP: {
+                int size = BinaryCodec._readLength(in);
+                Map<String, Object> values = new LinkedHashMap<String, Object>();
+                for(int i = 0; i < size; i++) {
+                    String key = BinaryCodec._readString(in);
+                    values.put(key, BinaryCodec._readValue(in, depth + 1));
+                }
+                return values;
+            }
+            case BinaryCodec.TYPE_JSON:
+                return BinaryCodec._gson.fromJson(BinaryCodec._readString(in), Object.class);
+            default:
+                throw new InvalidMessageException("Unknown param type " + type);
+        }
+    }
+
+    /**
+     * Moves past a value without decoding it, checking only
+     * that it is all there
+     */
+    private static void _skipValue(ByteBuffer in, int depth) throws InvalidMessageException {
+        if(depth > BinaryCodec.MAX_DEPTH) {
+            throw new InvalidMessageException("Params nested too deeply");
+        }
+
+        byte type = in.get();
+
+        switch(type) {
+            case BinaryCodec.TYPE_NULL:
+            case BinaryCodec.TYPE_TRUE:
+            case BinaryCodec.TYPE_FALSE:
+                return;
+            case BinaryCodec.TYPE_INT:
+            case BinaryCodec.TYPE_LONG:
+                BinaryCodec._readVarint(in);
+                return;
+            case BinaryCodec.TYPE_DOUBLE:
+                BinaryCodec._skip(in, 8);
+                return;
+            case BinaryCodec.TYPE_FLOAT:
+                BinaryCodec._skip(in, 4);
+                return;
+            case BinaryCodec.TYPE_STRING:
+            case BinaryCodec.TYPE_BYTES:
+            case BinaryCodec.TYPE_JSON:
+                BinaryCodec._skip(in, BinaryCodec._readLength(in));
+                return;
+            case BinaryCodec.TYPE_LIST: {
+                int size = BinaryCodec._readLength(in);
+                for(int i = 0; i < size; i++) {
+                    BinaryCodec._skipValue(in, depth + 1);
+                }
+                return;
+            }
+            case BinaryCodec.TYPE_MAP: {
+                int size = BinaryCodec._readLength(in);
+                for(int i = 0; i < size; i++) {
+                    BinaryCodec._skip(in, BinaryCodec._readLength(in));
+                    BinaryCodec._skipValue(in, depth + 1);
+                }
+                return;
+            }
+            default:
+                throw new InvalidMessageException("Unknown param type " + type);
+        }
+    }
+
+    private static void _skip(ByteBuffer in, int length) {
+        if(length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        in.position(in.position() + length);
+    }
+
+    private static String _readString(ByteBuffer in) throws InvalidMessageException {
+        int length = BinaryCodec._readLength(in);
+        String value;
+
+        if(in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, JsonCodec.CHARSET);
+            in.position(in.position() + length);
+        }
+        else {
+            byte[] bytes = new byte[length];
+            in.get(bytes);
+            value = new String(bytes, JsonCodec.CHARSET);
+        }
+
+        return value;
+    }
+
+    /**
+     * Reads a varint that is used as the size of something that
+     * follows, a size larger than the bytes left can't be valid
+     * so is rejected before anything is allocated for it
+     */
+    private static int _readLength(ByteBuffer in) throws InvalidMessageException {
+        long length = BinaryCodec._readVarint(in);
+
+        if(length < 0 || length > in.remaining()) {
+            throw new InvalidMessageException("Invalid length " + length);
+        }
+
+        return (int) length;
+    }
+
+    private static long _readVarint(ByteBuffer in) throws InvalidMessageException {
+        long value = 0;
+
+        for(int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new InvalidMessageException("Varint too long");
+    }
+
+    private static long _zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long _unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Binary params copied out of the message they came in,
+     * starting with their count
+     */
+    private static class BinaryParams extends EncodedParams
+    {
+        private final byte[]       _params;
+        private final ParamSchemas _schemas;
+
+        BinaryParams(byte[] params, ParamSchemas schemas) {
+            this._params = params;
+            this._schemas = schemas;
+        }
+
+        @Override
+        public int size() {
+            return this._params.length;
+        }
+
+        @Override
+        public Object[] decode(String request) throws InvalidMessageException {
+            try {
+                return BinaryCodec._readParams(ByteBuffer.wrap(this._params), request, this._schemas);
+            }
+            catch(BufferUnderflowException e) {
+                throw new InvalidMessageException("Binary message truncated");
+            }
+            catch(JsonParseException e) {
+                throw new InvalidMessageException("JSON param parsing failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A growable byte array, not synchronized unlike
+     * ByteArrayOutputStream as it is only used by one encode
+     */
+    private static class Output
+    {
+        private byte[] _bytes = new byte[128];
+        private int    _size;
+
+        void writeByte(int value) {
+            this._ensure(1);
+            this._bytes[this._size++] = (byte) value;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int length) {
+            this._ensure(length);
+            System.arraycopy(bytes, offset, this._bytes, this._size, length);
+            this._size += length;
+        }
+
+        void writeInt(int value) {
+            this._ensure(4);
+            for(int shift = 24; shift >= 0; shift -= 8) {
+                this._bytes[this._size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeLong(long value) {
+            this._ensure(8);
+            for(int shift = 56; shift >= 0; shift -= 8) {
+                this._bytes[this._size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeVarint(long value) {
+            this._ensure(10);
+            while((value & ~0x7FL) != 0) {
+                this._bytes[this._size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            this._bytes[this._size++] = (byte) value;
+        }
+
+        void writeString(String value) {
+            int length = value.length();
+
+            this._ensure(5 + length);
+            int start = this._size;
+            this.writeVarint(length); //guess it's all ASCII, so the byte length is the char length
+
+            for(int i = 0; i < length; i++) {
+                char c = value.charAt(i);
+                if(c >= 0x80) { //not ASCII after all, start again the slow way
+                    this._size = start;
+                    byte[] bytes = value.getBytes(JsonCodec.CHARSET);
+                    this.writeVarint(bytes.length);
+                    this.writeBytes(bytes, 0, bytes.length);
+                    return;
+                }
+                this._bytes[this._size++] = (byte) c;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(this._bytes, this._size);
+        }
+
+        private void _ensure(int needed) {
+            if(this._size + needed > this._bytes.length) {
+                this._bytes = Arrays.copyOf(this._bytes, Math.max(this._bytes.length * 2, this._size + needed));
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+
+/**
+ * The params of a received message left as they were sent,
+ * copied out of the connection's buffer, so that messages
+ * that are dropped or that nothing reads the params of never
+ * pay for decoding them
+ */
+public abstract class EncodedParams
+{
+    /**
+     * Gets the number of bytes the params take up
+     *
+     * @return The size of the encoded params
+     */
+    public abstract int size();
+
+    /**
+     * Decodes the params, as the types registered for the request
+     * in the ParamSchemas given to decodeHeader if there are any
+     *
+     * @param request The request of the message the params are for
+     * @return The params
+     * @throws InvalidMessageException The params are not valid
+     */
+    public abstract Object[] decode(@Nullable String request) throws InvalidMessageException;
+}
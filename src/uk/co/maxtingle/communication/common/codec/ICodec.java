@@ -0,0 +1,62 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns messages into the bytes sent between the client
+ * and server and back again. Implementations must be safe
+ * to use from several threads at once as one instance is
+ * shared by every client it is configured on
+ */
+public interface ICodec
+{
+    /**
+     * Gets the name of the codec used when negotiating it,
+     * must be unique among the codecs a server offers
+     *
+     * @return The name of the codec
+     */
+    String getName();
+
+    /**
+     * Encodes a message into its payload, without any framing
+     *
+     * @param message The message to encode
+     * @return The encoded message
+     * @throws IOException The message contains something that can't be encoded
+     */
+    byte[] encode(@NotNull SerializableMessage message) throws IOException;
+
+    /**
+     * Decodes a single payload, the payload's position and limit
+     * mark out the message and may share memory with the connection's
+     * buffer so nothing should be kept hold of after returning.
+     * Params are decoded generically
+     *
+     * @param payload The payload to decode
+     * @return The decoded message
+     * @throws InvalidMessageException The payload is not a valid message
+     */
+    SerializableMessage decode(@NotNull ByteBuffer payload) throws InvalidMessageException;
+
+    /**
+     * Decodes everything but the params of a single payload, which
+     * may be left in encodedParams to be decoded once something needs
+     * them, as the types in schemas. Codecs that can't do so decode
+     * the whole message
+     *
+     * @param payload The payload to decode
+     * @param schemas The types to decode the params of each request as, may be null
+     * @return The decoded message, with either params or encodedParams set if it has any
+     * @throws InvalidMessageException The payload is not a valid message
+     */
+    default SerializableMessage decodeHeader(@NotNull ByteBuffer payload, @Nullable ParamSchemas schemas) throws InvalidMessageException {
+        return this.decode(payload);
+    }
+}
@@ -0,0 +1,174 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The original codec, messages are sent as UTF-8 JSON
+ * using Gson. Every peer understands it, so it is always
+ * used until both ends have agreed on something else.
+ * Params are decoded as the types registered for the message's
+ * request in the ParamSchemas given to decodeHeader, Double /
+ * String / Boolean / LinkedTreeMap / ArrayList otherwise
+ */
+public class JsonCodec implements ICodec
+{
+    /** The name of the JSON codec */
+    public static final String NAME = "json";
+
+    /** The charset JSON messages are sent in */
+    public static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private static final Gson _gson = new GsonBuilder().registerTypeAdapterFactory(MessageTypeAdapter.FACTORY).create();
+
+    @Override
+    public String getName() {
+        return JsonCodec.NAME;
+    }
+
+    @Override
+    public byte[] encode(@NotNull SerializableMessage message) {
+        return JsonCodec.toJson(message).getBytes(JsonCodec.CHARSET);
+    }
+
+    @Override
+    public SerializableMessage decode(@NotNull ByteBuffer payload) throws InvalidMessageException {
+        return JsonCodec._fromJson(new Utf8Reader(payload.duplicate()), null); //straight from the bytes, never a String of the whole message
+    }
+
+    @Override
+    public SerializableMessage decodeHeader(@NotNull ByteBuffer payload, @Nullable ParamSchemas schemas) throws InvalidMessageException {
+        SerializableMessage message = JsonHeaderReader.read(payload, schemas);
+        return message == null ? JsonCodec._fromJson(new Utf8Reader(payload.duplicate()), schemas) : message; //not strict JSON, Gson is more forgiving
+    }
+
+    /**
+     * Converts a message to its JSON string
+     *
+     * @param message The message to convert
+     * @return The JSON string
+     */
+    public static String toJson(@NotNull SerializableMessage message) {
+        return JsonCodec._gson.toJson(message);
+    }
+
+    /**
+     * Parses a message from its JSON string
+     *
+     * @param json The JSON string
+     * @return The message
+     * @throws InvalidMessageException JSON parsing of the message failed
+     */
+    public static SerializableMessage fromJson(@NotNull String json) throws InvalidMessageException {
+        return JsonCodec._fromJson(new StringReader(json), null);
+    }
+
+    /**
+     * Reads a message as Gson.fromJson would, but through
+     * the adapter directly so it can be given the schemas
+     */
+    private static SerializableMessage _fromJson(Reader json, ParamSchemas schemas) throws InvalidMessageException {
+        JsonReader reader = new JsonReader(json);
+        reader.setLenient(true); //as Gson.fromJson is
+        boolean empty = true;
+
+        try {
+            reader.peek();
+            empty = false;
+            SerializableMessage message = JsonCodec._adapter().read(reader, schemas);
+
+            if(message == null) {
+                throw new InvalidMessageException("Empty message");
+            }
+            else if(reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new InvalidMessageException("JSON parsing failed: JSON document was not fully consumed.");
+            }
+
+            return message;
+        }
+        catch(EOFException e) {
+            throw new InvalidMessageException(empty ? "Empty message" : "JSON parsing failed: " + e.getMessage());
+        }
+        catch(JsonParseException e) { //includes params that aren't the types registered for the request
+            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        }
+        catch(IllegalStateException e) { //a param of the wrong kind of value for its type
+            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        }
+        catch(IOException e) {
+            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Decodes the params of a message left encoded by decodeHeader
+     *
+     * @param json    The params array as UTF-8 JSON
+     * @param request The request of the message
+     * @param schemas The types to decode the params of each request as, may be null
+     * @return The params
+     * @throws InvalidMessageException The params aren't valid or aren't the types registered for the request
+     */
+    static Object[] decodeParams(@NotNull byte[] json, String request, @Nullable ParamSchemas schemas) throws InvalidMessageException {
+        JsonReader reader = new JsonReader(new Utf8Reader(ByteBuffer.wrap(json)));
+        reader.setLenient(true); //as fromJson is
+
+        try {
+            return JsonCodec._adapter().readParams(reader, ParamSchemas.get(schemas, request));
+        }
+        catch(JsonParseException e) {
+            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        }
+        catch(IllegalStateException e) { //a param of the wrong kind of value for its type
+            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        }
+        catch(IOException e) {
+            throw new InvalidMessageException("JSON parsing failed: " + e.getMessage());
+        }
+    }
+
+    private static MessageTypeAdapter _adapter() {
+        return (MessageTypeAdapter) JsonCodec._gson.getAdapter(SerializableMessage.class);
+    }
+
+    /**
+     * Decodes a payload into a UTF-8 string, without
+     * moving the payload's position
+     *
+     * @param payload The payload to decode
+     * @return The payload as a string
+     */
+    public static String toString(@NotNull ByteBuffer payload) {
+        if(payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(), JsonCodec.CHARSET);
+        }
+
+        return JsonCodec.CHARSET.decode(payload.duplicate()).toString();
+    }
+
+    /**
+     * Gets whether or not a payload looks like a JSON
+     * message, used to tell JSON apart from other codecs
+     * while a connection is switching between them
+     *
+     * @param payload The payload to check
+     * @return Whether the payload starts like a JSON object
+     */
+    public static boolean isJson(@NotNull ByteBuffer payload) {
+        return payload.hasRemaining() && payload.get(payload.position()) == '{';
+    }
+}
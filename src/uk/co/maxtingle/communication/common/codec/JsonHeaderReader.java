@@ -0,0 +1,424 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the fields of a JSON message other than the params
+ * straight from its bytes, only finding where the params start
+ * and end so they can be decoded later. Only understands the
+ * strict JSON this library writes, anything else (comments,
+ * single quotes and the rest of what Gson leniently accepts)
+ * makes it give up so the message is decoded fully instead
+ */
+final class JsonHeaderReader
+{
+    private static final Charset ASCII     = Charset.forName("US-ASCII");
+    private static final int     MAX_DEPTH = 255;
+
+    private final byte[]       _bytes;
+    private final int          _end;
+    private final ParamSchemas _schemas;
+    private       int          _pos;
+
+    private JsonHeaderReader(byte[] bytes, int start, int end, ParamSchemas schemas) {
+        this._bytes = bytes;
+        this._schemas = schemas;
+        this._pos = start;
+        this._end = end;
+    }
+
+    /**
+     * Reads everything but the params of a message, without
+     * moving the payload's position
+     *
+     * @param payload The payload of the message
+     * @param schemas The types the params will be decoded as, may be null
+     * @return The message with the params left encoded, or null if the payload needs a full decode
+     */
+    static SerializableMessage read(@NotNull ByteBuffer payload, @Nullable ParamSchemas schemas) {
+        JsonHeaderReader reader;
+
+        if(payload.hasArray()) {
+            int start = payload.arrayOffset() + payload.position();
+            reader = new JsonHeaderReader(payload.array(), start, start + payload.remaining(), schemas);
+        }
+        else {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.duplicate().get(bytes);
+            reader = new JsonHeaderReader(bytes, 0, bytes.length, schemas);
+        }
+
+        try {
+            return reader._readMessage();
+        }
+        catch(IndexOutOfBoundsException e) {
+            return null; //truncated, let the full decode say why
+        }
+    }
+
+    private SerializableMessage _readMessage() {
+        SerializableMessage message = new SerializableMessage();
+
+        if(this._next() != '{') {
+            return null;
+        }
+
+        if(this._peek() == '}') {
+            this._pos++;
+        }
+        else {
+            while(true) {
+                if(this._next() != '"') {
+                    return null;
+                }
+
+                String name = this._readString();
+                if(name == null || this._next() != ':') {
+                    return null;
+                }
+
+                this._skipWhitespace();
+                if(!this._readField(message, name)) {
+                    return null;
+                }
+
+                byte separator = this._next();
+                if(separator == '}') {
+                    break;
+                }
+                else if(separator != ',') {
+                    return null;
+                }
+            }
+        }
+
+        return this._peek() == -1 ? message : null; //anything after the object is for the full decode to complain about
+    }
+
+    private boolean _readField(SerializableMessage message, String name) {
+        if(this._current() == 'n') {
+            return this._skipValue(0); //null, same as not being there
+        }
+        else if("params".equals(name)) {
+            int start = this._pos;
+
+            if(this._current() != '[' || !this._skipValue(0)) {
+                return false;
+            }
+
+            message.encodedParams = new JsonParams(this._bytes, start, this._pos, this._schemas);
+            return true;
+        }
+        else if("request".equals(name)) {
+            return (message.request = this._readScalar()) != null;
+        }
+        else if("id".equals(name)) {
+            return (message.id = this._readScalar()) != null;
+        }
+        else if("responseTo".equals(name)) {
+            return (message.responseTo = this._readScalar()) != null;
+        }
+        else if("success".equals(name)) {
+            String success = this._readScalar();
+            message.success = success == null ? null : Boolean.valueOf(success);
+            return success != null && (success.equals("true") || success.equals("false"));
+        }
+        else if("upgrades".equals(name)) {
+            return (message.upgrades = this._readStrings()) != null;
+        }
+
+        return this._skipValue(0); //nothing of ours
+    }
+
+    /**
+     * Reads a string, number or boolean as a string
+     * the way Gson's String adapter does
+     */
+    private String _readScalar() {
+        byte first = this._current();
+
+        if(first == '"') {
+            this._pos++;
+            return this._readString();
+        }
+
+        int start = this._pos;
+        if(!this._skipLiteral()) {
+            return null;
+        }
+
+        String literal = new String(this._bytes, start, this._pos - start, JsonHeaderReader.ASCII);
+        return literal.equals("null") ? null : literal; //only inside arrays, leave those to the full decode
+    }
+
+    private String[] _readStrings() {
+        if(this._next() != '[') {
+            return null;
+        }
+
+        List<String> values = new ArrayList<String>();
+        if(this._peek() == ']') {
+            this._pos++;
+            return new String[0];
+        }
+
+        while(true) {
+            this._skipWhitespace();
+            String value = this._readScalar();
+
+            if(value == null) {
+                return null;
+            }
+
+            values.add(value);
+
+            byte separator = this._next();
+            if(separator == ']') {
+                return values.toArray(new String[values.size()]);
+            }
+            else if(separator != ',') {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Reads a string whose opening quote has been read, pure ASCII
+     * strings without escapes are copied straight out of the bytes
+     */
+    private String _readString() {
+        int start = this._pos;
+
+        while(true) {
+            byte b = this._current();
+
+            if(b == '"') {
+                this._pos++;
+                return new String(this._bytes, start, this._pos - 1 - start, JsonHeaderReader.ASCII);
+            }
+            else if(b == '\\' || b < 0x20) { //escapes, non-ASCII (negative) and control characters
+                return this._readStringSlow(start);
+            }
+
+            this._pos++;
+        }
+    }
+
+    private String _readStringSlow(int start) {
+        StringBuilder value = new StringBuilder();
+        int run = start;
+
+        while(true) {
+            byte b = this._current();
+
+            if(b == '"' || b == '\\') {
+                value.append(new String(this._bytes, run, this._pos - run, JsonCodec.CHARSET)); //UTF-8 never uses " or \ inside a character
+                this._pos++;
+
+                if(b == '"') {
+                    return value.toString();
+                }
+
+                byte escaped = this._take();
+                switch(escaped) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        value.append((char) escaped);
+                        break;
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        int code = 0;
+                        for(int i = 0; i < 4; i++) {
+                            int digit = Character.digit(this._take(), 16);
+                            if(digit < 0) {
+                                return null;
+                            }
+                            code = (code << 4) | digit;
+                        }
+                        value.append((char) code);
+                        break;
+                    default:
+                        return null;
+                }
+
+                run = this._pos;
+            }
+            else if(b >= 0 && b < 0x20) {
+                return null; //control characters must be escaped
+            }
+            else {
+                this._pos++;
+            }
+        }
+    }
+
+    /**
+     * Skips over a value, checking only that its brackets and
+     * strings are closed, the full decode of the params checks
+     * the rest
+     */
+    private boolean _skipValue(int depth) {
+        if(depth > JsonHeaderReader.MAX_DEPTH) {
+            return false;
+        }
+
+        byte first = this._current();
+
+        if(first == '"') {
+            this._pos++;
+            while(true) {
+                byte b = this._take();
+
+                if(b == '"') {
+                    return true;
+                }
+                else if(b == '\\') {
+                    this._pos++;
+                }
+                else if(b >= 0 && b < 0x20) {
+                    return false;
+                }
+            }
+        }
+        else if(first == '[' || first == '{') {
+            byte close = first == '[' ? (byte) ']' : (byte) '}';
+            this._pos++;
+
+            if(this._peek() == close) {
+                this._pos++;
+                return true;
+            }
+
+            while(true) {
+                this._skipWhitespace();
+
+                if(first == '{') {
+                    if(this._next() != '"' || this._readString() == null || this._next() != ':') {
+                        return false;
+                    }
+                    this._skipWhitespace();
+                }
+
+                if(!this._skipValue(depth + 1)) {
+                    return false;
+                }
+
+                byte separator = this._next();
+                if(separator == close) {
+                    return true;
+                }
+                else if(separator != ',') {
+                    return false;
+                }
+            }
+        }
+
+        return this._skipLiteral();
+    }
+
+    private boolean _skipLiteral() {
+        int start = this._pos;
+
+        while(this._pos < this._end) {
+            byte b = this._current();
+
+            if((b >= '0' && b <= '9') || (b >= 'a' && b <= 'z') || b == '-' || b == '+' || b == '.' || b == 'E') {
+                this._pos++;
+            }
+            else {
+                break;
+            }
+        }
+
+        return this._pos > start;
+    }
+
+    private void _skipWhitespace() {
+        while(this._pos < this._end) {
+            byte b = this._current();
+
+            if(b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+
+            this._pos++;
+        }
+    }
+
+    /**
+     * Gets the next byte that isn't whitespace without moving past it
+     *
+     * @return The byte or -1 if there is nothing left
+     */
+    private int _peek() {
+        this._skipWhitespace();
+        return this._pos < this._end ? this._current() : -1;
+    }
+
+    private byte _next() {
+        this._skipWhitespace();
+        return this._take();
+    }
+
+    private byte _current() {
+        if(this._pos >= this._end) { //the array may carry on past the message
+            throw new IndexOutOfBoundsException("End of message");
+        }
+
+        return this._bytes[this._pos];
+    }
+
+    private byte _take() {
+        byte b = this._current();
+        this._pos++;
+        return b;
+    }
+
+    /**
+     * JSON params copied out of the message they came in
+     */
+    private static class JsonParams extends EncodedParams
+    {
+        private final byte[]       _json;
+        private final ParamSchemas _schemas;
+
+        JsonParams(byte[] bytes, int start, int end, ParamSchemas schemas) {
+            this._schemas = schemas;
+            this._json = new byte[end - start];
+            System.arraycopy(bytes, start, this._json, 0, this._json.length);
+        }
+
+        @Override
+        public int size() {
+            return this._json.length;
+        }
+
+        @Override
+        public Object[] decode(String request) throws InvalidMessageException {
+            return JsonCodec.decodeParams(this._json, request, this._schemas);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import uk.co.maxtingle.communication.common.SerializableMessage;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads and writes SerializableMessages as JSON field by field
+ * rather than by reflection, so the params can be decoded as the
+ * types registered for the message's request in a ParamSchemas
+ * in the same pass. The request is written before the params so
+ * that it is known by the time they are read, params sent before
+ * the request by other peers are kept as a JSON tree until it is
+ */
+class MessageTypeAdapter extends TypeAdapter<SerializableMessage>
+{
+    /**
+     * Creates the adapter for the Gson instances of the JSON codec
+     */
+    static final TypeAdapterFactory FACTORY = new TypeAdapterFactory()
+    {
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            return type.getRawType() == SerializableMessage.class ? (TypeAdapter<T>) new MessageTypeAdapter(gson) : null;
+        }
+    };
+
+    private final Gson                     _gson;
+    private final TypeAdapter<String>      _stringAdapter; //as lenient as reflection was, e.g. numbers as strings
+    private final TypeAdapter<Boolean>     _booleanAdapter;
+    private final TypeAdapter<Object>      _objectAdapter;
+    private final TypeAdapter<JsonElement> _treeAdapter;
+    private final TypeAdapter<Object[]>    _paramsAdapter;
+    private final TypeAdapter<String[]>    _upgradesAdapter;
+
+    private MessageTypeAdapter(Gson gson) {
+        this._gson = gson;
+        this._stringAdapter = gson.getAdapter(String.class);
+        this._booleanAdapter = gson.getAdapter(Boolean.class);
+        this._treeAdapter = gson.getAdapter(JsonElement.class);
+        this._objectAdapter = gson.getAdapter(Object.class);
+        this._paramsAdapter = gson.getAdapter(Object[].class);
+        this._upgradesAdapter = gson.getAdapter(String[].class);
+    }
+
+    @Override
+    public void write(JsonWriter out, SerializableMessage message) throws IOException {
+        if(message == null) {
+            out.nullValue();
+            return;
+        }
+
+        out.beginObject();
+
+        if(message.request != null) {
+            out.name("request").value(message.request);
+        }
+        if(message.success != null) {
+            out.name("success").value(message.success);
+        }
+        if(message.id != null) {
+            out.name("id").value(message.id);
+        }
+        if(message.responseTo != null) {
+            out.name("responseTo").value(message.responseTo);
+        }
+        if(message.params != null) {
+            out.name("params");
+            this._paramsAdapter.write(out, message.params);
+        }
+        if(message.upgrades != null) {
+            out.name("upgrades");
+            this._upgradesAdapter.write(out, message.upgrades);
+        }
+
+        out.endObject();
+    }
+
+    @Override
+    public SerializableMessage read(JsonReader in) throws IOException {
+        return this.read(in, null);
+    }
+
+    /**
+     * Reads a message, decoding its params as the types
+     * registered for its request in the schemas
+     *
+     * @param in      The reader at the start of the message
+     * @param schemas The types to decode the params of each request as, may be null
+     * @return The message, null if the JSON is null
+     * @throws IOException The JSON is malformed
+     */
+    SerializableMessage read(JsonReader in, ParamSchemas schemas) throws IOException {
+        if(in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+
+        SerializableMessage message = new SerializableMessage();
+        JsonElement early = null; //params that came before the request
+
+        in.beginObject();
+        while(in.hasNext()) {
+            String name = in.nextName();
+
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            }
+            else if("request".equals(name)) {
+                message.request = this._stringAdapter.read(in);
+            }
+            else if("success".equals(name)) {
+                message.success = this._booleanAdapter.read(in);
+            }
+            else if("id".equals(name)) {
+                message.id = this._stringAdapter.read(in);
+            }
+            else if("responseTo".equals(name)) {
+                message.responseTo = this._stringAdapter.read(in);
+            }
+            else if("upgrades".equals(name)) {
+                message.upgrades = this._upgradesAdapter.read(in);
+            }
+            else if(!"params".equals(name)) {
+                in.skipValue(); //nothing of ours
+            }
+            else if(message.request == null) {
+                early = this._treeAdapter.read(in);
+            }
+            else {
+                message.params = this.readParams(in, ParamSchemas.get(schemas, message.request));
+            }
+        }
+        in.endObject();
+
+        if(early != null) {
+            message.params = this._convertParams(early, ParamSchemas.get(schemas, message.request));
+        }
+
+        return message;
+    }
+
+    /**
+     * Reads a params array, used for params left encoded by JsonHeaderReader
+     *
+     * @param in     The reader at the start of the array
+     * @param schema The types registered for the message's request, may be null
+     * @return The params
+     * @throws IOException The JSON is malformed
+     */
+    Object[] readParams(JsonReader in, Type[] schema) throws IOException {
+        List<Object> params = new ArrayList<Object>(schema == null ? 4 : schema.length);
+
+        in.beginArray();
+        while(in.hasNext()) {
+            Type type = ParamSchemas.typeOf(schema, params.size());
+            params.add(type == null ? this._objectAdapter.read(in) : this._gson.getAdapter(TypeToken.get(type)).read(in));
+        }
+        in.endArray();
+
+        return params.toArray();
+    }
+
+    private Object[] _convertParams(JsonElement early, Type[] schema) {
+        if(!early.isJsonArray()) {
+            throw new JsonSyntaxException("params must be an array");
+        }
+
+        JsonArray array = early.getAsJsonArray();
+        Object[] params = new Object[array.size()];
+
+        for(int i = 0; i < params.length; i++) {
+            Type type = ParamSchemas.typeOf(schema, i);
+            JsonElement element = array.get(i);
+            params[i] = this._gson.fromJson(element, type == null ? Object.class : type);
+        }
+
+        return params;
+    }
+}
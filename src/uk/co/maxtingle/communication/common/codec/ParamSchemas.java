@@ -0,0 +1,80 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The types the params of each request should be decoded
+ * as, so the codecs can decode them straight into the classes
+ * the handlers want rather than into generic maps and doubles
+ * that then have to be converted again. Each server and client
+ * has its own, see ServerOptions.paramSchemas and
+ * BaseClient.paramSchemas. Params past the end of a request's
+ * types and the params of requests with no types registered are
+ * decoded generically as before. A param that can't be decoded
+ * as its type makes the whole message invalid
+ */
+public final class ParamSchemas
+{
+    private final Map<String, Type[]> _schemas = new ConcurrentHashMap<String, Type[]>();
+
+    /**
+     * Sets the types of the params of messages with the given
+     * request, replacing any already set. Generic types can be
+     * given with a TypeToken, e.g. new TypeToken&lt;List&lt;Item&gt;&gt;(){}.getType()
+     *
+     * @param request The request of the messages
+     * @param types   The type of each param in order, null for any that should be decoded generically
+     */
+    public void register(@NotNull String request, @NotNull Type... types) {
+        this._schemas.put(request, types.clone());
+    }
+
+    /**
+     * Stops decoding the params of messages with the
+     * given request into specific types
+     *
+     * @param request The request of the messages
+     */
+    public void unregister(@NotNull String request) {
+        this._schemas.remove(request);
+    }
+
+    /**
+     * Gets the types the params of messages with the
+     * given request are decoded as
+     *
+     * @param request The request of the message, may be null
+     * @return The types, which must not be changed, or null if none are registered
+     */
+    public Type[] get(@Nullable String request) {
+        return request == null ? null : this._schemas.get(request);
+    }
+
+    /**
+     * Gets the types the params of messages with the given
+     * request are decoded as, from schemas that may not be set
+     *
+     * @param schemas The schemas to look in, may be null
+     * @param request The request of the message, may be null
+     * @return The types or null if none are registered
+     */
+    static Type[] get(@Nullable ParamSchemas schemas, @Nullable String request) {
+        return schemas == null ? null : schemas.get(request);
+    }
+
+    /**
+     * Gets the type a single param should be decoded as
+     *
+     * @param schema The types of the message's params, may be null
+     * @param index  The index of the param
+     * @return The type or null if it should be decoded generically
+     */
+    static Type typeOf(@Nullable Type[] schema, int index) {
+        return schema == null || index >= schema.length ? null : schema[index];
+    }
+}
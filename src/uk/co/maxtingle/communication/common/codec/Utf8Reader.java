@@ -0,0 +1,133 @@
+package uk.co.maxtingle.communication.common.codec;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads the UTF-8 chars of a buffer straight out of it, so
+ * Gson can parse a payload as it decodes it rather than the
+ * whole payload being turned into a String first. Runs of
+ * ASCII, which is nearly everything in a message, are copied
+ * a byte to a char. Malformed bytes are read as U+FFFD, as
+ * they would be by new String, though not always as many of them
+ */
+final class Utf8Reader extends Reader
+{
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final ByteBuffer _in;
+    private       char       _lowSurrogate; //the second half of a 4 byte character that didn't fit in the last read
+
+    /**
+     * @param in The bytes to read, read from its position to its limit and moved along as they are read
+     */
+    Utf8Reader(@NotNull ByteBuffer in) {
+        this._in = in;
+    }
+
+    @Override
+    public int read(@NotNull char[] chars, int offset, int length) {
+        ByteBuffer in = this._in;
+        int end = offset + length;
+        int i = offset;
+
+        if(length == 0) {
+            return 0;
+        }
+
+        if(this._lowSurrogate != 0) {
+            chars[i++] = this._lowSurrogate;
+            this._lowSurrogate = 0;
+        }
+
+        while(i < end && in.hasRemaining()) {
+            byte b = in.get();
+
+            if(b >= 0) { //ASCII, carry on without the checks below while it lasts
+                chars[i++] = (char) b;
+
+                while(i < end && in.hasRemaining() && (b = in.get(in.position())) >= 0) {
+                    in.position(in.position() + 1);
+                    chars[i++] = (char) b;
+                }
+                continue;
+            }
+
+            int code = this._decode(b & 0xFF);
+
+            if(code < 0x10000) {
+                chars[i++] = (char) code;
+            }
+            else {
+                chars[i++] = Character.highSurrogate(code);
+
+                if(i < end) {
+                    chars[i++] = Character.lowSurrogate(code);
+                }
+                else {
+                    this._lowSurrogate = Character.lowSurrogate(code);
+                }
+            }
+        }
+
+        return i == offset ? -1 : i - offset;
+    }
+
+    /**
+     * Decodes a character that takes more than one byte
+     *
+     * @param lead The first byte of the character, already read
+     * @return The code point, or U+FFFD if the bytes aren't valid
+     */
+    private int _decode(int lead) {
+        int continuations;
+        int code;
+        int min = 0x80; //the second byte's lowest and highest values, narrower for some leads so nothing overlong or out of range gets through
+        int max = 0xBF;
+
+        if(lead >= 0xC2 && lead <= 0xDF) {
+            continuations = 1;
+            code = lead & 0x1F;
+        }
+        else if(lead >= 0xE0 && lead <= 0xEF) {
+            continuations = 2;
+            code = lead & 0x0F;
+            min = lead == 0xE0 ? 0xA0 : min;
+            max = lead == 0xED ? 0x9F : max; //surrogates can't be encoded
+        }
+        else if(lead >= 0xF0 && lead <= 0xF4) {
+            continuations = 3;
+            code = lead & 0x07;
+            min = lead == 0xF0 ? 0x90 : min;
+            max = lead == 0xF4 ? 0x8F : max;
+        }
+        else {
+            return Utf8Reader.REPLACEMENT;
+        }
+
+        for(int i = 0; i < continuations; i++) {
+            if(!this._in.hasRemaining()) {
+                return Utf8Reader.REPLACEMENT;
+            }
+
+            int next = this._in.get(this._in.position()) & 0xFF;
+            if(next < min || next > max) {
+                return Utf8Reader.REPLACEMENT; //left for the next read, it may start a character of its own
+            }
+
+            this._in.position(this._in.position() + 1);
+            code = (code << 6) | (next & 0x3F);
+            min = 0x80;
+            max = 0xBF;
+        }
+
+        return code;
+    }
+
+    @Override
+    public void close() {
+        //nothing to release, the buffer belongs to whoever gave it
+    }
+}
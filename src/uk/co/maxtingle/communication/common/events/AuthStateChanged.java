@@ -1,8 +1,8 @@
 package uk.co.maxtingle.communication.common.events;
 
-import com.sun.istack.internal.NotNull;
 import uk.co.maxtingle.communication.common.AuthState;
 import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
 
 /**
  * A delegate wrapper for the auth state changed event
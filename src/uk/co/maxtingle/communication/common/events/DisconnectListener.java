@@ -1,7 +1,7 @@
 package uk.co.maxtingle.communication.common.events;
 
-import com.sun.istack.internal.NotNull;
 import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
 
 /**
  * A delegate wrapper for when a client disconnects
@@ -1,8 +1,8 @@
 package uk.co.maxtingle.communication.common.events;
 
-import com.sun.istack.internal.NotNull;
 import uk.co.maxtingle.communication.common.BaseClient;
 import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
 
 /**
  * A delegate event wrapper for when the server / client
@@ -0,0 +1,22 @@
+package uk.co.maxtingle.communication.common.events;
+
+import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+/**
+ * A delegate event wrapper for when the messages waiting
+ * to be written to the server / client pass the high water
+ * mark or fall back to the low water mark
+ */
+public interface WritabilityChanged
+{
+    /**
+     * The method / event handler to run when the client stops or
+     * starts being writable, run on whichever thread caused the
+     * change so it should return quickly
+     *
+     * @param client   The client whose writability changed
+     * @param writable Whether messages should be sent again
+     */
+    void onWritabilityChanged(@NotNull BaseClient client, boolean writable);
+}
@@ -1,6 +1,6 @@
 package uk.co.maxtingle.communication.common.exception;
 
-import com.sun.istack.internal.Nullable;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
 
 /**
  * An exception class that is fired when the user
@@ -0,0 +1,393 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection over a SocketChannel that is
+ * driven by an EventLoop. Reads are split into frames by a
+ * FrameDecoder and passed to the IConnectionListener.
+ * Writes are added to an OutboundQueue from any thread without
+ * locking and drained by the loop in batches with a single
+ * gathering write, once the loop has finished its current work,
+ * once the flush delay has passed or straight away if the flush
+ * buffer size is reached. Anything the socket couldn't take is
+ * finished off when it becomes writable again
+ */
+public class ChannelConnection implements IConnection, IChannelHandler
+{
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_GATHER          = 1024; //the most buffers most OSes take in one write
+
+    private final SocketChannel                    _channel;
+    private final EventLoop                        _loop;
+    private final FrameDecoder                     _decoder;
+    private final OutboundQueue                    _outbound      = new OutboundQueue();
+    private final ArrayDeque<OutboundQueue.Entry> _pendingWrites = new ArrayDeque<OutboundQueue.Entry>(); //only touched by the loop
+    private final AtomicBoolean                    _closed        = new AtomicBoolean(false);
+    private final ByteBuffer[]                     _gather        = new ByteBuffer[ChannelConnection.MAX_GATHER];
+    private final Runnable                         _drainTask     = new Runnable()
+    {
+        @Override
+        public void run() {
+            if(ChannelConnection.this._outbound.startDrain()) {
+                ChannelConnection.this._drain();
+            }
+        }
+    };
+    private final Runnable                         _closeTask     = new Runnable()
+    {
+        @Override
+        public void run() {
+            ChannelConnection.this._closeFromLoop(null, false);
+        }
+    };
+
+    private IConnectionListener _listener;
+    private SelectionKey        _key;
+    private ByteBuffer          _readBuffer = ByteBuffer.allocate(ChannelConnection.INITIAL_BUFFER_SIZE);
+    private boolean             _waitingForWritable; //only touched by the loop, the drain is kept claimed while waiting
+
+    /**
+     * Creates a new connection for the channel, nothing will be
+     * read until open is called
+     *
+     * @param channel        The connected channel
+     * @param loop           The loop to drive the channel with
+     * @param maxFrameLength The largest frame to accept
+     * @throws IOException Failed to switch the channel to non-blocking mode
+     */
+    public ChannelConnection(@NotNull SocketChannel channel, @NotNull EventLoop loop, int maxFrameLength) throws IOException {
+        this._channel = channel;
+        this._loop = loop;
+        this._decoder = new FrameDecoder(maxFrameLength);
+        this._channel.configureBlocking(false);
+    }
+
+    /**
+     * Gets the channel this connection is using
+     *
+     * @return The channel
+     */
+    public SocketChannel getChannel() {
+        return this._channel;
+    }
+
+    /**
+     * Gets the loop driving this connection
+     *
+     * @return The event loop
+     */
+    public EventLoop getEventLoop() {
+        return this._loop;
+    }
+
+    /**
+     * Registers the connection with its loop and starts
+     * passing read frames to the listener
+     *
+     * @param listener The listener to send frames to
+     */
+    public void open(@NotNull final IConnectionListener listener) {
+        this._listener = listener;
+        this._loop.execute(new Runnable()
+        {
+            @Override
+            public void run() {
+                ChannelConnection.this._register();
+            }
+        });
+    }
+
+    /**
+     * Queues the payload to be framed and drained by the loop
+     * with whatever else has been written by then. Safe to call
+     * from any thread
+     *
+     * @param payload  The encoded message
+     * @param switchTo The framing to switch to after this frame, or null to keep it
+     * @param written  Completed once the frame is written, may be null
+     * @throws IOException The connection is closed
+     */
+    @Override
+    public void write(@NotNull byte[] payload, @Nullable Framing switchTo, @Nullable CompletableFuture<Void> written) throws IOException {
+        this._write(new OutboundQueue.Entry(payload, null, switchTo, written));
+    }
+
+    @Override
+    public void write(@NotNull EncodedFrame frame, @Nullable CompletableFuture<Void> written) throws IOException {
+        this._write(new OutboundQueue.Entry(null, frame, null, written));
+    }
+
+    @Override
+    public void setFlushPolicy(int flushBufferSize, long flushDelayMicros) {
+        this._outbound.setFlushPolicy(flushBufferSize, flushDelayMicros);
+    }
+
+    @Override
+    public void setWriteBufferWaterMarks(int low, int high) {
+        this._outbound.setWaterMarks(low, high);
+    }
+
+    @Override
+    public void setWritabilityListener(@Nullable IWritabilityListener listener) {
+        this._outbound.setWritabilityListener(listener);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return this._outbound.isWritable();
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return this._outbound.getPendingBytes();
+    }
+
+    @Override
+    public Framing getOutboundFraming() {
+        return this._outbound.getFraming();
+    }
+
+    @Override
+    public Framing getInboundFraming() {
+        return this._decoder.getFraming();
+    }
+
+    @Override
+    public void setInboundFraming(@NotNull Framing framing) {
+        this._decoder.setFraming(framing);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this._closed.get() && this._channel.isOpen();
+    }
+
+    /**
+     * Stops any more writes being queued and has the loop write
+     * whatever of the queued frames the socket will take straight
+     * away before closing the channel, without notifying the listener.
+     * Anything that couldn't be written has its future failed
+     *
+     * @throws IOException Failed to close the channel
+     */
+    @Override
+    public void close() throws IOException {
+        if(!this._closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        if(this._loop.inEventLoop()) {
+            this._closeFromLoop(null, false);
+        }
+        else if(this._loop.isRunning()) {
+            this._loop.execute(this._closeTask); //after anything already queued so a reply sent just before disconnecting isn't lost
+        }
+        else {
+            this._channel.close(); //nothing left to drain it
+        }
+    }
+
+    @Override
+    public void onReady(@NotNull SelectionKey key) throws Exception {
+        try {
+            if(key.isWritable() && this._waitingForWritable) {
+                this._waitingForWritable = false;
+                key.interestOps(SelectionKey.OP_READ);
+                this._drain(); //still holds the claim from when the socket filled up
+            }
+
+            if(key.isValid() && key.isReadable()) {
+                this._read();
+            }
+        }
+        catch(Exception e) {
+            this._closeFromLoop(e, true);
+        }
+    }
+
+    private void _write(OutboundQueue.Entry entry) throws IOException {
+        if(this._closed.get()) {
+            throw new IOException("Connection closed");
+        }
+
+        switch(this._outbound.add(entry)) {
+            case OutboundQueue.DRAIN_NOW:
+                this._loop.execute(this._drainTask); //ran after the loop's current work, so anything else written by then goes too
+                break;
+            case OutboundQueue.DRAIN_LATER:
+                this._loop.schedule(this._drainTask, this._outbound.getFlushDelayMicros(), TimeUnit.MICROSECONDS);
+                break;
+        }
+
+        if(this._closed.get()) { //closed while adding, make sure the entry isn't left waiting forever
+            this._loop.execute(this._closeTask);
+        }
+    }
+
+    /**
+     * Drains the queue into the socket until it is empty or the socket
+     * is full, must be called on the loop while holding the drain claim
+     */
+    private void _drain() {
+        try {
+            while(!this._closed.get()) {
+                this._takeQueued();
+
+                if(this._pendingWrites.isEmpty()) {
+                    int wake = this._outbound.finishDrain();
+
+                    if(wake == OutboundQueue.DRAIN_LATER) {
+                        this._loop.schedule(this._drainTask, this._outbound.getFlushDelayMicros(), TimeUnit.MICROSECONDS);
+                    }
+
+                    if(wake != OutboundQueue.DRAIN_NOW || !this._outbound.startDrain()) {
+                        return;
+                    }
+                }
+                else if(!this._flush()) {
+                    this._waitingForWritable = true; //socket is full, carry on with the next writable event
+                    if(this._key != null && this._key.isValid()) {
+                        this._key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            }
+        }
+        catch(IOException e) {
+            this._closeFromLoop(e, true);
+        }
+    }
+
+    private void _takeQueued() {
+        OutboundQueue.Entry entry;
+
+        while((entry = this._outbound.poll()) != null) {
+            entry.frame = this._outbound.frame(entry);
+
+            if(entry.frame != null) {
+                this._pendingWrites.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Writes as many of the frames taken from the queue as the
+     * socket will take using gathering writes
+     *
+     * @return Whether everything taken was written
+     */
+    private boolean _flush() throws IOException {
+        while(!this._pendingWrites.isEmpty()) {
+            int count = 0;
+            for(OutboundQueue.Entry entry : this._pendingWrites) {
+                this._gather[count++] = entry.frame;
+
+                if(count == ChannelConnection.MAX_GATHER) {
+                    break;
+                }
+            }
+
+            long written = this._channel.write(this._gather, 0, count);
+
+            for(int i = 0; i < count; i++) {
+                this._gather[i] = null;
+            }
+
+            while(!this._pendingWrites.isEmpty() && !this._pendingWrites.peek().frame.hasRemaining()) {
+                this._outbound.written(this._pendingWrites.poll());
+            }
+
+            if(!this._pendingWrites.isEmpty() && (written == 0 || count < ChannelConnection.MAX_GATHER)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private void _register() {
+        if(this._closed.get()) {
+            return;
+        }
+
+        int ops = SelectionKey.OP_READ;
+        if(this._waitingForWritable) {
+            ops |= SelectionKey.OP_WRITE;
+        }
+
+        try {
+            this._key = this._channel.register(this._loop.getSelector(), ops, this);
+        }
+        catch(IOException e) {
+            this._closeFromLoop(e, true);
+        }
+    }
+
+    private void _read() throws Exception {
+        int read = this._channel.read(this._readBuffer);
+
+        if(read == -1) {
+            this._closeFromLoop(null, true);
+            return;
+        }
+
+        this._readBuffer.flip();
+
+        ByteBuffer frame;
+        while(!this._closed.get() && (frame = this._decoder.next(this._readBuffer)) != null) { //framing may change between frames
+            this._listener.onFrame(frame);
+        }
+
+        this._readBuffer = FrameDecoder.compact(this._readBuffer, ChannelConnection.INITIAL_BUFFER_SIZE);
+    }
+
+    /**
+     * Closes the channel from the loop, writing what the socket will
+     * take first if it is being closed on purpose and failing anything
+     * left. Safe to call more than once, late writes are failed too
+     *
+     * @param cause  Why the connection broke, null if it was closed normally
+     * @param notify Whether the connection broke rather than being closed, so the listener should be told
+     */
+    private void _closeFromLoop(Exception cause, boolean notify) {
+        boolean broke = notify && this._closed.compareAndSet(false, true); //closed on purpose first, nobody to tell
+
+        if(!notify && this._channel.isOpen()) {
+            try {
+                this._takeQueued();
+                this._flush(); //so a reply sent just before disconnecting isn't lost
+            }
+            catch(IOException e) {
+                //closing anyway
+            }
+        }
+
+        try {
+            this._channel.close(); //cancels the key too
+        }
+        catch(IOException e) {
+            //already broken, nothing more to do
+        }
+
+        IOException failure = new IOException("Connection closed", cause);
+        while(!this._pendingWrites.isEmpty()) {
+            this._outbound.failed(this._pendingWrites.poll(), failure);
+        }
+        this._outbound.failAll(failure);
+
+        if(broke) {
+            this._listener.onClosed(cause);
+        }
+    }
+}
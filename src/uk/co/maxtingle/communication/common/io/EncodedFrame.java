@@ -0,0 +1,64 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message encoded once so it can be written to many
+ * connections, such as a broadcast. The framed bytes are
+ * built the first time each framing is asked for and then
+ * shared by every connection using that framing
+ */
+public class EncodedFrame
+{
+    private final byte[] _payload;
+
+    private volatile ByteBuffer _newline;
+    private volatile ByteBuffer _lengthPrefixed;
+
+    /**
+     * Creates a new frame around an encoded payload, the
+     * payload must not be changed afterwards
+     *
+     * @param payload The encoded message
+     */
+    public EncodedFrame(@NotNull byte[] payload) {
+        this._payload = payload;
+    }
+
+    /**
+     * Gets the encoded message without any framing
+     *
+     * @return The payload
+     */
+    public byte[] getPayload() {
+        return this._payload;
+    }
+
+    /**
+     * Gets the framed bytes for the given framing, every call
+     * returns its own view so the position can be moved by the
+     * writer without affecting anybody else. The bytes themselves
+     * are shared so must never be changed
+     *
+     * @param framing The framing the connection is using
+     * @return A view of the framed bytes
+     */
+    public ByteBuffer getFrame(@NotNull Framing framing) {
+        ByteBuffer frame = framing == Framing.LENGTH_PREFIXED ? this._lengthPrefixed : this._newline;
+
+        if(frame == null) { //two threads may both build it, either copy is fine
+            frame = FrameDecoder.encode(this._payload, framing);
+
+            if(framing == Framing.LENGTH_PREFIXED) {
+                this._lengthPrefixed = frame;
+            }
+            else {
+                this._newline = frame;
+            }
+        }
+
+        return frame.duplicate();
+    }
+}
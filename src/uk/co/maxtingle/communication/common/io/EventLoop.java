@@ -0,0 +1,295 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single thread that owns a Selector and fires the
+ * IChannelHandler of every registered channel when it becomes
+ * ready. The thread sleeps in select until a channel is ready
+ * or a task is submitted, so idle channels cost nothing.
+ *
+ * Anything that touches the selector or the interest ops of
+ * a key should be done on the loop, through execute
+ */
+public class EventLoop implements Runnable
+{
+    private final Selector                     _selector;
+    private final Queue<Runnable>              _tasks     = new ConcurrentLinkedQueue<Runnable>();
+    private final PriorityQueue<ScheduledTask> _scheduled = new PriorityQueue<ScheduledTask>(); //only touched on the loop thread
+    private final String                       _name;
+
+    private volatile boolean _running;
+    private          Thread  _thread;
+    private          boolean _daemon;
+
+    /**
+     * Creates a new event loop with its own selector,
+     * the loop will not do anything until started
+     *
+     * @param name The name to give the loop thread
+     * @throws IOException Failed to open the selector
+     */
+    public EventLoop(@NotNull String name) throws IOException {
+        this._name = name;
+        this._selector = Selector.open();
+    }
+
+    /**
+     * Sets whether the loop thread is a daemon thread,
+     * only has an effect before the loop is started
+     *
+     * @param daemon Whether the loop should not keep the JVM alive
+     */
+    public void setDaemon(boolean daemon) {
+        this._daemon = daemon;
+    }
+
+    /**
+     * Starts the loop thread if it is not already running
+     */
+    public synchronized void start() {
+        if(this._running) {
+            return;
+        }
+
+        this._running = true;
+        this._thread = new Thread(this);
+        this._thread.setName(this._name);
+        this._thread.setDaemon(this._daemon);
+        this._thread.start();
+    }
+
+    /**
+     * Stops the loop, the selector is closed once the loop
+     * thread has finished its current iteration. Channels
+     * are not closed, that is left to their owners
+     */
+    public void shutdown() {
+        this._running = false;
+        this._selector.wakeup();
+    }
+
+    /**
+     * Gets whether or not the loop is running
+     *
+     * @return Whether the loop thread is running
+     */
+    public boolean isRunning() {
+        return this._running;
+    }
+
+    /**
+     * Gets whether or not the calling thread is this loop's thread
+     *
+     * @return Whether the current thread is the loop thread
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == this._thread;
+    }
+
+    Selector getSelector() {
+        return this._selector;
+    }
+
+    /**
+     * Queues a task to be ran on the loop thread and wakes
+     * the selector up so it runs without waiting for IO
+     *
+     * @param task The task to run
+     */
+    public void execute(@NotNull Runnable task) {
+        this._tasks.add(task);
+
+        if(!this.inEventLoop()) {
+            this._selector.wakeup();
+        }
+    }
+
+    /**
+     * Queues a task to be ran on the loop thread once the delay
+     * has passed, the loop wakes up from select in time to run it
+     *
+     * @param task  The task to run
+     * @param delay How long to wait before running the task
+     * @param unit  The unit of the delay
+     */
+    public void schedule(@NotNull Runnable task, long delay, @NotNull TimeUnit unit) {
+        final ScheduledTask scheduled = new ScheduledTask(task, System.nanoTime() + unit.toNanos(delay));
+
+        if(this.inEventLoop()) {
+            this._scheduled.add(scheduled);
+            return;
+        }
+
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run() {
+                EventLoop.this._scheduled.add(scheduled);
+            }
+        });
+    }
+
+    /**
+     * Registers a channel with the loop's selector, the registration
+     * happens on the loop thread so this can be called from anywhere.
+     * The channel is switched to non-blocking mode
+     *
+     * @param channel The channel to register
+     * @param ops     The operations the channel is interested in
+     * @param handler The handler to fire when the channel is ready
+     */
+    public void register(@NotNull final SelectableChannel channel, final int ops, @NotNull final IChannelHandler handler) {
+        this.execute(new Runnable()
+        {
+            @Override
+            public void run() {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(EventLoop.this._selector, ops, handler);
+                }
+                catch(ClosedChannelException e) {
+                    //closed before it got registered, nothing to do
+                }
+                catch(IOException e) {
+                    Debugger.log(LogLevel.WARN, "EventLoop", "Failed to register channel ", e);
+                    EventLoop._close(channel);
+                }
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while(this._running) {
+            try {
+                this._select();
+                this._processSelectedKeys();
+                this._runTasks(); //after the keys so writes made while reading are flushed together
+                this._runScheduledTasks();
+            }
+            catch(Exception e) {
+                Debugger.log(LogLevel.ERROR, "EventLoop", "Error in " + this._name + " " + e.toString());
+            }
+        }
+
+        this._runTasks();
+
+        try {
+            this._selector.close();
+        }
+        catch(IOException e) {
+            Debugger.log(LogLevel.WARN, "EventLoop", "Failed to close selector ", e);
+        }
+    }
+
+    private void _select() throws IOException {
+        if(!this._tasks.isEmpty()) {
+            this._selector.selectNow(); //tasks queued from the loop itself don't wake the selector
+            return;
+        }
+
+        ScheduledTask next = this._scheduled.peek();
+        if(next == null) {
+            this._selector.select();
+            return;
+        }
+
+        long waitNanos = next.deadline - System.nanoTime();
+        if(waitNanos <= 0) {
+            this._selector.selectNow();
+        }
+        else { //rounded up so a deadline less than 1ms away waits 1ms rather than spinning on selectNow until it passes
+            this._selector.select(TimeUnit.NANOSECONDS.toMillis(waitNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1));
+        }
+    }
+
+    private void _runScheduledTasks() {
+        long now = System.nanoTime();
+        ScheduledTask next;
+
+        while((next = this._scheduled.peek()) != null && next.deadline - now <= 0) {
+            this._scheduled.poll();
+
+            try {
+                next.task.run();
+            }
+            catch(Exception e) {
+                Debugger.log(LogLevel.WARN, "EventLoop", "Scheduled task failed in " + this._name + " " + e.toString());
+            }
+        }
+    }
+
+    private void _runTasks() {
+        Runnable task;
+
+        while((task = this._tasks.poll()) != null) {
+            try {
+                task.run();
+            }
+            catch(Exception e) {
+                Debugger.log(LogLevel.WARN, "EventLoop", "Task failed in " + this._name + " " + e.toString());
+            }
+        }
+    }
+
+    private void _processSelectedKeys() {
+        Iterator<SelectionKey> keys = this._selector.selectedKeys().iterator();
+
+        while(keys.hasNext()) {
+            SelectionKey key = keys.next();
+            keys.remove();
+
+            if(!key.isValid()) {
+                continue;
+            }
+
+            try {
+                ((IChannelHandler) key.attachment()).onReady(key);
+            }
+            catch(Exception e) {
+                Debugger.log(LogLevel.WARN, "EventLoop", "Channel handler failed, closing channel ", e);
+                key.cancel();
+                EventLoop._close(key.channel());
+            }
+        }
+    }
+
+    private static void _close(SelectableChannel channel) {
+        try {
+            channel.close();
+        }
+        catch(IOException e) {
+            Debugger.log(LogLevel.WARN, "EventLoop", "Failed to close channel ", e);
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask>
+    {
+        final Runnable task;
+        final long     deadline;
+
+        ScheduledTask(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(@NotNull ScheduledTask other) {
+            return Long.signum(this.deadline - other.deadline);
+        }
+    }
+}
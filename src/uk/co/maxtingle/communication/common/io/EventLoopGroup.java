@@ -0,0 +1,100 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of event loops that connections are spread
+ * over, so any number of connections can be read and written
+ * by as many threads as there are loops. The loops are only
+ * started once the first connection is handed one
+ */
+public class EventLoopGroup
+{
+    private static EventLoopGroup _default;
+
+    private final EventLoop[]   _loops;
+    private final AtomicInteger _next = new AtomicInteger();
+
+    private volatile boolean _started;
+
+    /**
+     * Creates a new group of loops, named [name] [index]
+     *
+     * @param name    The name of the loop threads
+     * @param threads The number of loops, at least one is created
+     * @param daemon  Whether the loop threads should be daemon threads
+     * @throws IOException Failed to open a selector
+     */
+    public EventLoopGroup(@NotNull String name, int threads, boolean daemon) throws IOException {
+        this._loops = new EventLoop[Math.max(1, threads)];
+
+        for(int i = 0; i < this._loops.length; i++) {
+            this._loops[i] = new EventLoop(name + " " + i);
+            this._loops[i].setDaemon(daemon);
+        }
+    }
+
+    /**
+     * Gets the group Clients are attached to by default, one
+     * loop per core. The loops are daemon threads so they
+     * don't keep the JVM alive once everything else has finished
+     *
+     * @return The shared client group
+     * @throws IOException Failed to open a selector
+     */
+    public static synchronized EventLoopGroup getDefault() throws IOException {
+        if(EventLoopGroup._default == null) {
+            EventLoopGroup._default = new EventLoopGroup("Client IO", Runtime.getRuntime().availableProcessors(), true);
+        }
+
+        return EventLoopGroup._default;
+    }
+
+    /**
+     * Gets the loop the next connection should use,
+     * each loop is handed out in turn
+     *
+     * @return The loop, started
+     */
+    public EventLoop next() {
+        if(!this._started) {
+            this._start();
+        }
+
+        return this._loops[(this._next.getAndIncrement() & Integer.MAX_VALUE) % this._loops.length];
+    }
+
+    /**
+     * Gets the number of loops in the group
+     *
+     * @return The number of loops
+     */
+    public int getThreads() {
+        return this._loops.length;
+    }
+
+    /**
+     * Stops every loop in the group, the connections
+     * using them should already have been closed
+     */
+    public synchronized void shutdown() {
+        for(EventLoop loop : this._loops) {
+            loop.shutdown();
+        }
+    }
+
+    private synchronized void _start() {
+        if(this._started) {
+            return;
+        }
+
+        for(EventLoop loop : this._loops) {
+            loop.start();
+        }
+
+        this._started = true;
+    }
+}
@@ -0,0 +1,182 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes read from a connection into frames
+ * using whichever Framing is currently in use, the framing
+ * can be changed between frames. Newline frames are scanned
+ * for their delimiter, length prefixed frames are sliced out
+ * without looking at their contents at all
+ */
+public class FrameDecoder
+{
+    /** The default largest frame that will be accepted, 16MB */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    /** The length of the header on length prefixed frames */
+    public static final int LENGTH_HEADER = 4;
+
+    private static final int MAX_KEPT_BUFFER = 1024 * 1024; //read buffers grown past this are dropped once empty
+
+    private final int _maxFrameLength;
+
+    private volatile Framing _framing = Framing.NEWLINE;
+    private          int     _scanned; //bytes of the current newline frame already scanned for the delimiter
+
+    /**
+     * Creates a new decoder which starts off using newline framing
+     *
+     * @param maxFrameLength The largest frame to accept before failing
+     */
+    public FrameDecoder(int maxFrameLength) {
+        this._maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Gets the framing frames are currently decoded with
+     *
+     * @return The inbound framing
+     */
+    public Framing getFraming() {
+        return this._framing;
+    }
+
+    /**
+     * Sets the framing to decode the next frame with
+     *
+     * @param framing The new inbound framing
+     */
+    public void setFraming(@NotNull Framing framing) {
+        this._framing = framing;
+        this._scanned = 0;
+    }
+
+    /**
+     * Takes the next complete frame out of the buffer, the buffer
+     * must be ready for reading and its position is moved past the
+     * frame. The frame shares the buffer's memory so it must be used
+     * before the buffer is compacted or written to again
+     *
+     * @param buffer The bytes read so far
+     * @return The frame without its delimiter or header, or null if there isn't a complete frame yet
+     * @throws IOException The frame is bigger than the max frame length
+     */
+    public ByteBuffer next(@NotNull ByteBuffer buffer) throws IOException {
+        if(this._framing == Framing.LENGTH_PREFIXED) {
+            return this._nextLengthPrefixed(buffer);
+        }
+
+        return this._nextLine(buffer);
+    }
+
+    /**
+     * Compacts a read buffer once the frames in it have been taken
+     * out, ready to be read into again. It is doubled if a frame
+     * is bigger than it, and once empty a buffer grown past 1MB is
+     * swapped for a new one of the initial size so one large frame
+     * doesn't hold on to its memory for the life of the connection
+     *
+     * @param buffer      The buffer, ready for reading
+     * @param initialSize The size the connection's buffers start at
+     * @return The buffer to read into next, ready for writing
+     */
+    static ByteBuffer compact(@NotNull ByteBuffer buffer, int initialSize) {
+        buffer.compact();
+
+        if(buffer.position() == 0 && buffer.capacity() > FrameDecoder.MAX_KEPT_BUFFER) {
+            return ByteBuffer.allocate(initialSize);
+        }
+        else if(!buffer.hasRemaining()) { //a frame bigger than the buffer, make room for the rest of it
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            larger.put(buffer);
+            return larger;
+        }
+
+        return buffer;
+    }
+
+    private ByteBuffer _nextLine(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+
+        for(int i = start + this._scanned; i < limit; i++) {
+            if(buffer.get(i) != '\n') {
+                continue;
+            }
+
+            int end = i;
+            if(end > start && buffer.get(end - 1) == '\r') { //readLine treats \r\n as one terminator, so do we
+                end--;
+            }
+
+            this._scanned = 0;
+            buffer.position(i + 1);
+            return FrameDecoder._slice(buffer, start, end);
+        }
+
+        this._scanned = limit - start;
+        if(this._scanned > this._maxFrameLength) {
+            throw new IOException("Frame longer than " + this._maxFrameLength + " bytes");
+        }
+
+        return null;
+    }
+
+    private ByteBuffer _nextLengthPrefixed(ByteBuffer buffer) throws IOException {
+        if(buffer.remaining() < FrameDecoder.LENGTH_HEADER) {
+            return null;
+        }
+
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+
+        if(length < 0 || length > this._maxFrameLength) {
+            throw new IOException("Invalid frame length " + length);
+        }
+
+        if(buffer.remaining() - FrameDecoder.LENGTH_HEADER < length) {
+            return null;
+        }
+
+        int frameStart = start + FrameDecoder.LENGTH_HEADER;
+        buffer.position(frameStart + length);
+        return FrameDecoder._slice(buffer, frameStart, frameStart + length);
+    }
+
+    private static ByteBuffer _slice(ByteBuffer buffer, int start, int end) {
+        ByteBuffer frame = buffer.duplicate();
+        frame.limit(end);
+        frame.position(start);
+        return frame;
+    }
+
+    /**
+     * Frames a payload for sending
+     *
+     * @param payload The encoded message
+     * @param framing The framing to use
+     * @return The framed bytes ready for writing
+     */
+    public static ByteBuffer encode(@NotNull byte[] payload, @NotNull Framing framing) {
+        ByteBuffer frame;
+
+        if(framing == Framing.LENGTH_PREFIXED) {
+            frame = ByteBuffer.allocate(FrameDecoder.LENGTH_HEADER + payload.length);
+            frame.putInt(payload.length);
+            frame.put(payload);
+        }
+        else {
+            frame = ByteBuffer.allocate(payload.length + 1);
+            frame.put(payload);
+            frame.put((byte) '\n');
+        }
+
+        frame.flip();
+        return frame;
+    }
+}
@@ -0,0 +1,51 @@
+package uk.co.maxtingle.communication.common.io;
+
+/**
+ * How messages are split up on the wire
+ */
+public enum Framing
+{
+    /**
+     * Every message is followed by a newline, the original
+     * format that every peer understands
+     */
+    NEWLINE("newline"),
+
+    /**
+     * Every message is preceded by its length as a 4 byte
+     * big endian integer, only used once both ends have
+     * agreed to it
+     */
+    LENGTH_PREFIXED("length");
+
+    private final String _token;
+
+    Framing(String token) {
+        this._token = token;
+    }
+
+    /**
+     * Gets the name of the framing used when negotiating it
+     *
+     * @return The token for the framing
+     */
+    public String getToken() {
+        return this._token;
+    }
+
+    /**
+     * Finds the framing with the given negotiation token
+     *
+     * @param token The token sent by the other end
+     * @return The framing or null if the token is not known
+     */
+    public static Framing fromToken(String token) {
+        for(Framing framing : Framing.values()) {
+            if(framing._token.equals(token)) {
+                return framing;
+            }
+        }
+
+        return null;
+    }
+}
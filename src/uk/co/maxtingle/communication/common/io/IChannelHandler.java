@@ -0,0 +1,22 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * A handler attached to a channel registered with an
+ * EventLoop, fired by the loop whenever the channel
+ * is ready for one of the operations it is interested in
+ */
+public interface IChannelHandler
+{
+    /**
+     * Fired on the event loop thread when the selector
+     * reports the channel as ready
+     *
+     * @param key The selection key of the channel, readyOps contains what it is ready for
+     * @throws Exception Handling the channel failed, the loop will cancel the key and close the channel
+     */
+    void onReady(@NotNull SelectionKey key) throws Exception;
+}
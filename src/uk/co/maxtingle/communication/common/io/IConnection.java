@@ -0,0 +1,124 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The transport a BaseClient sends its messages through,
+ * responsible for framing them and for keeping track of the
+ * framing in use in each direction
+ */
+public interface IConnection
+{
+    /** The default number of bytes written that causes a flush without waiting for the flush delay */
+    int DEFAULT_FLUSH_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Queues a payload to be framed with the current outbound
+     * framing and written. Frames written from different threads
+     * are never interleaved. A ChannelConnection never blocks on
+     * the socket, a StreamConnection without virtual threads writes
+     * on the calling thread if nothing else is writing, blocking
+     * until the socket has taken the frame
+     *
+     * @param payload  The encoded message
+     * @param switchTo The framing to switch to once this frame is written, nothing else can
+     *                 be written in between so the other end knows exactly where the new framing
+     *                 starts. Null to keep the current framing
+     * @param written  Completed once the frame has been written to the socket or failed, may be null
+     * @throws IOException The connection is closed
+     */
+    void write(@NotNull byte[] payload, @Nullable Framing switchTo, @Nullable CompletableFuture<Void> written) throws IOException;
+
+    /**
+     * Queues a message that has already been encoded, using
+     * its frame for the outbound framing at the time it is written
+     *
+     * @param frame   The encoded message
+     * @param written Completed once the frame has been written to the socket or failed, may be null
+     * @throws IOException The connection is closed
+     */
+    void write(@NotNull EncodedFrame frame, @Nullable CompletableFuture<Void> written) throws IOException;
+
+    /**
+     * Sets how writes are batched together. Writes are buffered
+     * and flushed together once the writer has run out of things
+     * to write, once the delay has passed since the first write of
+     * the batch, or straight away once the buffer size is reached
+     *
+     * @param flushBufferSize  The buffered bytes that cause an immediate flush
+     * @param flushDelayMicros The longest a write waits to be flushed, 0 to flush as soon as the writer is idle
+     */
+    void setFlushPolicy(int flushBufferSize, long flushDelayMicros);
+
+    /**
+     * Sets the water marks for the bytes queued to be written
+     *
+     * @param low  The queued bytes at which the connection becomes writable again
+     * @param high The queued bytes at which the connection stops being writable
+     */
+    void setWriteBufferWaterMarks(int low, int high);
+
+    /**
+     * Sets the listener told when the connection's writability changes
+     *
+     * @param listener The listener or null to remove it
+     */
+    void setWritabilityListener(@Nullable IWritabilityListener listener);
+
+    /**
+     * Gets whether or not the bytes queued are below the high water
+     * mark, or have fallen back to the low water mark since passing it.
+     * Writing while not writable still works, the queue just grows
+     *
+     * @return Whether producers should carry on writing
+     */
+    boolean isWritable();
+
+    /**
+     * Gets the number of bytes queued to be written
+     *
+     * @return The bytes queued
+     */
+    long getPendingBytes();
+
+    /**
+     * Gets the framing used for writing
+     *
+     * @return The outbound framing
+     */
+    Framing getOutboundFraming();
+
+    /**
+     * Gets the framing used for reading
+     *
+     * @return The inbound framing
+     */
+    Framing getInboundFraming();
+
+    /**
+     * Sets the framing to read the next frame with, must only
+     * be called by the thread reading the connection
+     *
+     * @param framing The new inbound framing
+     */
+    void setInboundFraming(@NotNull Framing framing);
+
+    /**
+     * Gets whether or not the connection is still open
+     *
+     * @return Whether the connection can be used
+     */
+    boolean isOpen();
+
+    /**
+     * Closes the connection once what has already been queued
+     * is written, or as much of it as can be written promptly
+     *
+     * @throws IOException Failed to close the connection
+     */
+    void close() throws IOException;
+}
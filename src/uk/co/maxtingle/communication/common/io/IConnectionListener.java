@@ -0,0 +1,32 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the frames read by a ChannelConnection,
+ * all methods are fired on the connection's event loop
+ */
+public interface IConnectionListener
+{
+    /**
+     * Fired for every complete frame read from the channel,
+     * in the order they arrived
+     *
+     * @param frame The payload of the frame without its delimiter or header, shares the
+     *              connection's read buffer so must be used before returning
+     * @throws Exception Handling the frame failed, the connection is closed
+     */
+    void onFrame(@NotNull ByteBuffer frame) throws Exception;
+
+    /**
+     * Fired once when the connection is closed by the
+     * other end or because of an IO error. Not fired when
+     * the connection is closed locally through close
+     *
+     * @param cause The error that caused the close or null if the other end closed it
+     */
+    void onClosed(@Nullable Exception cause);
+}
@@ -0,0 +1,16 @@
+package uk.co.maxtingle.communication.common.io;
+
+/**
+ * Told when the bytes waiting to be written to a connection
+ * pass the high water mark or fall back to the low water mark,
+ * fired on whichever thread caused the change
+ */
+public interface IWritabilityListener
+{
+    /**
+     * Fired when the connection's writability changes
+     *
+     * @param writable Whether producers should carry on writing
+     */
+    void onWritabilityChanged(boolean writable);
+}
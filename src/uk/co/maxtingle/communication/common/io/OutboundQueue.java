@@ -0,0 +1,381 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The messages waiting to be written to a connection. Any number
+ * of threads can add to the queue without locking while a single
+ * consumer drains it, so frames are never interleaved and nobody
+ * blocks on the socket apart from the consumer.
+ *
+ * The queue also decides when the consumer needs starting, either
+ * straight away or after the flush delay so more frames can join the
+ * batch, and tracks the bytes waiting so producers can be told to
+ * back off once the high water mark is passed and carry on once
+ * the low water mark is reached again
+ */
+public class OutboundQueue
+{
+    /** The default bytes waiting at which the connection stops being writable */
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    /** The default bytes waiting at which the connection becomes writable again */
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+
+    /** What add needs the caller to do to get the frame written */
+    public static final int NOTHING     = 0;
+    public static final int DRAIN_NOW   = 1;
+    public static final int DRAIN_LATER = 2;
+
+    /* Where the consumer is up to */
+    private static final int IDLE      = 0;
+    private static final int DELAYED   = 1;
+    private static final int SCHEDULED = 2;
+    private static final int DRAINING  = 3;
+
+    private final AtomicReference<Entry> _tail;
+    private final AtomicLong             _pendingBytes = new AtomicLong();
+    private final AtomicInteger          _state        = new AtomicInteger(OutboundQueue.IDLE);
+    private final AtomicBoolean          _writable     = new AtomicBoolean(true);
+
+    private          Entry                _head; //only touched by the consumer
+    private volatile Framing              _framing          = Framing.NEWLINE;
+    private volatile int                  _flushBufferSize  = IConnection.DEFAULT_FLUSH_BUFFER_SIZE;
+    private volatile long                 _flushDelayMicros = 0;
+    private volatile int                  _highWaterMark    = OutboundQueue.DEFAULT_HIGH_WATER_MARK;
+    private volatile int                  _lowWaterMark     = OutboundQueue.DEFAULT_LOW_WATER_MARK;
+    private volatile IWritabilityListener _listener;
+
+    /**
+     * Creates a new empty queue
+     */
+    public OutboundQueue() {
+        this._head = new Entry(null, null, null, null);
+        this._tail = new AtomicReference<Entry>(this._head);
+    }
+
+    /**
+     * Sets how writes are batched together, see IConnection.setFlushPolicy
+     *
+     * @param flushBufferSize  The waiting bytes that cause an immediate drain
+     * @param flushDelayMicros The longest a frame waits to be drained
+     */
+    public void setFlushPolicy(int flushBufferSize, long flushDelayMicros) {
+        this._flushBufferSize = flushBufferSize;
+        this._flushDelayMicros = flushDelayMicros;
+    }
+
+    /**
+     * Gets the waiting bytes that cause an immediate drain
+     *
+     * @return The flush buffer size
+     */
+    public int getFlushBufferSize() {
+        return this._flushBufferSize;
+    }
+
+    /**
+     * Gets the longest a frame waits to be drained
+     *
+     * @return The flush delay in microseconds
+     */
+    public long getFlushDelayMicros() {
+        return this._flushDelayMicros;
+    }
+
+    /**
+     * Sets the water marks for the bytes waiting to be written
+     *
+     * @param low  The waiting bytes at which the connection becomes writable again
+     * @param high The waiting bytes at which the connection stops being writable
+     */
+    public void setWaterMarks(int low, int high) {
+        if(low > high) {
+            throw new IllegalArgumentException("Low water mark must not be above the high water mark");
+        }
+
+        this._lowWaterMark = low;
+        this._highWaterMark = high;
+    }
+
+    /**
+     * Sets the listener told when the connection's writability changes
+     *
+     * @param listener The listener or null to remove it
+     */
+    public void setWritabilityListener(@Nullable IWritabilityListener listener) {
+        this._listener = listener;
+    }
+
+    /**
+     * Gets whether or not the bytes waiting are below the high
+     * water mark, or have fallen back to the low water mark
+     *
+     * @return Whether producers should carry on writing
+     */
+    public boolean isWritable() {
+        return this._writable.get();
+    }
+
+    /**
+     * Gets the number of bytes waiting to be written
+     *
+     * @return The bytes waiting
+     */
+    public long getPendingBytes() {
+        return this._pendingBytes.get();
+    }
+
+    /**
+     * Gets the framing frames are currently written with
+     *
+     * @return The outbound framing
+     */
+    public Framing getFraming() {
+        return this._framing;
+    }
+
+    /**
+     * Adds a frame to the queue, safe to call from any thread
+     *
+     * @param entry The frame to add
+     * @return NOTHING if the consumer is already on its way, otherwise whether
+     *         the consumer should be started now or after the flush delay
+     */
+    public int add(@NotNull Entry entry) {
+        Entry previous = this._tail.getAndSet(entry);
+        previous._next = entry; //the consumer can't see the entry until this is set
+
+        long pending = this._pendingBytes.addAndGet(entry._size);
+        if(pending > this._highWaterMark && this._writable.compareAndSet(true, false)) {
+            this._fireWritabilityChanged(false);
+        }
+
+        return this._wake(pending);
+    }
+
+    /**
+     * Claims the queue for draining, only one consumer can
+     * hold the claim at a time
+     *
+     * @return Whether the caller is now the consumer
+     */
+    public boolean startDrain() {
+        while(true) {
+            int state = this._state.get();
+
+            if(state != OutboundQueue.DELAYED && state != OutboundQueue.SCHEDULED) {
+                return false; //another drain got there first
+            }
+            else if(this._state.compareAndSet(state, OutboundQueue.DRAINING)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Takes the next frame off the queue, must only be
+     * called by the consumer
+     *
+     * @return The next frame or null if there are none yet
+     */
+    public Entry poll() {
+        Entry next = this._head._next;
+
+        if(next == null) {
+            return null;
+        }
+
+        this._head = next; //becomes the new stub
+        return next;
+    }
+
+    /**
+     * Frames the entry with the current outbound framing and
+     * then applies any framing switch the entry asked for,
+     * must only be called by the consumer in queue order
+     *
+     * @param entry The entry to frame
+     * @return The framed bytes to write
+     */
+    public ByteBuffer frame(@NotNull Entry entry) {
+        if(entry._closeMarker) {
+            return null;
+        }
+
+        ByteBuffer frame = entry._encoded != null ? entry._encoded.getFrame(this._framing) : FrameDecoder.encode(entry._payload, this._framing);
+
+        if(entry._switchTo != null) {
+            this._framing = entry._switchTo;
+        }
+
+        entry._payload = null;
+        entry._encoded = null;
+        return frame;
+    }
+
+    /**
+     * Marks an entry as written, completing its future
+     * and updating the bytes waiting
+     *
+     * @param entry The entry that has been written
+     */
+    public void written(@NotNull Entry entry) {
+        long pending = this._pendingBytes.addAndGet(-entry._size);
+
+        if(pending <= this._lowWaterMark && this._writable.compareAndSet(false, true)) {
+            this._fireWritabilityChanged(true);
+        }
+
+        if(entry._future != null) {
+            entry._future.complete(null);
+        }
+    }
+
+    /**
+     * Fails an entry that will never be written
+     *
+     * @param entry The entry that failed
+     * @param cause Why it failed
+     */
+    public void failed(@NotNull Entry entry, @NotNull IOException cause) {
+        this._pendingBytes.addAndGet(-entry._size);
+
+        if(entry._future != null) {
+            entry._future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Fails every frame still in the queue, must only be
+     * called by the consumer once the connection is closed
+     *
+     * @param cause Why they failed
+     */
+    public void failAll(@NotNull IOException cause) {
+        Entry entry;
+
+        while((entry = this.poll()) != null) {
+            this.failed(entry, cause);
+        }
+    }
+
+    /**
+     * Gives up the claim on the queue once it looks empty
+     *
+     * @return NOTHING if the queue really was empty, otherwise a frame was added
+     *         while finishing and the caller should start the consumer again as add would
+     */
+    public int finishDrain() {
+        this._state.set(OutboundQueue.IDLE);
+
+        if(this._head._next == null && this._tail.get() == this._head) {
+            return OutboundQueue.NOTHING;
+        }
+
+        return this._wake(this._pendingBytes.get()); //added after the consumer last looked, its producer saw DRAINING and left it to us
+    }
+
+    private int _wake(long pending) {
+        while(true) {
+            int state = this._state.get();
+
+            if(state == OutboundQueue.IDLE) {
+                boolean now = this._flushDelayMicros <= 0 || pending >= this._flushBufferSize;
+                if(this._state.compareAndSet(state, now ? OutboundQueue.SCHEDULED : OutboundQueue.DELAYED)) {
+                    return now ? OutboundQueue.DRAIN_NOW : OutboundQueue.DRAIN_LATER;
+                }
+            }
+            else if(state == OutboundQueue.DELAYED && pending >= this._flushBufferSize) {
+                if(this._state.compareAndSet(state, OutboundQueue.SCHEDULED)) {
+                    return OutboundQueue.DRAIN_NOW; //the buffer filled up before the delay ran out
+                }
+            }
+            else {
+                return OutboundQueue.NOTHING;
+            }
+        }
+    }
+
+    private void _fireWritabilityChanged(boolean writable) {
+        IWritabilityListener listener = this._listener;
+
+        if(listener != null) {
+            listener.onWritabilityChanged(writable);
+        }
+    }
+
+    /**
+     * A frame waiting in the queue, the queue is linked
+     * through the entries themselves
+     */
+    public static class Entry
+    {
+        private          byte[]                  _payload;
+        private          EncodedFrame            _encoded;
+        private final    Framing                 _switchTo;
+        private final    CompletableFuture<Void> _future;
+        private final    int                     _size;
+        private final    boolean                 _closeMarker;
+        private volatile Entry                   _next;
+
+        /**
+         * The framed bytes once the consumer has framed
+         * the entry, for the consumer's own use
+         */
+        public ByteBuffer frame;
+
+        /**
+         * Creates a new entry, exactly one of payload and encoded must be set
+         *
+         * @param payload  The encoded message to frame
+         * @param encoded  The already encoded message
+         * @param switchTo The framing to switch to after this frame, or null to keep it
+         * @param future   The future to complete once written, or null
+         */
+        public Entry(@Nullable byte[] payload, @Nullable EncodedFrame encoded, @Nullable Framing switchTo, @Nullable CompletableFuture<Void> future) {
+            this._payload = payload;
+            this._encoded = encoded;
+            this._switchTo = switchTo;
+            this._future = future;
+            this._size = payload != null ? payload.length : (encoded != null ? encoded.getPayload().length : 0);
+            this._closeMarker = false;
+        }
+
+        private Entry() {
+            this._switchTo = null;
+            this._future = null;
+            this._size = 0;
+            this._closeMarker = true;
+        }
+
+        /**
+         * Creates an entry that asks the consumer to close the
+         * connection once everything before it has been written
+         *
+         * @return The close marker
+         */
+        public static Entry closeMarker() {
+            return new Entry();
+        }
+
+        /**
+         * Gets whether or not this entry is a close marker
+         * rather than a frame
+         *
+         * @return Whether the connection should be closed
+         */
+        public boolean isCloseMarker() {
+            return this._closeMarker;
+        }
+    }
+}
@@ -0,0 +1,382 @@
+package uk.co.maxtingle.communication.common.io;
+
+import uk.co.maxtingle.communication.common.Threads;
+import uk.co.maxtingle.communication.common.Timers;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A blocking connection over a normal Socket's streams,
+ * used by the Client and by the thread per connection server.
+ * Bytes are read into a buffer of its own and split into frames
+ * there rather than with a reader, so the framing can change
+ * part way through the stream without losing anything.
+ *
+ * Writes are added to an OutboundQueue without locking, whoever
+ * claims the drain writes the queue out in batches until there is
+ * nothing left while anyone else sending just queues and returns.
+ * With virtual threads the drain runs on a new virtual thread so
+ * sending never blocks. Otherwise the thread sending drains it,
+ * blocking in the socket write until the peer has read enough to
+ * make room. With a flush delay the shared timer only hands the
+ * drain to one of a few reused "Stream writer" threads, as does
+ * closing, so neither blocks the thread that asked for it
+ */
+public class StreamConnection implements IConnection
+{
+    private static final int INITIAL_BUFFER_SIZE  = 8 * 1024;
+    private static final int MAX_KEPT_BUFFER      = 1024 * 1024; //write buffers grown past this are dropped after use
+    private static final int CLOSE_TIMEOUT_MILLIS = 5000; //how long a close waits for a peer that isn't reading
+
+    private final Socket                         _socket;
+    private final InputStream                    _inputStream;
+    private final OutputStream                   _outputStream;
+    private final FrameDecoder                   _decoder;
+    private final OutboundQueue                  _outbound = new OutboundQueue();
+    private final ArrayList<OutboundQueue.Entry> _batch    = new ArrayList<OutboundQueue.Entry>(); //only touched by the drain
+    private final Runnable                       _drainTask = new Runnable()
+    {
+        @Override
+        public void run() {
+            if(StreamConnection.this._outbound.startDrain()) {
+                StreamConnection.this._drain();
+            }
+        }
+    };
+    private final Runnable                       _timerTask = new Runnable()
+    {
+        @Override
+        public void run() {
+            StreamConnection.this._startDrain(false);
+        }
+    };
+
+    private          ByteBuffer _readBuffer  = ByteBuffer.allocate(StreamConnection.INITIAL_BUFFER_SIZE);
+    private          ByteBuffer _writeBuffer = ByteBuffer.allocate(StreamConnection.INITIAL_BUFFER_SIZE); //only touched by the drain
+    private volatile boolean    _closing;
+    private final    boolean    _virtual;
+
+    /**
+     * Creates a new connection over the socket's streams
+     *
+     * @param socket         The connected socket
+     * @param maxFrameLength The largest frame to accept
+     * @throws IOException Failed to get the socket's streams
+     */
+    public StreamConnection(@NotNull Socket socket, int maxFrameLength) throws IOException {
+        this(socket, maxFrameLength, false);
+    }
+
+    /**
+     * Creates a new connection over the socket's streams
+     *
+     * @param socket         The connected socket
+     * @param maxFrameLength The largest frame to accept
+     * @param virtual        Whether to write on virtual threads if the JVM supports them
+     * @throws IOException Failed to get the socket's streams
+     */
+    public StreamConnection(@NotNull Socket socket, int maxFrameLength, boolean virtual) throws IOException {
+        this._socket = socket;
+        this._virtual = virtual && Threads.isVirtualSupported();
+        this._inputStream = socket.getInputStream();
+        this._outputStream = socket.getOutputStream();
+        this._decoder = new FrameDecoder(maxFrameLength);
+        this._readBuffer.flip(); //nothing read yet
+    }
+
+    /**
+     * Blocks until a whole frame has been read. The frame shares
+     * the connection's buffer so it must be used before the next
+     * call to readFrame. Only one thread should read at a time
+     *
+     * @return The frame or null if the other end closed the connection
+     * @throws IOException Reading failed or the frame was too big
+     */
+    public ByteBuffer readFrame() throws IOException {
+        while(true) {
+            ByteBuffer frame = this._decoder.next(this._readBuffer);
+
+            if(frame != null) {
+                return frame;
+            }
+
+            this._readBuffer = FrameDecoder.compact(this._readBuffer, StreamConnection.INITIAL_BUFFER_SIZE);
+
+            int read = this._inputStream.read(this._readBuffer.array(), this._readBuffer.position(), this._readBuffer.remaining());
+            if(read == -1) {
+                this._readBuffer.flip();
+                return null;
+            }
+
+            this._readBuffer.position(this._readBuffer.position() + read);
+            this._readBuffer.flip();
+        }
+    }
+
+    /**
+     * Gets the number of bytes that can be read without
+     * blocking, including ones already buffered
+     *
+     * @return The number of bytes waiting
+     * @throws IOException Failed to check the stream
+     */
+    public int available() throws IOException {
+        return this._readBuffer.remaining() + this._inputStream.available();
+    }
+
+    @Override
+    public void write(@NotNull byte[] payload, @Nullable Framing switchTo, @Nullable CompletableFuture<Void> written) throws IOException {
+        this._write(new OutboundQueue.Entry(payload, null, switchTo, written));
+    }
+
+    @Override
+    public void write(@NotNull EncodedFrame frame, @Nullable CompletableFuture<Void> written) throws IOException {
+        this._write(new OutboundQueue.Entry(null, frame, null, written));
+    }
+
+    @Override
+    public void setFlushPolicy(int flushBufferSize, long flushDelayMicros) {
+        this._outbound.setFlushPolicy(flushBufferSize, flushDelayMicros);
+    }
+
+    @Override
+    public void setWriteBufferWaterMarks(int low, int high) {
+        this._outbound.setWaterMarks(low, high);
+    }
+
+    @Override
+    public void setWritabilityListener(@Nullable IWritabilityListener listener) {
+        this._outbound.setWritabilityListener(listener);
+    }
+
+    @Override
+    public boolean isWritable() {
+        return this._outbound.isWritable();
+    }
+
+    @Override
+    public long getPendingBytes() {
+        return this._outbound.getPendingBytes();
+    }
+
+    @Override
+    public Framing getOutboundFraming() {
+        return this._outbound.getFraming();
+    }
+
+    @Override
+    public Framing getInboundFraming() {
+        return this._decoder.getFraming();
+    }
+
+    @Override
+    public void setInboundFraming(@NotNull Framing framing) {
+        this._decoder.setFraming(framing);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !this._closing && !this._socket.isClosed();
+    }
+
+    /**
+     * Stops any more writes being queued and closes the socket once
+     * everything already queued has been written, which wakes up a
+     * thread blocked in readFrame. If the other end stops reading
+     * the socket is closed anyway after a few seconds
+     *
+     * @throws IOException Failed to close the socket
+     */
+    @Override
+    public void close() throws IOException {
+        if(this._closing) {
+            return;
+        }
+
+        this._closing = true;
+        this._start(this._outbound.add(OutboundQueue.Entry.closeMarker()), true);
+        Timers.get().schedule(new Runnable()
+        {
+            @Override
+            public void run() {
+                if(!StreamConnection.this._socket.isClosed()) {
+                    Debugger.log(LogLevel.WARN, "StreamConnection", "Gave up writing what was queued before closing");
+
+                    try {
+                        StreamConnection.this._socket.close(); //the drain fails and fails anything left
+                    }
+                    catch(IOException e) {
+                        //already broken, nothing more to do
+                    }
+                }
+            }
+        }, StreamConnection.CLOSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private void _write(OutboundQueue.Entry entry) throws IOException {
+        if(this._closing || this._socket.isClosed()) {
+            throw new IOException("Connection closed");
+        }
+
+        this._start(this._outbound.add(entry), false);
+    }
+
+    private void _start(int wake, boolean now) {
+        if(wake == OutboundQueue.DRAIN_NOW || (wake == OutboundQueue.DRAIN_LATER && now)) {
+            this._startDrain(!now);
+        }
+        else if(wake == OutboundQueue.DRAIN_LATER) {
+            Timers.get().schedule(this._timerTask, this._outbound.getFlushDelayMicros(), TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Drains the queue into the write buffer and writes it out
+     * until there is nothing left, must hold the drain claim
+     */
+    private void _drain() {
+        try {
+            while(true) {
+                OutboundQueue.Entry entry = null;
+
+                while((this._batch.isEmpty() || this._writeBuffer.position() < this._outbound.getFlushBufferSize()) && (entry = this._outbound.poll()) != null) {
+                    if(entry.isCloseMarker()) {
+                        break;
+                    }
+
+                    this._writeBuffer = StreamConnection._append(this._writeBuffer, this._outbound.frame(entry));
+                    this._batch.add(entry);
+                }
+
+                if(this._writeBuffer.position() > 0) {
+                    this._writeBatch();
+                }
+
+                if(entry != null && entry.isCloseMarker()) {
+                    this._closeSocket(null); //keeps the claim, nothing more is ever drained
+                    return;
+                }
+                else if(entry == null) { //looked empty
+                    int wake = this._outbound.finishDrain();
+
+                    if(wake == OutboundQueue.DRAIN_LATER) {
+                        Timers.get().schedule(this._timerTask, this._outbound.getFlushDelayMicros(), TimeUnit.MICROSECONDS);
+                    }
+
+                    if(wake != OutboundQueue.DRAIN_NOW || !this._outbound.startDrain()) {
+                        return;
+                    }
+                }
+            }
+        }
+        catch(IOException e) {
+            Debugger.log(LogLevel.WARN, "StreamConnection", "Failed to write, closing ", e);
+            this._closeSocket(e); //the reader finds out and disconnects the client
+        }
+    }
+
+    private void _writeBatch() throws IOException {
+        this._outputStream.write(this._writeBuffer.array(), 0, this._writeBuffer.position());
+        this._outputStream.flush();
+
+        for(OutboundQueue.Entry written : this._batch) {
+            this._outbound.written(written);
+        }
+        this._batch.clear();
+
+        if(this._writeBuffer.capacity() > StreamConnection.MAX_KEPT_BUFFER) {
+            this._writeBuffer = ByteBuffer.allocate(StreamConnection.INITIAL_BUFFER_SIZE);
+        }
+        else {
+            this._writeBuffer.clear();
+        }
+    }
+
+    private void _closeSocket(IOException cause) {
+        this._closing = true;
+
+        try {
+            this._socket.close();
+        }
+        catch(IOException e) {
+            //already broken, nothing more to do
+        }
+
+        IOException failure = new IOException("Connection closed", cause);
+        for(OutboundQueue.Entry entry : this._batch) {
+            this._outbound.failed(entry, failure);
+        }
+        this._batch.clear();
+        this._outbound.failAll(failure);
+    }
+
+    /**
+     * Drains the queue on a new virtual thread if they are in use,
+     * otherwise on the thread sending, or on one of the shared
+     * writers for delayed flushes and closing. Only one drain runs
+     * at once, others return straight away once they see it
+     *
+     * @param sending Whether this is the thread that queued the write
+     */
+    private void _startDrain(boolean sending) {
+        if(this._virtual) {
+            Threads.create("Stream writer", this._drainTask, true).start();
+        }
+        else if(sending && !Timers.isTimerThread()) {
+            this._drainTask.run();
+        }
+        else {
+            StreamConnection.Writers.EXECUTOR.execute(this._drainTask);
+        }
+    }
+
+    /**
+     * The writers shared by every connection for the drains that
+     * can't run on the thread sending, only created once one is needed
+     */
+    private static final class Writers
+    {
+        static final ThreadPoolExecutor EXECUTOR;
+
+        static {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+            EXECUTOR = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Stream writer");
+                    thread.setDaemon(true); //a write to a peer that stopped reading is ended by the close timeout, not by waiting for it
+                    return thread;
+                }
+            });
+            Writers.EXECUTOR.allowCoreThreadTimeOut(true); //nothing is kept once delayed flushes stop
+        }
+    }
+
+    private static ByteBuffer _append(ByteBuffer buffer, ByteBuffer frame) {
+        if(buffer.remaining() < frame.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + frame.remaining()));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+
+        buffer.put(frame.duplicate());
+        return buffer;
+    }
+}
@@ -0,0 +1,195 @@
+package uk.co.maxtingle.communication.debug;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An EventLogger that hands messages to another logger on a
+ * thread of its own, so the threads logging never wait on slow
+ * output such as System.out. Messages go in a fixed size ring that
+ * any thread can add to without locking, if the ring is full the
+ * message is dropped rather than making the caller wait and the
+ * number dropped is logged once there is room again
+ */
+public class AsyncEventLogger implements EventLogger
+{
+    /** The default number of messages that can be waiting to be logged */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private static final long IDLE_PARK_NANOS  = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FLUSH_ON_EXIT_MS = 1000;
+
+    private final EventLogger     _target;
+    private final String[]        _categories;
+    private final String[]        _messages;
+    private final AtomicLongArray _published; //the sequence after the one in each slot once it is written
+    private final AtomicLong      _tail    = new AtomicLong();
+    private final AtomicLong      _dropped = new AtomicLong();
+    private final int             _mask;
+    private final Thread          _thread;
+
+    private volatile long    _head; //only moved by the logging thread
+    private volatile boolean _sleeping;
+
+    /**
+     * Creates a new logger with the default capacity
+     *
+     * @param target The logger to hand the messages to
+     */
+    public AsyncEventLogger(@NotNull EventLogger target) {
+        this(target, AsyncEventLogger.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a new logger and starts its thread
+     *
+     * @param target   The logger to hand the messages to
+     * @param capacity The most messages that can be waiting, rounded up to a power of two
+     */
+    public AsyncEventLogger(@NotNull EventLogger target, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+        this._target = target;
+        this._categories = new String[size];
+        this._messages = new String[size];
+        this._published = new AtomicLongArray(size);
+        this._mask = size - 1;
+
+        this._thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run() {
+                AsyncEventLogger.this._run();
+            }
+        }, "Debugger");
+        this._thread.setDaemon(true); //never keeps the JVM up, whatever is waiting is flushed on exit instead
+        this._thread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run() {
+                AsyncEventLogger.this.flush(AsyncEventLogger.FLUSH_ON_EXIT_MS);
+            }
+        }, "Debugger flush"));
+    }
+
+    /**
+     * Adds the message to the ring, never blocks
+     *
+     * @param category The category of the message
+     * @param msg      The message to log
+     */
+    @Override
+    public void log(@NotNull String category, @Nullable String msg) {
+        long sequence;
+
+        do {
+            sequence = this._tail.get();
+
+            if(sequence - this._head >= this._messages.length) {
+                this._dropped.incrementAndGet();
+                return;
+            }
+        } while(!this._tail.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & this._mask;
+        this._categories[slot] = category;
+        this._messages[slot] = msg;
+        this._published.set(slot, sequence + 1);
+
+        if(this._sleeping) {
+            LockSupport.unpark(this._thread);
+        }
+    }
+
+    /**
+     * Gets the number of messages dropped because the ring
+     * was full that haven't been reported yet
+     *
+     * @return The number of messages dropped
+     */
+    public long getDropped() {
+        return this._dropped.get();
+    }
+
+    /**
+     * Waits for the messages logged so far to be handed
+     * to the target logger
+     *
+     * @param timeoutMillis The longest to wait
+     * @return Whether everything was handed over in time
+     */
+    public boolean flush(long timeoutMillis) {
+        long target = this._tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+
+        while(this._head < target) {
+            if(System.nanoTime() > deadline) {
+                return false;
+            }
+
+            LockSupport.unpark(this._thread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        return true;
+    }
+
+    private void _run() {
+        while(true) {
+            if(this._drain()) {
+                continue;
+            }
+
+            this._sleeping = true;
+            if(!this._isPublished(this._head)) { //checked again now producers can see it's about to sleep
+                LockSupport.parkNanos(this, AsyncEventLogger.IDLE_PARK_NANOS);
+            }
+            this._sleeping = false;
+        }
+    }
+
+    private boolean _drain() {
+        long dropped = this._dropped.getAndSet(0);
+        if(dropped > 0) {
+            this._logSafely("Debugger", dropped + " log messages dropped, logging couldn't keep up");
+        }
+
+        long head = this._head;
+        boolean drained = false;
+
+        while(this._isPublished(head)) {
+            int slot = (int) head & this._mask;
+            String category = this._categories[slot];
+            String msg = this._messages[slot];
+
+            this._categories[slot] = null;
+            this._messages[slot] = null;
+            this._head = ++head; //frees the slot for producers
+
+            this._logSafely(category, msg);
+            drained = true;
+        }
+
+        return drained;
+    }
+
+    private boolean _isPublished(long sequence) {
+        return this._published.get((int) sequence & this._mask) == sequence + 1;
+    }
+
+    private void _logSafely(String category, String msg) {
+        try {
+            this._target.log(category, msg);
+        }
+        catch(Throwable e) {
+            //nowhere left to report it, keep logging everything else
+        }
+    }
+}
@@ -1,86 +1,242 @@
 package uk.co.maxtingle.communication.debug;
 
-import com.sun.istack.internal.NotNull;
-import com.sun.istack.internal.Nullable;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 /**
  * A basic debugger for all the clients and servers
- * that are currently using this instance of the library
+ * that are currently using this instance of the library.
+ *
+ * Messages have a level and are only passed to the logger if
+ * the level is at or above the level set for their category, or
+ * the global level if their category doesn't have one. Messages
+ * that are costly to build can be passed as a prefix and an
+ * object or a supplier, so nothing is built unless it is logged
  */
 public class Debugger
 {
-    private static EventLogger _logger;
+    private static final ConcurrentHashMap<String, LogLevel> _categoryLevels = new ConcurrentHashMap<String, LogLevel>();
+
+    private static volatile EventLogger _logger;
+    private static volatile LogLevel    _level     = LogLevel.DEBUG;
+    private static volatile int         _threshold = LogLevel.DEBUG.ordinal(); //the lowest level any category logs at
 
     /**
      * Sets the default logger up so the messages
      * logged will actually get outputted.
      *
-     * System defaults to printing to System.out
+     * System defaults to printing to System.out, from a
+     * thread of its own so nothing waits on the console
      */
     public static void setDefaultLogger() {
-        Debugger.setLogger(new EventLogger()
+        Debugger.setLogger(new AsyncEventLogger(new EventLogger()
         {
             @Override
             public void log(String category, String msg) {
                 System.out.println("[" + category + "] " + msg);
             }
-        });
+        }));
     }
 
     /**
      * Sets the logger to use for outputting things from this
-     * library
+     * library, it is called on the thread logging so should be
+     * wrapped in an AsyncEventLogger if it can be slow
      *
-     * @param logger The logger to use
+     * @param logger The logger to use, or null to stop logging
      */
-    public static void setLogger(@NotNull EventLogger logger) {
+    public static void setLogger(@Nullable EventLogger logger) {
         Debugger._logger = logger;
     }
 
+    /**
+     * Sets the lowest level of message that is logged
+     * for categories without a level of their own
+     *
+     * @param level The lowest level to log
+     */
+    public static void setLevel(@NotNull LogLevel level) {
+        Debugger._level = level;
+        Debugger._updateThreshold();
+    }
+
+    /**
+     * Gets the lowest level of message that is logged
+     * for categories without a level of their own
+     *
+     * @return The global level
+     */
+    public static LogLevel getLevel() {
+        return Debugger._level;
+    }
+
+    /**
+     * Sets the lowest level of message that is logged for a single
+     * category, such as LogLevel.OFF to silence it or LogLevel.DEBUG
+     * to see every message for it while the global level is higher
+     *
+     * @param category The category, such as Server, ServerClient or Client
+     * @param level    The lowest level to log, null to use the global level again
+     */
+    public static void setCategoryLevel(@NotNull String category, @Nullable LogLevel level) {
+        if(level == null) {
+            Debugger._categoryLevels.remove(category);
+        }
+        else {
+            Debugger._categoryLevels.put(category, level);
+        }
+
+        Debugger._updateThreshold();
+    }
+
+    /**
+     * Gets whether or not a logger has been set up, so
+     * log messages that are costly to build can be skipped
+     *
+     * @return Whether anything logged will be outputted
+     */
+    public static boolean isEnabled() {
+        return Debugger._logger != null;
+    }
+
+    /**
+     * Gets whether or not messages of the level could be logged
+     * for any category, a cheap check for before working out
+     * the category or building the message
+     *
+     * @param level The level of the message
+     * @return Whether the message might be logged
+     */
+    public static boolean isEnabled(@NotNull LogLevel level) {
+        return Debugger._logger != null && level.ordinal() >= Debugger._threshold;
+    }
+
+    /**
+     * Gets whether or not messages of the level are logged for the category
+     *
+     * @param level    The level of the message
+     * @param category The category of the message
+     * @return Whether the message will be logged
+     */
+    public static boolean isEnabled(@NotNull LogLevel level, @NotNull String category) {
+        if(!Debugger.isEnabled(level)) {
+            return false;
+        }
+
+        LogLevel categoryLevel = Debugger._categoryLevels.isEmpty() ? null : Debugger._categoryLevels.get(category);
+        return level.ordinal() >= (categoryLevel != null ? categoryLevel : Debugger._level).ordinal();
+    }
+
     /**
      * Logs something using the set logger, nothing will be
      * logged if the logger has not been setup using setLogger
-     * or setDefaultLogger
+     * or setDefaultLogger. Logged at LogLevel.INFO
      *
      * @param category The category of the log, currently used are ServerClient, Client and Server.
      *                 It is recommended you use App.
      * @param msg      The message to log
      */
     public static void log(@NotNull String category, @Nullable String msg) {
-        if(_logger != null) {
-            _logger.log(category, msg);
+        Debugger.log(LogLevel.INFO, category, msg);
+    }
+
+    /**
+     * Logs something at the given level
+     *
+     * @param level    The level of the message
+     * @param category The category of the log
+     * @param msg      The message to log
+     */
+    public static void log(@NotNull LogLevel level, @NotNull String category, @Nullable String msg) {
+        EventLogger logger = Debugger._logger;
+
+        if(logger != null && Debugger.isEnabled(level, category)) {
+            logger.log(category, msg);
+        }
+    }
+
+    /**
+     * Logs a prefix followed by an object's toString, which is
+     * only called if the message is going to be logged
+     *
+     * @param level    The level of the message
+     * @param category The category of the log
+     * @param prefix   The start of the message
+     * @param detail   The object whose string goes after the prefix
+     */
+    public static void log(@NotNull LogLevel level, @NotNull String category, @NotNull String prefix, @Nullable Object detail) {
+        EventLogger logger = Debugger._logger;
+
+        if(logger != null && Debugger.isEnabled(level, category)) {
+            logger.log(category, prefix + detail);
+        }
+    }
+
+    /**
+     * Logs a message built by the supplier, which is
+     * only called if the message is going to be logged
+     *
+     * @param level    The level of the message
+     * @param category The category of the log
+     * @param message  Builds the message to log
+     */
+    public static void log(@NotNull LogLevel level, @NotNull String category, @NotNull Supplier<String> message) {
+        EventLogger logger = Debugger._logger;
+
+        if(logger != null && Debugger.isEnabled(level, category)) {
+            logger.log(category, message.get());
         }
     }
 
     /**
      * Logs an exception using the logger if it is setup
      * will convert the exception to a string using its
-     * toString method
+     * toString method. Logged at LogLevel.WARN
      *
      * @param category The category of the log, currently used are ServerClient, Client and Server.
      *                 It is recommended you use App.
      * @param e        The exception to log
      */
     public static void log(@NotNull String category, @NotNull Exception e) {
-        Debugger.log(category, e.toString());
+        Debugger.log(LogLevel.WARN, category, "", e);
     }
 
     /**
      * Debugs an exception by printing out a full stack trace
      * for the exception to the setup debug logger if it is
-     * setup at all
+     * setup at all. Logged at LogLevel.DEBUG
      *
      * @param category The category of the log, currently used are ServerClient, Client and Server.
      *                 It is recommended you use App.
      * @param e        The exception to debug
      */
-    public static void debug(String category, Exception e) {
-        String stackTrace = "";
+    public static void debug(@NotNull String category, @NotNull Exception e) {
+        if(!Debugger.isEnabled(LogLevel.DEBUG, category)) {
+            return;
+        }
+
+        StringBuilder stackTrace = new StringBuilder(e.toString()).append(" stack: ");
 
         for(StackTraceElement stack : e.getStackTrace()) {
-            stackTrace += "\n in " + stack.getClassName() + " ( " + stack.getFileName() + ") " + stack.getMethodName() + " @ " + stack.getLineNumber();
+            stackTrace.append("\n in ").append(stack.getClassName()).append(" ( ").append(stack.getFileName()).append(") ")
+                      .append(stack.getMethodName()).append(" @ ").append(stack.getLineNumber());
+        }
+
+        Debugger.log(LogLevel.DEBUG, category, stackTrace.toString());
+    }
+
+    private static synchronized void _updateThreshold() {
+        LogLevel lowest = Debugger._level;
+
+        for(LogLevel level : Debugger._categoryLevels.values()) {
+            if(level.ordinal() < lowest.ordinal()) {
+                lowest = level;
+            }
         }
 
-        Debugger.log(category, e.toString() + " stack: " + stackTrace);
+        Debugger._threshold = lowest.ordinal();
     }
 }
@@ -1,7 +1,7 @@
 package uk.co.maxtingle.communication.debug;
 
-import com.sun.istack.internal.NotNull;
-import com.sun.istack.internal.Nullable;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
 
 /**
  * A delegate event wrapper for when the log method is
@@ -0,0 +1,24 @@
+package uk.co.maxtingle.communication.debug;
+
+/**
+ * How important a log message is, the Debugger only
+ * passes on messages at or above the level set for their
+ * category or the global level
+ */
+public enum LogLevel
+{
+    /** Every message sent and received and other detail only useful when debugging */
+    DEBUG,
+
+    /** Connections, disconnections, auth state changes and the like */
+    INFO,
+
+    /** Something failed, usually a single client or message */
+    WARN,
+
+    /** Something failed that affects the whole server or client */
+    ERROR,
+
+    /** Used as a level to log nothing at all */
+    OFF
+}
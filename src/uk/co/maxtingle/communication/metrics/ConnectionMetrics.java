@@ -0,0 +1,124 @@
+package uk.co.maxtingle.communication.metrics;
+
+import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.io.IConnection;
+
+/**
+ * The metrics of a single connection, everything recorded
+ * here is also added to the registry the connection belongs
+ * to. Round trips are only kept by the registry, per request
+ */
+public class ConnectionMetrics extends MessageMetrics
+{
+    private final MetricsRegistry _registry;
+    private final BaseClient      _client;
+    private final long            _connectedAt = System.nanoTime();
+
+    private volatile long _authNanos = -1;
+
+    ConnectionMetrics(@NotNull MetricsRegistry registry, @NotNull BaseClient client) {
+        this._registry = registry;
+        this._client = client;
+    }
+
+    /**
+     * Gets the registry the connection belongs to
+     *
+     * @return The registry
+     */
+    public MetricsRegistry getRegistry() {
+        return this._registry;
+    }
+
+    /**
+     * Gets the client / server client the metrics are for
+     *
+     * @return The client
+     */
+    public BaseClient getClient() {
+        return this._client;
+    }
+
+    /**
+     * Gets how long the connection took to be authenticated
+     *
+     * @return The auth handshake time in nanoseconds or -1 if it hasn't been accepted
+     */
+    public long getAuthNanos() {
+        return this._authNanos;
+    }
+
+    /**
+     * Gets the bytes queued to be written to the connection
+     *
+     * @return The outbound queue depth in bytes
+     */
+    public long getPendingBytes() {
+        IConnection connection = this._client.getConnection();
+        return connection == null ? 0 : connection.getPendingBytes();
+    }
+
+    /**
+     * Gets the messages received that are waiting to be handled
+     *
+     * @return The inbound queue depth
+     */
+    public int getPendingMessages() {
+        return this._client.getPendingMessages();
+    }
+
+    /**
+     * Records a message received
+     *
+     * @param bytes       The size of the message
+     * @param decodeNanos How long it took to decode
+     */
+    public void received(int bytes, long decodeNanos) {
+        this._received(bytes, decodeNanos);
+        this._registry._received(bytes, decodeNanos);
+    }
+
+    /**
+     * Records a message encoded and queued to be sent
+     *
+     * @param bytes       The size of the message
+     * @param encodeNanos How long it took to encode
+     */
+    public void sent(int bytes, long encodeNanos) {
+        this._sent(bytes, encodeNanos);
+        this._registry._sent(bytes, encodeNanos);
+    }
+
+    /**
+     * Records a message that was encoded elsewhere, such
+     * as a broadcast, being queued to be sent
+     *
+     * @param bytes The size of the message
+     */
+    public void sent(int bytes) {
+        this.sent(bytes, -1);
+    }
+
+    /**
+     * Records the connection being authenticated, timed from
+     * when the metrics were created as the client connected
+     */
+    public void authenticated() {
+        if(this._authNanos < 0) {
+            this._authNanos = System.nanoTime() - this._connectedAt;
+            this._registry._authenticated(this._authNanos);
+        }
+    }
+
+    /**
+     * Records a reply being received to a message sent
+     *
+     * @param request The request of the message that was replied to
+     * @param nanos   The time between sending the message and receiving the reply
+     */
+    public void roundTrip(@Nullable String request, long nanos) {
+        this._registry.recordRoundTrip(request, nanos);
+    }
+}
@@ -0,0 +1,155 @@
+package uk.co.maxtingle.communication.metrics;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A histogram of durations in nanoseconds that any number of
+ * threads can record into without contending. Every power of two
+ * is split into four buckets so percentiles are accurate to within
+ * a quarter of the value, and buckets are only created once
+ * something lands in them so unused ranges cost nothing
+ */
+public class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS     = 1 << LatencyHistogram.SUB_BUCKET_BITS;
+    private static final int BUCKETS         = 64 << LatencyHistogram.SUB_BUCKET_BITS;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator()
+    {
+        @Override
+        public long applyAsLong(long left, long right) {
+            return Math.max(left, right);
+        }
+    };
+
+    private final AtomicReferenceArray<LongAdder> _buckets = new AtomicReferenceArray<LongAdder>(LatencyHistogram.BUCKETS);
+    private final LongAdder                       _count   = new LongAdder();
+    private final LongAdder                       _total   = new LongAdder();
+    private final LongAccumulator                 _max     = new LongAccumulator(LatencyHistogram.MAX, 0);
+
+    /**
+     * Records a duration
+     *
+     * @param nanos The duration in nanoseconds, negative durations are recorded as 0
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+
+        int index = LatencyHistogram._index(nanos);
+        LongAdder bucket = this._buckets.get(index);
+
+        if(bucket == null) {
+            bucket = new LongAdder();
+            if(!this._buckets.compareAndSet(index, null, bucket)) {
+                bucket = this._buckets.get(index); //another thread created it first
+            }
+        }
+
+        bucket.increment();
+        this._count.increment();
+        this._total.add(nanos);
+        this._max.accumulate(nanos);
+    }
+
+    /**
+     * Gets the number of durations recorded
+     *
+     * @return The count
+     */
+    public long getCount() {
+        return this._count.sum();
+    }
+
+    /**
+     * Gets the mean of the durations recorded
+     *
+     * @return The mean in nanoseconds or 0 if nothing has been recorded
+     */
+    public double getMean() {
+        long count = this._count.sum();
+        return count == 0 ? 0 : (double) this._total.sum() / count;
+    }
+
+    /**
+     * Gets the longest duration recorded
+     *
+     * @return The maximum in nanoseconds
+     */
+    public long getMax() {
+        return this._max.get();
+    }
+
+    /**
+     * Gets the duration that the given fraction of the recorded
+     * durations are at or below, as the top of the bucket it is in
+     *
+     * @param fraction The fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return The percentile in nanoseconds or 0 if nothing has been recorded
+     */
+    public long getPercentile(double fraction) {
+        long[] counts = new long[LatencyHistogram.BUCKETS];
+        long total = 0;
+
+        for(int i = 0; i < LatencyHistogram.BUCKETS; i++) { //counted again so they match the buckets while others are recording
+            LongAdder bucket = this._buckets.get(i);
+            if(bucket != null) {
+                counts[i] = bucket.sum();
+                total += counts[i];
+            }
+        }
+
+        if(total == 0) {
+            return 0;
+        }
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * total));
+        long seen = 0;
+
+        for(int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            seen += counts[i];
+
+            if(seen >= target) {
+                return Math.min(LatencyHistogram._upperBound(i), this.getMax());
+            }
+        }
+
+        return this.getMax();
+    }
+
+    /**
+     * Gets a copy of the histogram's figures, for JMX
+     *
+     * @return The snapshot
+     */
+    public LatencySnapshot snapshot() {
+        return new LatencySnapshot(this.getCount(), this.getMean(), this.getPercentile(0.5), this.getPercentile(0.9),
+                                   this.getPercentile(0.99), this.getMax());
+    }
+
+    private static int _index(long nanos) {
+        if(nanos < LatencyHistogram.SUB_BUCKETS) {
+            return (int) nanos;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) (nanos >>> (exponent - LatencyHistogram.SUB_BUCKET_BITS)) & (LatencyHistogram.SUB_BUCKETS - 1);
+        return ((exponent - LatencyHistogram.SUB_BUCKET_BITS + 1) << LatencyHistogram.SUB_BUCKET_BITS) | sub;
+    }
+
+    private static long _upperBound(int index) {
+        if(index < LatencyHistogram.SUB_BUCKETS) {
+            return index;
+        }
+
+        int exponent = (index >> LatencyHistogram.SUB_BUCKET_BITS) + LatencyHistogram.SUB_BUCKET_BITS - 1;
+        long lower = (long) (LatencyHistogram.SUB_BUCKETS | (index & (LatencyHistogram.SUB_BUCKETS - 1))) << (exponent - LatencyHistogram.SUB_BUCKET_BITS);
+        long width = 1L << (exponent - LatencyHistogram.SUB_BUCKET_BITS);
+        return lower + width - 1 < lower ? Long.MAX_VALUE : lower + width - 1;
+    }
+}
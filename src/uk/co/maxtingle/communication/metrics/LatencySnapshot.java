@@ -0,0 +1,65 @@
+package uk.co.maxtingle.communication.metrics;
+
+/**
+ * The figures of a LatencyHistogram at one point in time,
+ * in microseconds as that is what is usually wanted for
+ * message latencies. Shown as composite data over JMX
+ */
+public class LatencySnapshot
+{
+    private final long   _count;
+    private final double _meanMicros;
+    private final double _p50Micros;
+    private final double _p90Micros;
+    private final double _p99Micros;
+    private final double _maxMicros;
+
+    /**
+     * Creates a new snapshot from figures in nanoseconds
+     *
+     * @param count     The number of durations recorded
+     * @param meanNanos The mean duration
+     * @param p50Nanos  The median duration
+     * @param p90Nanos  The 90th percentile duration
+     * @param p99Nanos  The 99th percentile duration
+     * @param maxNanos  The longest duration
+     */
+    public LatencySnapshot(long count, double meanNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+        this._count = count;
+        this._meanMicros = meanNanos / 1000d;
+        this._p50Micros = p50Nanos / 1000d;
+        this._p90Micros = p90Nanos / 1000d;
+        this._p99Micros = p99Nanos / 1000d;
+        this._maxMicros = maxNanos / 1000d;
+    }
+
+    public long getCount() {
+        return this._count;
+    }
+
+    public double getMeanMicros() {
+        return this._meanMicros;
+    }
+
+    public double getP50Micros() {
+        return this._p50Micros;
+    }
+
+    public double getP90Micros() {
+        return this._p90Micros;
+    }
+
+    public double getP99Micros() {
+        return this._p99Micros;
+    }
+
+    public double getMaxMicros() {
+        return this._maxMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + this._count + " mean=" + this._meanMicros + "us p50=" + this._p50Micros + "us p90=" + this._p90Micros
+               + "us p99=" + this._p99Micros + "us max=" + this._maxMicros + "us";
+    }
+}
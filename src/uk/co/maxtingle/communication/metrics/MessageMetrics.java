@@ -0,0 +1,123 @@
+package uk.co.maxtingle.communication.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The message and byte counters kept for a single connection
+ * and for every connection together. The counters are striped
+ * so threads sending and receiving at the same time never
+ * contend on them, reading them adds up the stripes
+ */
+public abstract class MessageMetrics
+{
+    private final LongAdder _messagesIn  = new LongAdder();
+    private final LongAdder _messagesOut = new LongAdder();
+    private final LongAdder _bytesIn     = new LongAdder();
+    private final LongAdder _bytesOut    = new LongAdder();
+    private final LongAdder _decodeNanos = new LongAdder();
+    private final LongAdder _encodeCount = new LongAdder();
+    private final LongAdder _encodeNanos = new LongAdder();
+
+    /**
+     * Gets the number of messages received
+     *
+     * @return The messages received
+     */
+    public long getMessagesIn() {
+        return this._messagesIn.sum();
+    }
+
+    /**
+     * Gets the number of messages queued to be sent,
+     * including broadcasts
+     *
+     * @return The messages sent
+     */
+    public long getMessagesOut() {
+        return this._messagesOut.sum();
+    }
+
+    /**
+     * Gets the number of bytes of the messages received,
+     * not including framing
+     *
+     * @return The bytes received
+     */
+    public long getBytesIn() {
+        return this._bytesIn.sum();
+    }
+
+    /**
+     * Gets the number of bytes of the messages queued
+     * to be sent, not including framing
+     *
+     * @return The bytes sent
+     */
+    public long getBytesOut() {
+        return this._bytesOut.sum();
+    }
+
+    /**
+     * Gets the total time spent decoding received messages
+     *
+     * @return The decode time in nanoseconds
+     */
+    public long getDecodeNanos() {
+        return this._decodeNanos.sum();
+    }
+
+    /**
+     * Gets the number of messages encoded, broadcasts are
+     * encoded once for all their clients so aren't counted
+     *
+     * @return The messages encoded
+     */
+    public long getEncodeCount() {
+        return this._encodeCount.sum();
+    }
+
+    /**
+     * Gets the total time spent encoding sent messages
+     *
+     * @return The encode time in nanoseconds
+     */
+    public long getEncodeNanos() {
+        return this._encodeNanos.sum();
+    }
+
+    /**
+     * Gets the mean time taken to decode a received message
+     *
+     * @return The mean decode time in microseconds
+     */
+    public double getMeanDecodeMicros() {
+        long count = this._messagesIn.sum();
+        return count == 0 ? 0 : this._decodeNanos.sum() / 1000d / count;
+    }
+
+    /**
+     * Gets the mean time taken to encode a sent message
+     *
+     * @return The mean encode time in microseconds
+     */
+    public double getMeanEncodeMicros() {
+        long count = this._encodeCount.sum();
+        return count == 0 ? 0 : this._encodeNanos.sum() / 1000d / count;
+    }
+
+    void _received(int bytes, long decodeNanos) {
+        this._messagesIn.increment();
+        this._bytesIn.add(bytes);
+        this._decodeNanos.add(decodeNanos);
+    }
+
+    void _sent(int bytes, long encodeNanos) {
+        this._messagesOut.increment();
+        this._bytesOut.add(bytes);
+
+        if(encodeNanos >= 0) {
+            this._encodeCount.increment();
+            this._encodeNanos.add(encodeNanos);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package uk.co.maxtingle.communication.metrics;
+
+import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The metrics of a group of connections, every connection of a
+ * Server or every Client. Keeps the totals of all the connections
+ * it has had, the metrics of the connections still open, how long
+ * auth handshakes took and the reply round trips per request.
+ * Recording is cheap enough to leave on, counters are striped and
+ * nothing is locked, and the totals can be shown over JMX
+ */
+public class MetricsRegistry extends MessageMetrics implements MetricsRegistryMXBean
+{
+    /** The most requests round trips are kept for separately, others go under OTHER_REQUESTS */
+    public static final int MAX_ROUND_TRIP_REQUESTS = 1000;
+
+    /** What round trips are kept under for messages with no request or past MAX_ROUND_TRIP_REQUESTS */
+    public static final String OTHER_REQUESTS = "*";
+
+    /** The domain registries are shown under over JMX */
+    public static final String JMX_DOMAIN = "uk.co.maxtingle.communication";
+
+    private static MetricsRegistry _clientRegistry;
+
+    private final Set<ConnectionMetrics>        _connections   = Collections.newSetFromMap(new ConcurrentHashMap<ConnectionMetrics, Boolean>());
+    private final Map<String, LatencyHistogram> _roundTrips    = new ConcurrentHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram              _authHandshake = new LatencyHistogram();
+
+    private ObjectName _mbeanName;
+
+    /**
+     * Gets the registry every Client records to unless it is given
+     * another, shown over JMX as type=Client the first time it is used
+     *
+     * @return The shared client registry
+     */
+    public static synchronized MetricsRegistry getClientRegistry() {
+        if(MetricsRegistry._clientRegistry == null) {
+            MetricsRegistry._clientRegistry = new MetricsRegistry();
+            MetricsRegistry._clientRegistry.registerMBean("Client", "default");
+        }
+
+        return MetricsRegistry._clientRegistry;
+    }
+
+    /**
+     * Creates the metrics for a newly connected client and adds
+     * them to the connections open
+     *
+     * @param client The client that connected
+     * @return The metrics to record the client's messages to
+     */
+    public ConnectionMetrics register(@NotNull BaseClient client) {
+        ConnectionMetrics metrics = new ConnectionMetrics(this, client);
+        this._connections.add(metrics);
+        return metrics;
+    }
+
+    /**
+     * Removes a disconnected client's metrics from the connections
+     * open, what they recorded stays in the totals
+     *
+     * @param metrics The metrics of the client
+     */
+    public void unregister(@NotNull ConnectionMetrics metrics) {
+        this._connections.remove(metrics);
+    }
+
+    /**
+     * Gets the metrics of every connection still open
+     *
+     * @return A view of the connection metrics
+     */
+    public Collection<ConnectionMetrics> getConnectionMetrics() {
+        return Collections.unmodifiableSet(this._connections);
+    }
+
+    @Override
+    public int getConnections() {
+        return this._connections.size();
+    }
+
+    @Override
+    public long getPendingBytes() {
+        long pending = 0;
+        for(ConnectionMetrics metrics : this._connections) {
+            pending += metrics.getPendingBytes();
+        }
+
+        return pending;
+    }
+
+    @Override
+    public long getPendingMessages() {
+        long pending = 0;
+        for(ConnectionMetrics metrics : this._connections) {
+            pending += metrics.getPendingMessages();
+        }
+
+        return pending;
+    }
+
+    /**
+     * Gets the histogram of how long connections took to be authenticated
+     *
+     * @return The auth handshake histogram
+     */
+    public LatencyHistogram getAuthHistogram() {
+        return this._authHandshake;
+    }
+
+    @Override
+    public LatencySnapshot getAuthHandshakes() {
+        return this._authHandshake.snapshot();
+    }
+
+    /**
+     * Gets the histogram of the time between sending a message
+     * with the given request and receiving its reply
+     *
+     * @param request The request of the messages
+     * @return The histogram or null if no replies have been received to the request
+     */
+    public LatencyHistogram getRoundTripHistogram(@NotNull String request) {
+        return this._roundTrips.get(request);
+    }
+
+    @Override
+    public Map<String, LatencySnapshot> getRoundTrips() {
+        Map<String, LatencySnapshot> snapshots = new TreeMap<String, LatencySnapshot>();
+        for(Map.Entry<String, LatencyHistogram> entry : this._roundTrips.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+
+        return snapshots;
+    }
+
+    /**
+     * Records a reply being received to a message sent
+     *
+     * @param request The request of the message that was replied to
+     * @param nanos   The time between sending the message and receiving the reply
+     */
+    public void recordRoundTrip(@Nullable String request, long nanos) {
+        String key = request == null ? MetricsRegistry.OTHER_REQUESTS : request;
+        LatencyHistogram histogram = this._roundTrips.get(key);
+
+        if(histogram == null) {
+            if(this._roundTrips.size() >= MetricsRegistry.MAX_ROUND_TRIP_REQUESTS) {
+                key = MetricsRegistry.OTHER_REQUESTS; //requests made up on the fly mustn't grow the map forever
+                histogram = this._roundTrips.get(key);
+            }
+
+            if(histogram == null) {
+                LatencyHistogram created = new LatencyHistogram();
+                histogram = this._roundTrips.putIfAbsent(key, created);
+                histogram = histogram == null ? created : histogram;
+            }
+        }
+
+        histogram.record(nanos);
+    }
+
+    /**
+     * Shows the registry over JMX as JMX_DOMAIN:type=[type],name=[name],
+     * replacing anything already registered under that name
+     *
+     * @param type The type of connections, e.g. Server or Client
+     * @param name The name of the group, e.g. the port
+     * @return Whether the registry was registered
+     */
+    public synchronized boolean registerMBean(@NotNull String type, @NotNull String name) {
+        this.unregisterMBean();
+
+        try {
+            ObjectName objectName = new ObjectName(MetricsRegistry.JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+
+            if(ManagementFactory.getPlatformMBeanServer().isRegistered(objectName)) {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            }
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this._mbeanName = objectName;
+            return true;
+        }
+        catch(Exception e) {
+            Debugger.log(LogLevel.WARN, "Metrics", "Failed to register metrics with JMX ", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops showing the registry over JMX if it was
+     */
+    public synchronized void unregisterMBean() {
+        if(this._mbeanName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this._mbeanName);
+        }
+        catch(Exception e) {
+            Debugger.log(LogLevel.WARN, "Metrics", "Failed to unregister metrics from JMX ", e);
+        }
+
+        this._mbeanName = null;
+    }
+
+    void _authenticated(long nanos) {
+        this._authHandshake.record(nanos);
+    }
+}
@@ -0,0 +1,32 @@
+package uk.co.maxtingle.communication.metrics;
+
+import java.util.Map;
+
+/**
+ * What a MetricsRegistry shows over JMX, the totals
+ * across every connection it has had
+ */
+public interface MetricsRegistryMXBean
+{
+    int getConnections();
+
+    long getMessagesIn();
+
+    long getMessagesOut();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    double getMeanDecodeMicros();
+
+    double getMeanEncodeMicros();
+
+    long getPendingBytes();
+
+    long getPendingMessages();
+
+    LatencySnapshot getAuthHandshakes();
+
+    Map<String, LatencySnapshot> getRoundTrips();
+}
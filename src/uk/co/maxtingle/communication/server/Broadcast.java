@@ -0,0 +1,112 @@
+package uk.co.maxtingle.communication.server;
+
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.codec.ICodec;
+import uk.co.maxtingle.communication.common.io.EncodedFrame;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message being sent to many clients at once. The message
+ * is encoded once per codec the clients are using and the
+ * clients are split into chunks that the caller and the
+ * dispatch pool write to in parallel
+ */
+class Broadcast
+{
+    private final SerializableMessage                     _message;
+    private final List<ServerClient>                      _clients;
+    private final int                                     _chunkSize;
+    private final int                                     _chunks;
+    private final ConcurrentHashMap<ICodec, EncodedFrame> _encoded   = new ConcurrentHashMap<ICodec, EncodedFrame>();
+    private final AtomicInteger                           _nextChunk = new AtomicInteger();
+    private final AtomicInteger                           _sent      = new AtomicInteger();
+
+    private int _unfinishedChunks; //guarded by this
+
+    Broadcast(@NotNull SerializableMessage message, @NotNull List<ServerClient> clients, int chunkSize) {
+        this._message = message;
+        this._clients = clients;
+        this._chunkSize = Math.max(1, chunkSize);
+        this._chunks = (clients.size() + this._chunkSize - 1) / this._chunkSize;
+        this._unfinishedChunks = this._chunks;
+    }
+
+    /**
+     * Gets the number of chunks the clients were split into
+     *
+     * @return The number of chunks
+     */
+    int getChunks() {
+        return this._chunks;
+    }
+
+    /**
+     * Gets the message encoded with the codec, encoding
+     * it the first time the codec is asked for
+     *
+     * @param codec The codec the client is using
+     * @return The encoded message
+     * @throws IOException The message can't be encoded with the codec
+     */
+    EncodedFrame encodedFor(@NotNull ICodec codec) throws IOException {
+        EncodedFrame frame = this._encoded.get(codec);
+
+        if(frame == null) {
+            frame = new EncodedFrame(codec.encode(this._message));
+            EncodedFrame existing = this._encoded.putIfAbsent(codec, frame);
+
+            if(existing != null) {
+                frame = existing;
+            }
+        }
+
+        return frame;
+    }
+
+    /**
+     * Writes to chunks of clients until there are none left to
+     * claim, safe to call from several threads at once as each
+     * chunk is only ever written by one of them
+     */
+    void writeChunks() {
+        int chunk;
+
+        while((chunk = this._nextChunk.getAndIncrement()) < this._chunks) {
+            int end = Math.min(this._clients.size(), (chunk + 1) * this._chunkSize);
+
+            for(int i = chunk * this._chunkSize; i < end; i++) {
+                if(this._clients.get(i).sendBroadcast(this)) {
+                    this._sent.incrementAndGet();
+                }
+            }
+
+            synchronized(this) {
+                if(--this._unfinishedChunks == 0) {
+                    this.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until every chunk has been written, only chunks
+     * another thread has already started can be waited on as the
+     * caller writes any that are left itself first
+     *
+     * @return The number of clients the message was written to
+     */
+    int awaitSent() throws InterruptedException {
+        synchronized(this) {
+            while(this._unfinishedChunks > 0) {
+                this.wait();
+            }
+        }
+
+        return this._sent.get();
+    }
+}
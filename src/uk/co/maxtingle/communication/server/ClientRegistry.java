@@ -0,0 +1,112 @@
+package uk.co.maxtingle.communication.server;
+
+import uk.co.maxtingle.communication.common.AuthState;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The clients connected to a server, indexed by their
+ * auth state. Adding, removing and moving a client between
+ * states are all O(1) and safe from any thread, and the
+ * views can be iterated without locking while clients
+ * come and go, they just won't always include changes made
+ * during the iteration
+ */
+public class ClientRegistry
+{
+    private final Set<ServerClient>                 _clients = ClientRegistry._newSet();
+    private final Map<AuthState, Set<ServerClient>> _byState = new EnumMap<AuthState, Set<ServerClient>>(AuthState.class);
+
+    ClientRegistry() {
+        for(AuthState state : AuthState.values()) {
+            this._byState.put(state, ClientRegistry._newSet());
+        }
+    }
+
+    /**
+     * Gets the number of clients connected
+     *
+     * @return The number of clients
+     */
+    public int size() {
+        return this._clients.size();
+    }
+
+    /**
+     * Gets the number of clients in a certain state
+     *
+     * @param state The state to count the clients in
+     * @return The number of clients in the state
+     */
+    public int size(@NotNull AuthState state) {
+        return this._byState.get(state).size();
+    }
+
+    /**
+     * Gets whether or not a client is connected
+     *
+     * @param client The client to look for
+     * @return Whether the client is in the registry
+     */
+    public boolean contains(@NotNull ServerClient client) {
+        return this._clients.contains(client);
+    }
+
+    /**
+     * Gets a read only live view of all the clients
+     *
+     * @return The clients connected
+     */
+    public Collection<ServerClient> getAll() {
+        return Collections.unmodifiableSet(this._clients);
+    }
+
+    /**
+     * Gets a read only live view of the clients in a
+     * certain state, kept up to date by setAuthState
+     *
+     * @param state The state the clients are in
+     * @return The clients in the state
+     */
+    public Collection<ServerClient> getInState(@NotNull AuthState state) {
+        return Collections.unmodifiableSet(this._byState.get(state));
+    }
+
+    void add(@NotNull ServerClient client) {
+        synchronized(client) {
+            this._clients.add(client);
+            this._byState.get(client.getAuthState()).add(client);
+        }
+    }
+
+    boolean remove(@NotNull ServerClient client) {
+        synchronized(client) {
+            for(Set<ServerClient> inState : this._byState.values()) { //the state may be mid change, a handful of sets so still O(1)
+                inState.remove(client);
+            }
+
+            return this._clients.remove(client);
+        }
+    }
+
+    void stateChanged(@NotNull ServerClient client, @NotNull AuthState previous, @NotNull AuthState state) {
+        synchronized(client) {
+            if(!this._clients.contains(client)) {
+                return; //not registered yet or already removed, add / remove use the current state
+            }
+
+            this._byState.get(previous).remove(client);
+            this._byState.get(state).add(client);
+        }
+    }
+
+    private static Set<ServerClient> _newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<ServerClient, Boolean>());
+    }
+}
@@ -0,0 +1,21 @@
+package uk.co.maxtingle.communication.server;
+
+/**
+ * How the server reads from and handles its clients
+ */
+public enum ExecutionMode
+{
+    /**
+     * A few event loops read for every client and hand
+     * received messages to the dispatch pool
+     */
+    SELECTOR,
+
+    /**
+     * Every client gets its own thread that blocks reading
+     * its messages and handles them itself. The threads are
+     * virtual when the JVM supports them and
+     * ServerOptions.virtualThreads is enabled
+     */
+    THREAD_PER_CONNECTION
+}
@@ -0,0 +1,29 @@
+package uk.co.maxtingle.communication.server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * The IO side of the server, accepts clients and
+ * reads their messages before handing them back to
+ * the server to be handled
+ */
+interface IServerEngine
+{
+    /**
+     * Binds the server socket and starts accepting clients
+     *
+     * @param options The options the server was created with
+     * @return The bound server socket
+     * @throws IOException Failed to bind
+     */
+    ServerSocket start(ServerOptions options) throws IOException;
+
+    /**
+     * Stops accepting clients and releases any threads,
+     * clients should already have been disconnected
+     *
+     * @throws IOException Failed to close the server socket
+     */
+    void stop() throws IOException;
+}
@@ -0,0 +1,190 @@
+package uk.co.maxtingle.communication.server;
+
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.SerialExecutor;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands received messages off the IO threads to a pool of
+ * workers that run the MessageReceived and reply listeners.
+ * Every client has its own serial queue on top of the pool
+ * so messages from different clients are handled in parallel
+ * while messages from the same client are handled one at
+ * a time in the order they arrived
+ */
+public class MessageDispatcher
+{
+    private final Server           _server;
+    private final Executor         _executor;
+    private final ExecutorService  _ownedExecutor;
+    private final Semaphore        _capacity;
+    private final int              _queueCapacity;
+    private final SaturationPolicy _saturationPolicy;
+    private final AtomicLong       _saturatedCount = new AtomicLong();
+
+    MessageDispatcher(@NotNull Server server, @NotNull ServerOptions options) {
+        this._server = server;
+        this._queueCapacity = Math.max(1, options.dispatchQueueCapacity);
+        this._capacity = new Semaphore(this._queueCapacity);
+        this._saturationPolicy = options.saturationPolicy;
+
+        if(options.dispatchExecutor != null) {
+            this._executor = options.dispatchExecutor;
+            this._ownedExecutor = null;
+        }
+        else {
+            this._ownedExecutor = Executors.newFixedThreadPool(Math.max(1, options.dispatchThreads), new ThreadFactory()
+            {
+                private final AtomicInteger _count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(@NotNull Runnable runnable) {
+                    Thread thread = new Thread(runnable);
+                    thread.setName("Message dispatcher " + this._count.getAndIncrement());
+                    return thread;
+                }
+            });
+            this._executor = this._ownedExecutor;
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting to be handled
+     * or being handled across all clients
+     *
+     * @return The number of messages in the dispatch queue
+     */
+    public int getQueueDepth() {
+        return this._queueCapacity - this._capacity.availablePermits();
+    }
+
+    /**
+     * Gets the maximum number of messages that can be
+     * queued before the saturation policy kicks in
+     *
+     * @return The capacity of the dispatch queue
+     */
+    public int getQueueCapacity() {
+        return this._queueCapacity;
+    }
+
+    /**
+     * Gets what happens to messages received while
+     * the dispatch queue is full
+     *
+     * @return The saturation policy in use
+     */
+    public SaturationPolicy getSaturationPolicy() {
+        return this._saturationPolicy;
+    }
+
+    /**
+     * Gets how many times a message arrived while the
+     * dispatch queue was full, whatever the policy did with it
+     *
+     * @return The number of times the queue was saturated
+     */
+    public long getSaturatedCount() {
+        return this._saturatedCount.get();
+    }
+
+    /**
+     * Creates the serial queue a client's messages
+     * are handled on
+     *
+     * @return A new queue on top of the dispatch pool
+     */
+    SerialExecutor createQueue() {
+        return new SerialExecutor(this._executor);
+    }
+
+    /**
+     * Runs a task on the dispatch pool outside of any
+     * client's serial queue and the queue capacity
+     *
+     * @param task The task to run
+     * @throws RejectedExecutionException The pool has been shut down
+     */
+    void execute(@NotNull Runnable task) {
+        this._executor.execute(task);
+    }
+
+    /**
+     * Queues a message to be handled on the client's
+     * serial queue, applying the saturation policy if the
+     * dispatch queue is full
+     *
+     * @param client  The client that sent the message
+     * @param message The message to handle
+     */
+    void dispatch(@NotNull final ServerClient client, @NotNull final Message message) {
+        if(!this._capacity.tryAcquire()) {
+            this._saturatedCount.incrementAndGet();
+
+            if(!this._saturate(client, message)) {
+                return;
+            }
+        }
+
+        try {
+            client.getDispatchQueue().execute(new Runnable()
+            {
+                @Override
+                public void run() {
+                    try {
+                        MessageDispatcher.this._server._dispatchMessage(client, message);
+                    }
+                    finally {
+                        MessageDispatcher.this._capacity.release();
+                    }
+                }
+            });
+        }
+        catch(RejectedExecutionException e) {
+            this._capacity.release();
+            Debugger.log(LogLevel.WARN, "Server", "Dispatcher rejected message, server stopping ", e);
+        }
+    }
+
+    /**
+     * Shuts down the pool if it was created by the
+     * dispatcher, an executor given in the options is
+     * left for its owner to shut down
+     */
+    void shutdown() {
+        if(this._ownedExecutor != null) {
+            this._ownedExecutor.shutdown();
+        }
+    }
+
+    private boolean _saturate(ServerClient client, Message message) {
+        switch(this._saturationPolicy) {
+            case REJECT:
+                try {
+                    message.respond(new Message(false, "Server busy, request rejected"));
+                }
+                catch(Exception e) {
+                    Debugger.log(LogLevel.WARN, "Server", "Failed to reject message ", e);
+                }
+                return false;
+            case DISCONNECT:
+                Debugger.log(LogLevel.WARN, "Server", "Dispatch queue full, disconnecting client");
+                client.disconnect();
+                return false;
+            default:
+                this._capacity.acquireUninterruptibly();
+                return true;
+        }
+    }
+}
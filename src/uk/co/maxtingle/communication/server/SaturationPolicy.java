@@ -0,0 +1,27 @@
+package uk.co.maxtingle.communication.server;
+
+/**
+ * What the server does with a message when the
+ * dispatch queue already holds as many messages
+ * as ServerOptions.dispatchQueueCapacity allows
+ */
+public enum SaturationPolicy
+{
+    /**
+     * The IO thread waits until there is room in the queue,
+     * this stops reading from every client on that IO thread
+     * so TCP pushes back on the clients sending too much
+     */
+    BLOCK,
+
+    /**
+     * The message is not handled and the client is
+     * sent a failed reply saying the server is busy
+     */
+    REJECT,
+
+    /**
+     * The client that sent the message is disconnected
+     */
+    DISCONNECT
+}
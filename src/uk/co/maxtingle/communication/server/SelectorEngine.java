@@ -0,0 +1,247 @@
+package uk.co.maxtingle.communication.server;
+
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.io.ChannelConnection;
+import uk.co.maxtingle.communication.common.io.EventLoop;
+import uk.co.maxtingle.communication.common.io.EventLoopGroup;
+import uk.co.maxtingle.communication.common.io.IChannelHandler;
+import uk.co.maxtingle.communication.common.io.IConnectionListener;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The IO side of the server. The accept loops only accept new
+ * clients and hand each of them to one of the IO loops, which
+ * then read and write for all of their clients on a single
+ * thread. Setting up a new client, which means the auth state
+ * listeners and the first handshake message, runs on the
+ * dispatch pool so a slow client can't hold up accepting the
+ * ones behind it. Loops only wake up when a channel is ready
+ * so idle clients cost nothing
+ */
+class SelectorEngine implements IServerEngine, IChannelHandler
+{
+    private final Server                 _server;
+    private final Set<ChannelConnection> _pending = Collections.newSetFromMap(new ConcurrentHashMap<ChannelConnection, Boolean>());
+
+    private volatile boolean      _stopped;
+    private ServerSocketChannel[] _serverChannels;
+    private EventLoop[]           _acceptLoops;
+    private EventLoopGroup        _ioLoops;
+
+    SelectorEngine(@NotNull Server server) {
+        this._server = server;
+    }
+
+    /**
+     * Binds the server channel and starts all the loops. If
+     * reusePort is enabled and supported every accept loop gets
+     * its own listener on the port and the kernel spreads new
+     * connections between them, otherwise the accept loops
+     * share one listener
+     *
+     * @param options The options to bind with, ioThreads is the number of loops to spread clients over
+     * @return The socket of the (first) bound server channel
+     * @throws IOException Failed to bind or to open a selector
+     */
+    @Override
+    public ServerSocket start(@NotNull ServerOptions options) throws IOException {
+        int acceptors = Math.max(1, options.acceptorThreads);
+        boolean reusePort = options.reusePort && acceptors > 1;
+
+        if(reusePort && !SelectorEngine._supportsReusePort()) {
+            Debugger.log(LogLevel.WARN, "Server", "SO_REUSEPORT not supported, accept loops will share one listener");
+            reusePort = false;
+        }
+
+        this._serverChannels = new ServerSocketChannel[reusePort ? acceptors : 1];
+        for(int i = 0; i < this._serverChannels.length; i++) {
+            ServerSocketChannel channel = ServerSocketChannel.open();
+
+            if(reusePort) {
+                SelectorEngine._enableReusePort(channel);
+            }
+
+            channel.socket().bind(new InetSocketAddress(options.port), options.acceptBacklog);
+            this._serverChannels[i] = channel;
+        }
+
+        this._ioLoops = new EventLoopGroup("Server IO", options.ioThreads, false);
+
+        this._acceptLoops = new EventLoop[acceptors];
+        for(int i = 0; i < acceptors; i++) {
+            this._acceptLoops[i] = new EventLoop("Client listener " + i);
+            this._acceptLoops[i].start();
+            this._acceptLoops[i].register(this._serverChannels[reusePort ? i : 0], SelectionKey.OP_ACCEPT, this);
+        }
+
+        return this._serverChannels[0].socket();
+    }
+
+    /**
+     * Stops accepting clients and shuts down all the loops,
+     * clients should already have been disconnected. Clients
+     * accepted but not yet set up are closed here, any being
+     * set up right now disconnect themselves once they see the
+     * engine has stopped
+     *
+     * @throws IOException Failed to close the server channel
+     */
+    @Override
+    public void stop() throws IOException {
+        this._stopped = true;
+
+        if(this._acceptLoops != null) {
+            for(EventLoop loop : this._acceptLoops) {
+                loop.shutdown();
+            }
+            this._acceptLoops = null;
+        }
+
+        if(this._serverChannels != null) {
+            for(ServerSocketChannel channel : this._serverChannels) {
+                channel.close();
+            }
+            this._serverChannels = null;
+        }
+
+        for(ChannelConnection connection : this._pending) {
+            if(this._pending.remove(connection)) { //otherwise it is being set up and will see _stopped
+                connection.close();
+            }
+        }
+
+        if(this._ioLoops != null) {
+            this._ioLoops.shutdown();
+            this._ioLoops = null;
+        }
+    }
+
+    @Override
+    public void onReady(@NotNull SelectionKey key) throws Exception {
+        ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
+        SocketChannel channel;
+
+        while((channel = serverChannel.accept()) != null) {
+            try {
+                this._accept(channel);
+            }
+            catch(Exception e) {
+                Debugger.log(LogLevel.WARN, "Server", "Failed to accept client ", e);
+                channel.close();
+            }
+        }
+    }
+
+    private void _accept(SocketChannel channel) throws Exception {
+        final ChannelConnection connection = new ChannelConnection(channel, this._ioLoops.next(), this._server._options.maxFrameLength);
+
+        this._pending.add(connection);
+        try {
+            this._server.getDispatcher().execute(new Runnable()
+            {
+                @Override
+                public void run() {
+                    SelectorEngine.this._initialise(connection);
+                }
+            });
+        }
+        catch(RuntimeException e) {
+            this._pending.remove(connection);
+            throw e;
+        }
+    }
+
+    private void _initialise(ChannelConnection connection) {
+        final ServerClient client;
+
+        if(!this._pending.remove(connection)) {
+            return; //closed by stop before it got here
+        }
+
+        try {
+            client = new ServerClient(connection, this._server);
+        }
+        catch(Exception e) {
+            Debugger.log(LogLevel.WARN, "Server", "Failed to set up client ", e);
+
+            try {
+                connection.close();
+            }
+            catch(IOException closeFailure) {
+                //already broken, nothing more to do
+            }
+            return;
+        }
+
+        this._server._clients.add(client);
+
+        if(this._server._closing || this._stopped) { //stop may have already disconnected every client it could see
+            Debugger.log(LogLevel.INFO, "Server", "Server stopping, disconnecting client that was still being set up");
+            client.disconnect();
+            return;
+        }
+
+        connection.open(new IConnectionListener()
+        {
+            @Override
+            public void onFrame(@NotNull ByteBuffer frame) throws Exception {
+                SelectorEngine.this._server._handleFrame(client, frame);
+            }
+
+            @Override
+            public void onClosed(Exception cause) {
+                if(cause != null && !client.isStopped()) {
+                    Debugger.log(LogLevel.WARN, "Server", "Client connection failed ", cause);
+                }
+
+                client.disconnect();
+            }
+        });
+
+        Debugger.log(LogLevel.INFO, "Server", "Accepted new client - ", client.getSocket().getInetAddress());
+    }
+
+    private static SocketOption<Boolean> _findReusePort(ServerSocketChannel channel) {
+        for(SocketOption<?> option : channel.supportedOptions()) {
+            if("SO_REUSEPORT".equals(option.name()) && option.type() == Boolean.class) {
+                @SuppressWarnings("unchecked")
+                SocketOption<Boolean> reusePort = (SocketOption<Boolean>) option;
+                return reusePort;
+            }
+        }
+
+        return null;
+    }
+
+    private static boolean _supportsReusePort() throws IOException {
+        ServerSocketChannel probe = ServerSocketChannel.open();
+
+        try {
+            return SelectorEngine._findReusePort(probe) != null;
+        }
+        finally {
+            probe.close();
+        }
+    }
+
+    private static void _enableReusePort(ServerSocketChannel channel) throws IOException {
+        SocketOption<Boolean> option = SelectorEngine._findReusePort(channel);
+
+        if(option != null) { //looked up by name, StandardSocketOptions.SO_REUSEPORT only exists from Java 9
+            channel.setOption(option, true);
+        }
+    }
+}
@@ -1,35 +1,61 @@
 package uk.co.maxtingle.communication.server;
 
-import com.sun.istack.internal.NotNull;
 import uk.co.maxtingle.communication.common.AuthState;
+import uk.co.maxtingle.communication.common.BaseClient;
 import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.MessageRouter;
+import uk.co.maxtingle.communication.common.SerializableMessage;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
 import uk.co.maxtingle.communication.common.events.AuthStateChanged;
 import uk.co.maxtingle.communication.common.events.DisconnectListener;
 import uk.co.maxtingle.communication.common.events.MessageReceived;
 import uk.co.maxtingle.communication.common.exception.AuthException;
 import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
 import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+import uk.co.maxtingle.communication.metrics.MetricsRegistry;
 import uk.co.maxtingle.communication.server.auth.BasicAuthHandler;
 import uk.co.maxtingle.communication.server.auth.IAuthHandler;
 import uk.co.maxtingle.communication.server.auth.ICredentialAuth;
 import uk.co.maxtingle.communication.server.auth.IMagicAuth;
 
 import java.net.ServerSocket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
 
 public class Server
 {
+    /* Routes the messages of clients that aren't authenticated yet */
+    private static final MessageRouter _authRouter = new MessageRouter();
+
+    static {
+        MessageReceived authMessage = new MessageReceived()
+        {
+            @Override
+            public void onMessageReceived(@NotNull BaseClient client, @NotNull Message msg) throws Exception {
+                ((ServerClient) client).handleAuthMessage(msg);
+            }
+        };
+
+        Server._authRouter.handle(ServerOptions.SEND_MAGIC, authMessage);
+        Server._authRouter.handle(ServerOptions.SEND_CREDENTIALS, authMessage);
+    }
+
     protected ServerOptions _options;
-    protected ArrayList<ServerClient>       _clients                  = new ArrayList<ServerClient>();
+    protected ClientRegistry                _clients                  = new ClientRegistry();
     protected ArrayList<MessageReceived>    _messageReceivedListeners = new ArrayList<MessageReceived>();
+    protected MessageRouter                 _router                   = new MessageRouter();
     ArrayList<AuthStateChanged>   _authStateChangedListeners = new ArrayList<AuthStateChanged>();
     ArrayList<DisconnectListener> _disconnectListeners = new ArrayList<DisconnectListener>();
 
-    private ServerSocket  _listener;
-    private Thread        _clientListenerThread;
-    private Thread        _messageListenerThread;
-    private Thread        _heartThread;
-    private boolean _closing = false;
+    private ServerSocket      _listener;
+    private IServerEngine     _engine;
+    private MessageDispatcher _dispatcher;
+    private MetricsRegistry   _metrics = new MetricsRegistry();
+    volatile boolean          _closing = false;
 
     /**
      * Creates a new server and server the options to the default
@@ -86,12 +112,110 @@ public class Server
      * heartbeats but disconnected so IO Operations might
      * fail on them
      *
-     * @return The clients connected to the server
+     * @return A copy of the clients connected to the server
      */
     public ArrayList<ServerClient> getClients() {
+        return new ArrayList<ServerClient>(this._clients.getAll());
+    }
+
+    /**
+     * Gets the registry of connected clients, its views can
+     * be iterated without copying or locking which is
+     * much cheaper than getClients with lots of clients
+     *
+     * @return The client registry
+     */
+    public ClientRegistry getRegistry() {
         return this._clients;
     }
 
+    /**
+     * Gets the dispatcher that runs the message listeners
+     * for all clients, useful for checking the queue depth
+     *
+     * @return The dispatcher or null if the server isn't started
+     */
+    public MessageDispatcher getDispatcher() {
+        return this._dispatcher;
+    }
+
+    /**
+     * Gets the metrics of every client that has connected to the
+     * server, the metrics of each open connection can be got from it
+     * or from the client. Shown over JMX as type=Server,name=[port]
+     * while the server is started if registerMBean is set
+     *
+     * @return The server's metrics registry
+     */
+    public MetricsRegistry getMetrics() {
+        return this._metrics;
+    }
+
+    /**
+     * Sends a message to every accepted client, see
+     * broadcast(Message, Predicate)
+     *
+     * @param message The message to send
+     * @return The number of clients the message was written to
+     * @throws InterruptedException Interrupted while waiting for the pool to finish writing
+     */
+    public int broadcast(@NotNull Message message) throws InterruptedException {
+        return this.broadcast(message, null);
+    }
+
+    /**
+     * Sends a message to every accepted client that matches the
+     * filter. The message is encoded once per codec in use and the
+     * same bytes are written to every client, it is not given an id
+     * or kept in any client's sent messages so replies to it won't
+     * fire its reply listeners. Large broadcasts are split into chunks
+     * of broadcastChunkSize clients written in parallel by the calling
+     * thread and the dispatch pool, this returns once all are written
+     *
+     * @param message The message to send
+     * @param filter  Which accepted clients to send to, or null for all of them
+     * @return The number of clients the message was written to
+     * @throws InterruptedException Interrupted while waiting for the pool to finish writing
+     */
+    public int broadcast(@NotNull Message message, @Nullable Predicate<ServerClient> filter) throws InterruptedException {
+        MessageDispatcher dispatcher = this._dispatcher;
+        if(dispatcher == null) {
+            throw new IllegalStateException("Server not started");
+        }
+
+        ArrayList<ServerClient> clients = new ArrayList<ServerClient>(this._clients.size(AuthState.ACCEPTED));
+        for(ServerClient client : this._clients.getInState(AuthState.ACCEPTED)) {
+            if(filter == null || filter.test(client)) {
+                clients.add(client);
+            }
+        }
+
+        if(Debugger.isEnabled(LogLevel.DEBUG)) {
+            Debugger.log(LogLevel.DEBUG, "Server", "Broadcasting message " + message.toString() + " to " + clients.size() + " clients");
+        }
+
+        final Broadcast broadcast = new Broadcast(new SerializableMessage(message), clients, this._options.broadcastChunkSize);
+        int helpers = Math.min(broadcast.getChunks() - 1, this._options.dispatchThreads);
+
+        for(int i = 0; i < helpers; i++) {
+            try {
+                dispatcher.execute(new Runnable()
+                {
+                    @Override
+                    public void run() {
+                        broadcast.writeChunks();
+                    }
+                });
+            }
+            catch(RejectedExecutionException e) {
+                break; //stopping, the caller writes whatever is left
+            }
+        }
+
+        broadcast.writeChunks();
+        return broadcast.awaitSent();
+    }
+
     /**
      * Adds a MessageReceived listener to the list
      * of events to fire when the server receives a message
@@ -103,6 +227,29 @@ public class Server
         this._messageReceivedListeners.add(listener);
     }
 
+    /**
+     * Sets the handler for messages from authenticated clients
+     * with the given request, found with a single lookup rather
+     * than comparing the request in a MessageReceived listener.
+     * The MessageReceived listeners still get every message
+     *
+     * @param request The request of the messages to handle
+     * @param handler The handler, or null to remove the request's handler
+     */
+    public void handle(@NotNull String request, @Nullable MessageReceived handler) {
+        this._router.handle(request, handler);
+    }
+
+    /**
+     * Sets the handler for messages from authenticated
+     * clients that no handler is set for
+     *
+     * @param handler The handler, or null to leave them unhandled
+     */
+    public void setFallbackHandler(@Nullable MessageReceived handler) {
+        this._router.setFallbackHandler(handler);
+    }
+
     /**
      * Adds an AuthStateChanged listener to the list
      * of events to fire when the server changes the auth
@@ -187,7 +334,7 @@ public class Server
      * Gets all the clients which have been authenticated and set
      * to the state ACCEPTED
      *
-     * @return The clients which have been authenticated
+     * @return A copy of the clients which have been authenticated, use getRegistry().getInState for a view
      */
     public ArrayList<ServerClient> getAcceptedClients() {
         return this.getClientsInState(AuthState.ACCEPTED);
@@ -197,47 +344,47 @@ public class Server
      * Gets all the clients which are in a certain state
      *
      * @param state The state to find clients that are in
-     * @return The clients in the state given
+     * @return A copy of the clients in the state given
      */
     public ArrayList<ServerClient> getClientsInState(@NotNull AuthState state) {
-        ArrayList<ServerClient> matches = new ArrayList<ServerClient>();
-
-        for(ServerClient client : this._clients) {
-            if(client.getAuthState() == state) {
-                matches.add(client);
-            }
-        }
-
-        return matches;
+        return new ArrayList<ServerClient>(this._clients.getInState(state));
     }
 
     /**
      * Starts the server socket, binds the server listener,
-     * starts listening for messages from clients,
-     * starts listening for new clients attempting to connect
-     * and starts the heartbeat thread to make sure clients
-     * are still connected when they say they are.
+     * starts the pool that handles received messages,
+     * starts the engine that accepts new clients and
+     * reads their messages. Each client sends heartbeats
+     * when it's idle to make sure it is still connected
+     * when it says it is.
      *
      * @throws Exception Failed to start the server
      */
     public void start() throws Exception {
-        this._listener = new ServerSocket(this._options.port);
+        this._dispatcher = new MessageDispatcher(this, this._options);
+        if(this._options.executionMode == ExecutionMode.THREAD_PER_CONNECTION) {
+            this._engine = new ThreadPerConnectionEngine(this);
+        }
+        else {
+            this._engine = new SelectorEngine(this);
+        }
+
+        this._listener = this._engine.start(this._options);
 
         Debugger.log("Server", "Listening on " + this._listener.getInetAddress().toString() + ":" + this._options.port);
-        this._listenForClients();
-        this._listenForMessages();
-        this._startHeart();
+
+        if(this._options.registerMBean) {
+            this._metrics.registerMBean("Server", String.valueOf(this._options.port));
+        }
     }
 
     /**
      * Gracefully stops the server by allowing
      * threads to stop naturally and then
      * interrupting them if they are sleeping
-     * but ignoring the error. First stops
-     * listener for more clients, then stops sending
-     * heart beat requests, then stops listening for messages
-     * and finally disconnects all clients which will cause
-     * the disconnect listener to fire for each client
+     * but ignoring the error. First disconnects all clients
+     * which will cause the disconnect listener to fire
+     * for each client and finally stops the engine
      *
      * @throws Exception A client failed to disconnect or interrupting a thread failed
      */
@@ -245,210 +392,111 @@ public class Server
         Debugger.log("Server", "Shutting down");
         this._closing = true;
 
-        if(this._clientListenerThread != null) {
-            this._clientListenerThread.interrupt();
-            this._clientListenerThread = null;
-            Debugger.log("Server", "Client listener disabled");
+        for (ServerClient client : this._clients.getAll()) {
+            client.disconnect(); //on disconnect event will remove it from the registry
         }
 
-        if(this._heartThread != null) {
-            this._heartThread.interrupt();
-            this._heartThread = null;
-            Debugger.log("Server", "Heartbeat detector disabled");
+        Debugger.log("Server", "Clients disconnected");
+
+        this._engine.stop();
+        this._engine = null;
+        this._listener = null;
+        Debugger.log("Server", "Engine stopped");
+
+        this._dispatcher.shutdown();
+        this._dispatcher = null;
+        this._metrics.unregisterMBean();
+        this._closing = false;
+    }
+
+    void _handleFrame(ServerClient client, ByteBuffer frame) {
+        if(client.isStopped()) {
+            return;
         }
 
-        if(this._messageListenerThread != null) {
-            this._messageListenerThread.interrupt();
-            this._messageListenerThread = null;
-            Debugger.log("Server", "Message listener disabled");
+        Message message;
+        try {
+            message = client.parseMessage(frame);
+        }
+        catch (InvalidMessageException e) {
+            Debugger.log(LogLevel.WARN, "Server", "Client sent invalid message (" + e.getMessage() + "), disconnecting.");
+            client.disconnect();
+            return;
         }
 
-        for (int i = this._clients.size() - 1; i > -1; i--) {
-            this._clients.get(i).disconnect(); //on disconnect event will remove it from array
+        if (ServerOptions.HEART_BEAT.equals(message.request)) {
+            return; //just a heart beat message, take no note
         }
 
-        Debugger.log("Server", "Clients disconnected");
+        try {
+            if(client.handleUpgrade(message)) {
+                return; //has to happen here before the next frame is read, not on the dispatcher
+            }
+        }
+        catch (Exception e) {
+            Debugger.log(LogLevel.WARN, "Server", "Failed to upgrade client connection ", e);
+            client.disconnect();
+            return;
+        }
 
-        this._listener.close();
-        this._listener = null;
-        this._closing = false;
+        this._dispatcher.dispatch(client, message);
     }
 
-    protected void _listenForClients() throws Exception {
-        if(this._clientListenerThread != null && this._clientListenerThread.isAlive()) {
-            return; //already started
+    void _dispatchMessage(ServerClient client, Message message) {
+        if(client.isStopped()) {
+            return;
         }
 
-        this._clientListenerThread = new Thread(new Runnable()
-        {
-            @Override
-            public void run() {
-                Debugger.log("Server", "Listening for clients");
-
-                while (Server.this.isReady()) {
-                    try {
-                        ServerClient client = new ServerClient(Server.this._listener.accept(), Server.this);
-                        Server.this._clients.add(client);
-                        Debugger.log("Server", "Accepted new client - " + client.getSocket().getInetAddress().toString());
-                    }
-                    catch(Exception e) {
-                        /*
-                        * I tried to implement the better way of doing this I really did.
-                        * It's caused by calling listener.close while the accept method is still blocking
-                        * but there is no way to stop the accept method in its blocking state sooooo
-                        * the only solution is to use nio (Non-blocking i/o) with channels.
-                        * Then onto these channels (ServerSocketChannel and SocketChannel) you attach your
-                        * selectors, selectors are essentially fancy event listeners that are meant to fire when
-                        * certain events get through. Except the read and write even for when a SocketChannel has
-                        * sent something never fired.
-                        *
-                        * Even if I had managed to get it to fire I would need a way
-                        * to read all the bytes sent, but I have no way of knowing how many bytes have been sent,
-                        * where the bytes end (There is no "end" of a message in TCP) and you have to allocate a buffer
-                        * to read the bytes into so you may end up reading more bytes than you have space allocated
-                        * for and that means BUFFER OVERFLOW YAY! That is unless you build some strange string
-                        * builder to join multiple messages together, but all of that vs this one line and a little
-                        * bit of my sanity lost, easy choice.
-                        *
-                        * So after spending a day doing effectively nothing, my conclusion was:
-                        * Normally when you throw enough shit at the wall some of it will stick,
-                        * in this case, when you throw enough shit at the wall you're just adding onto the shit Java
-                        * already stuck there.
-                        * */
-                        if("socket closed".equals(e.getMessage())) {
-                            return;
-                        }
-
-                        Debugger.log("Server", "Failed to accept client " + e.toString());
-                    }
-                }
-            }
-        });
-        this._clientListenerThread.setName("Client listener");
-        this._clientListenerThread.start();
+        try {
+            this._handleMessage(client, message);
+        }
+        catch(InvalidMessageException e) { //params that couldn't be decoded once something needed them
+            Debugger.log(LogLevel.WARN, "Server", "Client sent invalid message (" + e.getMessage() + "), disconnecting.");
+            client.disconnect();
+        }
+        catch(AuthException e) {
+            this._respondQuietly(message, new Message(false, e.getMessage()));
+            client.disconnect();
+        }
+        catch (Exception e) { //failed auth
+            this._respondQuietly(message, new Message(false, e.toString()));
+        }
     }
 
-    protected void _startHeart() {
-        if(this._heartThread != null && this._heartThread.isAlive()) {
-            return;
+    protected void _handleMessage(ServerClient client, Message message) throws Exception {
+        if (client.getAuthState() != AuthState.ACCEPTED) {
+            if(!Server._authRouter.route(client, message)) { //rejected without decoding its params
+                message.respond(new Message(false, "Not authenticated, request rejected")); //asked for expectedMagic / credentials, didn't get it
+                client.disconnect();
+            }
         }
+        else {
+            /* Server handling the message */
+            this._router.route(client, message);
 
-        this._heartThread = new Thread(new Runnable()
-        {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(ServerOptions.HEART_BMP); //will have only just connected, no need to beat the heart straight away
-                }
-                catch(Exception e) {
-                    if(!Server.this._closing) {
-                        Debugger.log("Server", "Failed to skip first beat " + e.getMessage());
-                    }
-                }
-
-                while(Server.this.isReady()) {
-                    for(int i = _clients.size() - 1; i != -1; i--) { //will be dynamically removing from list
-                        ServerClient client = _clients.get(i);
-                        try {
-                            client.sendMessage(new Message(ServerOptions.HEART_BEAT));
-                        }
-                        catch(Exception e) {
-                            if(!Server.this._closing) {
-                                Debugger.log("Server", "Heart beat failed, client died: " + e.getMessage());
-                                client.disconnect();
-                            }
-                        }
-                    }
+            if(!this._messageReceivedListeners.isEmpty()) {
+                message.loadParams();
+            }
 
-                    try {
-                        Thread.sleep(ServerOptions.HEART_BMP);
-                    }
-                    catch(InterruptedException e) {
-                        Debugger.log("Server", "Error sleeping heart thread " + e.getMessage());
-                    }
-                }
+            for (MessageReceived listener : this._messageReceivedListeners) {
+                listener.onMessageReceived(client, message);
             }
-        });
-        this._heartThread.setName("Server heart");
-        this._heartThread.start();
+
+            /* Client specific server side bounds handling the message, things like onReply will trigger from this */
+            client.handleMessage(message);
+        }
     }
 
-    protected void _listenForMessages() {
-        if(this._messageListenerThread != null && this._messageListenerThread.isAlive()) {
-            return; //already started
+    private void _respondQuietly(Message message, Message response) {
+        if(message == null) {
+            return;
         }
 
-        this._messageListenerThread = new Thread(new Runnable()
-        {
-            @Override
-            public void run() {
-                Debugger.log("Server", "Listening for messages");
-
-                while (isReady()) {
-                    try {
-                        for(int i = Server.this._clients.size() - 1; i != -1; i--) { //will be dynamically removing from list
-                            ServerClient client = Server.this._clients.get(i);
-
-                            if(client == null) {
-                                continue;
-                            }
-                            else if (client.isStopped()) {
-                                continue;
-                            }
-                            else if (!client.isMessageWaiting()) {
-                                continue;
-                            }
-
-                            Message message = null;
-                            try {
-                                message = client.getMessage();
-
-                                if (ServerOptions.HEART_BEAT.equals(message.request)) {
-                                    continue; //just a heart beat message, take no note
-                                }
-                                else if (client.getAuthState() != AuthState.ACCEPTED) {
-                                    if (ServerOptions.SEND_MAGIC.equals(message.request) || ServerOptions.SEND_CREDENTIALS.equals(message.request)) {
-                                        client.handleAuthMessage(message);
-                                    }
-                                    else { //asked for expectedMagic / credentials, didn't get it
-                                        message.respond(new Message(false, "Not authenticated, request rejected"));
-                                        client.disconnect();
-                                    }
-                                }
-                                else {
-                                    /* Server handling the message */
-                                    for (MessageReceived listener : _messageReceivedListeners) {
-                                        listener.onMessageReceived(client, message);
-                                    }
-
-                                    /* Client specific server side bounds handling the message, things like onReply will trigger from this */
-                                    client.handleMessage(message);
-                                }
-                            }
-                            catch (InvalidMessageException e) {
-                                Debugger.log("Server", "Client sent invalid message (" + e.getMessage() + "), disconnecting.");
-                                client.disconnect();
-                            }
-                            catch(AuthException e) {
-                                if(message != null) {
-                                    message.respond(new Message(false, e.getMessage()));
-                                }
-                                client.disconnect();
-                            }
-                            catch (Exception e) { //failed auth
-                                if(message != null) {
-                                    message.respond(new Message(false, e.toString()));
-                                }
-                            }
-                        }
-                    }
-                    catch(Exception e) {
-                        Debugger.log("Server", "Error occurred while listening for messages " + e.toString());
-                    }
-                }
-            }
-        });
-        this._messageListenerThread.setName("Message listener");
-        this._messageListenerThread.start();
+        try {
+            message.respond(response);
+        }
+        catch(Exception e) {
+            Debugger.log(LogLevel.WARN, "Server", "Failed to send error reply ", e);
+        }
     }
-}
\ No newline at end of file
+}
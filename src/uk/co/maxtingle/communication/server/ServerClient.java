@@ -1,12 +1,20 @@
 package uk.co.maxtingle.communication.server;
 
-import com.sun.istack.internal.NotNull;
 import uk.co.maxtingle.communication.common.AuthState;
 import uk.co.maxtingle.communication.common.BaseClient;
 import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.SerialExecutor;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.codec.ICodec;
+import uk.co.maxtingle.communication.common.codec.JsonCodec;
 import uk.co.maxtingle.communication.common.events.AuthStateChanged;
 import uk.co.maxtingle.communication.common.events.DisconnectListener;
+import uk.co.maxtingle.communication.common.io.ChannelConnection;
+import uk.co.maxtingle.communication.common.io.EncodedFrame;
+import uk.co.maxtingle.communication.common.io.Framing;
 import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+import uk.co.maxtingle.communication.metrics.ConnectionMetrics;
 
 import java.net.Socket;
 import java.util.Map;
@@ -16,7 +24,8 @@ import java.util.Map;
  */
 public class ServerClient extends BaseClient
 {
-    private Server _server;
+    private Server         _server;
+    private SerialExecutor _dispatchQueue;
 
     /**
      * Creates a new client, connects it to the
@@ -27,22 +36,170 @@ public class ServerClient extends BaseClient
      * @param server The server that this ServerClient is connected to
      */
     public ServerClient(@NotNull Socket socket, @NotNull Server server) throws Exception {
+        this._applyOptions(server);
         this.connect(socket);
         this._server = server;
+        this._dispatchQueue = server.getDispatcher().createQueue();
+        this._startAuth();
+    }
+
+    /**
+     * Creates a new client bound to a non-blocking
+     * connection that is driven by one of the server's
+     * event loops
+     *
+     * @param connection The connection to the client
+     * @param server     The server that this ServerClient is connected to
+     */
+    public ServerClient(@NotNull ChannelConnection connection, @NotNull Server server) throws Exception {
+        this._applyOptions(server);
+        this.connect(connection);
+        this._server = server;
+        this._dispatchQueue = server.getDispatcher().createQueue();
+        this._startAuth();
+    }
+
+    private void _applyOptions(Server server) {
+        ServerOptions options = server._options;
+
+        this.maxFrameLength = options.maxFrameLength;
+        this.paramSchemas = options.paramSchemas;
+        this.useVirtualThreads = options.virtualThreads;
+        this.flushBufferSize = options.flushBufferSize;
+        this.flushDelayMicros = options.flushDelayMicros;
+        this.tcpNoDelay = options.tcpNoDelay;
+        this.writeBufferHighWaterMark = options.writeBufferHighWaterMark;
+        this.writeBufferLowWaterMark = options.writeBufferLowWaterMark;
+        this.idStrategy = options.idStrategy;
+        this.receivedHistorySize = options.receivedHistorySize;
+        this.receivedHistoryMillis = options.receivedHistoryMillis;
+        this.maxAwaitingReply = options.maxAwaitingReply;
+        this.replyTimeoutMillis = options.replyTimeoutMillis;
+        this.replyOverflowPolicy = options.replyOverflowPolicy;
+        this.metricsRegistry = options.recordMetrics ? server.getMetrics() : null;
+    }
+
+    private void _startAuth() throws Exception {
+        Message greeting;
 
         /* Pre-auth */
         if(this._server._options.useMagic) {
             this.setAuthState(AuthState.AWAITING_MAGIC);
-            this.sendMessage(new Message(ServerOptions.REQUEST_MAGIC));
+            greeting = new Message(ServerOptions.REQUEST_MAGIC);
         }
         else if(this._server._options.useCredentials) {
             this.setAuthState(AuthState.AWAITING_CREDENTIALS);
-            this.sendMessage(new Message(ServerOptions.REQUEST_CREDENTIALS));
+            greeting = new Message(ServerOptions.REQUEST_CREDENTIALS);
         }
         else {
             this.setAuthState(AuthState.ACCEPTED); //no auth in place
-            this.sendMessage(new Message(ServerOptions.ACCEPTED_AUTH));
+            greeting = new Message(ServerOptions.ACCEPTED_AUTH);
+        }
+
+        if(this._server._options.lengthFraming) {
+            ICodec codec = this._server._options.codec;
+
+            if(codec == null || JsonCodec.NAME.equals(codec.getName())) {
+                this._offerUpgrades(greeting, new String[]{Framing.LENGTH_PREFIXED.getToken()});
+            }
+            else {
+                this._offerUpgrades(greeting, new String[]{Framing.LENGTH_PREFIXED.getToken(), codec.getName()});
+            }
+        }
+
+        this.sendMessage(greeting);
+    }
+
+    /**
+     * Handles the client asking to switch the connection to
+     * length prefixed framing and optionally the server's codec.
+     * Must be called on the thread reading the client before the
+     * next frame is read, as every frame after the request is
+     * length prefixed
+     *
+     * @param message The message received from the client
+     * @return Whether the message was an upgrade request and has been handled
+     */
+    boolean handleUpgrade(@NotNull Message message) throws Exception {
+        if(!ServerOptions.UPGRADE.equals(message.request)) {
+            return false;
+        }
+
+        ServerOptions options = this._server._options;
+        Object[] params = message.loadParams();
+
+        if(!options.lengthFraming || params == null || params.length < 1 || params.length > 2
+           || !Framing.LENGTH_PREFIXED.getToken().equals(params[0])
+           || (params.length == 2 && (options.codec == null || !options.codec.getName().equals(params[1])))) {
+            Debugger.log(LogLevel.WARN, "Server", "Client asked for an upgrade that wasn't offered, disconnecting.");
+            this.disconnect(); //the client has already switched framing, nothing it sends can be read now
+            return true;
+        }
+
+        this._connection.setInboundFraming(Framing.LENGTH_PREFIXED);
+        this._sendAndSwitch(message, new Message(true, ServerOptions.UPGRADE, params), Framing.LENGTH_PREFIXED);
+
+        if(params.length == 2) {
+            this._setCodec(options.codec); //the ack went out as JSON, the client switches codec when it reads it
+        }
+
+        return true;
+    }
+
+    /**
+     * Gets the number of messages from this client
+     * waiting to be handled by the server
+     *
+     * @return The number of messages queued for dispatch
+     */
+    @Override
+    public int getPendingMessages() {
+        return this._dispatchQueue.size();
+    }
+
+    /**
+     * Writes a broadcast message to the client using the
+     * copy encoded with the client's codec, the message isn't
+     * given an id or kept in the sent messages
+     *
+     * @param broadcast The broadcast being sent
+     * @return Whether the message was written
+     */
+    boolean sendBroadcast(@NotNull Broadcast broadcast) {
+        if(!this.isReady()) {
+            return false;
         }
+
+        EncodedFrame frame;
+        try {
+            frame = broadcast.encodedFor(this._codec);
+        }
+        catch(Exception e) {
+            Debugger.log(LogLevel.WARN, "Server", "Failed to encode broadcast with " + this._codec.getName() + " " + e.toString());
+            return false;
+        }
+
+        try {
+            this._connection.write(frame, null);
+            this._markActive();
+
+            ConnectionMetrics metrics = this.getMetrics();
+            if(metrics != null) {
+                metrics.sent(frame.getPayload().length);
+            }
+            return true;
+        }
+        catch(Exception e) {
+            if(!this.isStopped()) {
+                Debugger.log(LogLevel.WARN, "Server", "Failed to broadcast to client, disconnecting ", e);
+                this.disconnect();
+            }
+            return false;
+        }
+    }
+
+    SerialExecutor getDispatchQueue() {
+        return this._dispatchQueue;
     }
 
     /**
@@ -51,17 +208,18 @@ public class ServerClient extends BaseClient
      */
     @Override
     public void disconnect() {
+        if(!this._markClosed()) { //not connected or another thread got here first
+            return;
+        }
+
         for(DisconnectListener listener : this._server._disconnectListeners) {
             listener.onDisconnect(this);
         }
 
-        super.disconnect();
+        this._close();
 
-        if(this._server._clients.indexOf(this) == -1) {
-            Debugger.log("Server", "WARNING: Client disconnected but not in clients list");
-        }
-        else {
-            this._server._clients.remove(this);
+        if(!this._server._clients.remove(this)) {
+            Debugger.log(LogLevel.WARN, "Server", "WARNING: Client disconnected but not in clients list");
         }
     }
 
@@ -74,11 +232,14 @@ public class ServerClient extends BaseClient
      */
     @Override
     public void setAuthState(AuthState state) {
+        AuthState previous = this.getAuthState();
+
         for(AuthStateChanged listener : this._server._authStateChangedListeners) {
-            listener.onAuthStateChanged(this.getAuthState(), state, this);
+            listener.onAuthStateChanged(previous, state, this);
         }
 
         super.setAuthState(state);
+        this._server._clients.stateChanged(this, previous, state);
     }
 
     void handleAuthMessage(Message message) throws Exception {
@@ -108,25 +269,21 @@ public class ServerClient extends BaseClient
             }
         }
         else if(this._server._options.useCredentials && this.getAuthState() == AuthState.AWAITING_CREDENTIALS) {
-            String username;
-            String password;
+            Object username = null;
+            Object password = null;
 
-            try {
-                if(!(message.params[0] instanceof Map)) {
-                    throw new Exception("Invalid username and password type. params[0] must be an associative array (Map) with username and password in.");
-                }
-
-                @SuppressWarnings("unchecked")
-                Map<String, String> hashMap = (Map<String, String>) message.params[0];
+            if(message.params[0] instanceof Map) { //decoded generically, so a peer sending something else gets the auth failure rather than an invalid message
+                Map<?, ?> credentials = (Map<?, ?>) message.params[0];
 
-                username = hashMap.get("username");
-                password = hashMap.get("password");
+                username = credentials.get("username");
+                password = credentials.get("password");
             }
-            catch(Exception e) {
+
+            if(!(message.params[0] instanceof Map) || (username != null && !(username instanceof String)) || (password != null && !(password instanceof String))) {
                 throw new Exception("Invalid username and password type. params[0] must be an associative array (Map) with username and password in.");
             }
 
-            if(this._server._options.credentialAuthHandler.authCredentials(username, password, this, message, this._server._options)) {
+            if(this._server._options.credentialAuthHandler.authCredentials((String) username, (String) password, this, message, this._server._options)) {
                 this.setAuthState(AuthState.ACCEPTED);
                 message.respond(new Message(true, ServerOptions.ACCEPTED_AUTH));
             }
@@ -1,9 +1,20 @@
 package uk.co.maxtingle.communication.server;
 
+import uk.co.maxtingle.communication.common.IdStrategy;
+import uk.co.maxtingle.communication.common.ReplyOverflowPolicy;
+import uk.co.maxtingle.communication.common.annotation.Nullable;
+import uk.co.maxtingle.communication.common.codec.ICodec;
+import uk.co.maxtingle.communication.common.codec.JsonCodec;
+import uk.co.maxtingle.communication.common.codec.ParamSchemas;
+import uk.co.maxtingle.communication.common.io.FrameDecoder;
+import uk.co.maxtingle.communication.common.io.IConnection;
+import uk.co.maxtingle.communication.common.io.OutboundQueue;
 import uk.co.maxtingle.communication.server.auth.IAuthHandler;
 import uk.co.maxtingle.communication.server.auth.ICredentialAuth;
 import uk.co.maxtingle.communication.server.auth.IMagicAuth;
 
+import java.util.concurrent.Executor;
+
 public class ServerOptions
 {
     /** Reserved strings used by the server and client for authentication */
@@ -13,21 +24,122 @@ public class ServerOptions
     public static final String SEND_MAGIC          = "__MAGIC__";
     public static final String SEND_CREDENTIALS    = "__CREDENTIALS__";
 
+    /** Reserved string used to switch a connection to length prefixed framing and optionally another codec */
+    public static final String UPGRADE             = "__UPGRADE__";
+
     /** Heart options */
     public static final String HEART_BEAT          = "__HEART_BEAT__";
 
     /**
-     * Number of milliseconds between beats of the heart
+     * Number of milliseconds a connection must be idle, nothing
+     * read or written, before a heart beat is sent down it
      */
     public static long         HEART_BMP           = 60 * 1000;
 
+    /**
+     * Gets whether or not a request is one of the reserved
+     * ones used by the server and client themselves
+     *
+     * @param request The request of the message
+     * @return Whether the request is reserved
+     */
+    public static boolean isReserved(@Nullable String request) {
+        return request != null && request.startsWith("__") && (ServerOptions.HEART_BEAT.equals(request) || ServerOptions.UPGRADE.equals(request)
+                || ServerOptions.REQUEST_MAGIC.equals(request) || ServerOptions.REQUEST_CREDENTIALS.equals(request)
+                || ServerOptions.ACCEPTED_AUTH.equals(request) || ServerOptions.SEND_MAGIC.equals(request) || ServerOptions.SEND_CREDENTIALS.equals(request));
+    }
+
 
     /** the port to broadcast on */
     public int port = 8080;
 
+    /** the maximum number of connections the OS queues before they are accepted */
+    public int acceptBacklog = 1024;
+
+    /** the number of threads accepting new clients */
+    public int acceptorThreads = 1;
+
+    /** whether every acceptor should bind its own listener with SO_REUSEPORT, only used by SELECTOR on systems that support it */
+    public boolean reusePort = false;
+
+    /** how clients are read from and their messages handled */
+    public ExecutionMode executionMode = ExecutionMode.SELECTOR;
+
+    /** whether THREAD_PER_CONNECTION should use virtual threads, to read and write, when the JVM supports them */
+    public boolean virtualThreads = true;
+
+    /** the number of event loop threads reading and writing for clients, clients are spread evenly over them */
+    public int ioThreads = Runtime.getRuntime().availableProcessors();
+
+    /** the number of threads handling received messages, ignored if dispatchExecutor is set */
+    public int dispatchThreads = Runtime.getRuntime().availableProcessors();
+
+    /** the executor to handle received messages on instead of the server's own pool, the server will not shut it down */
+    public Executor dispatchExecutor = null;
+
+    /** the maximum number of received messages waiting to be handled across all clients */
+    public int dispatchQueueCapacity = 10000;
+
+    /** what to do with a message received while the dispatch queue is full */
+    public SaturationPolicy saturationPolicy = SaturationPolicy.BLOCK;
+
+    /** whether clients are offered length prefixed framing, clients that don't ask for it stay on newline framing */
+    public boolean lengthFraming = false;
+
+    /** the codec offered to clients that switch to length prefixed framing, JSON is always understood as well */
+    public ICodec codec = new JsonCodec();
+
+    /** the types the params of each request from clients are decoded as, shared by every client of the server */
+    public ParamSchemas paramSchemas = new ParamSchemas();
+
+    /** the largest message in bytes a client can send before it is disconnected */
+    public int maxFrameLength = FrameDecoder.DEFAULT_MAX_FRAME_LENGTH;
+
+    /** the number of bytes waiting to be written to a client that causes them to be flushed straight away */
+    public int flushBufferSize = IConnection.DEFAULT_FLUSH_BUFFER_SIZE;
+
+    /** the longest in microseconds a message to a client waits to be flushed with others, 0 flushes once nothing else is being written */
+    public long flushDelayMicros = 0;
+
+    /** whether to disable Nagle's algorithm on client sockets, null leaves the OS default */
+    public Boolean tcpNoDelay = null;
+
+    /** the bytes waiting to be written to a client at which it stops being writable, see BaseClient.isWritable */
+    public int writeBufferHighWaterMark = OutboundQueue.DEFAULT_HIGH_WATER_MARK;
+
+    /** the bytes waiting to be written to a client at which it becomes writable again */
+    public int writeBufferLowWaterMark = OutboundQueue.DEFAULT_LOW_WATER_MARK;
+
+    /** the number of clients each thread writes a broadcast to, broadcasts to this many clients or fewer are written by the caller alone */
+    public int broadcastChunkSize = 512;
+
     /** whether or not a Client should be told to keep all sent and received messages */
     public boolean keepMessages = true;
 
+    /** how ids are generated for messages sent to clients */
+    public IdStrategy idStrategy = IdStrategy.COUNTER;
+
+    /** the number of messages received from a client that are kept, 0 keeps none */
+    public int receivedHistorySize = 512;
+
+    /** how long in milliseconds messages received from a client are kept, 0 or less until newer ones push them out */
+    public long receivedHistoryMillis = 0;
+
+    /** the most messages sent to a client that are kept waiting for replies, heartbeats and reserved requests never are */
+    public int maxAwaitingReply = 10000;
+
+    /** how long in milliseconds a message sent to a client is kept waiting for a reply, 0 or less keeps it until replied to */
+    public long replyTimeoutMillis = 5 * 60 * 1000;
+
+    /** what to do when sending to a client that already has maxAwaitingReply messages waiting for replies */
+    public ReplyOverflowPolicy replyOverflowPolicy = ReplyOverflowPolicy.EVICT_OLDEST;
+
+    /** whether to record metrics for clients, see Server.getMetrics */
+    public boolean recordMetrics = true;
+
+    /** whether to show the server's metrics over JMX while it is started */
+    public boolean registerMBean = true;
+
     /** whether or not to auth with expectedMagic first */
     public boolean useMagic = false;
 
@@ -0,0 +1,148 @@
+package uk.co.maxtingle.communication.server;
+
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.Threads;
+import uk.co.maxtingle.communication.common.annotation.NotNull;
+import uk.co.maxtingle.communication.common.exception.InvalidMessageException;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * The IO side of the server where every client gets a thread
+ * of its own that sets the client up, then blocks reading its
+ * messages and handles them as they arrive, so a client's messages
+ * are always handled in order and a slow handshake never holds up
+ * the accept threads. With virtual threads idle clients only cost a parked
+ * thread, so this scales without polling or an event loop
+ */
+class ThreadPerConnectionEngine implements IServerEngine
+{
+    private final Server _server;
+
+    private          ServerSocket _listener;
+    private          boolean      _virtual;
+    private volatile boolean      _stopping;
+
+    ThreadPerConnectionEngine(@NotNull Server server) {
+        this._server = server;
+    }
+
+    @Override
+    public ServerSocket start(@NotNull ServerOptions options) throws IOException {
+        this._listener = new ServerSocket(options.port, options.acceptBacklog);
+        this._virtual = options.virtualThreads;
+        this._stopping = false;
+
+        if(this._virtual && !Threads.isVirtualSupported()) {
+            Debugger.log(LogLevel.WARN, "Server", "Virtual threads not supported by this JVM, using platform threads per client");
+        }
+
+        for(int i = 0; i < Math.max(1, options.acceptorThreads); i++) {
+            Threads.create("Client listener " + i, new Runnable()
+            {
+                @Override
+                public void run() {
+                    ThreadPerConnectionEngine.this._acceptClients();
+                }
+            }, false).start();
+        }
+
+        return this._listener;
+    }
+
+    @Override
+    public void stop() throws IOException {
+        this._stopping = true;
+
+        if(this._listener != null) {
+            this._listener.close(); //wakes the accept threads up
+            this._listener = null;
+        }
+    }
+
+    private void _acceptClients() {
+        Debugger.log("Server", "Listening for clients");
+
+        while(!this._stopping) {
+            final Socket socket;
+
+            try {
+                socket = this._listener.accept();
+            }
+            catch(Exception e) {
+                if(!this._stopping) {
+                    Debugger.log(LogLevel.WARN, "Server", "Failed to accept client ", e);
+                }
+                continue;
+            }
+
+            Threads.create("Server client " + socket.getInetAddress().getHostAddress(), new Runnable()
+            {
+                @Override
+                public void run() {
+                    ThreadPerConnectionEngine.this._runClient(socket);
+                }
+            }, this._virtual).start();
+        }
+    }
+
+    private void _runClient(Socket socket) {
+        ServerClient client;
+
+        try {
+            client = new ServerClient(socket, this._server);
+        }
+        catch(Exception e) {
+            Debugger.log(LogLevel.WARN, "Server", "Failed to accept client ", e);
+
+            try {
+                socket.close();
+            }
+            catch(IOException closeFailure) {
+                //already broken, nothing more to do
+            }
+            return;
+        }
+
+        this._server._clients.add(client);
+
+        if(this._server._closing || this._stopping) { //stop may have already disconnected every client it could see
+            Debugger.log(LogLevel.INFO, "Server", "Server stopping, disconnecting client that was still being set up");
+            client.disconnect();
+            return;
+        }
+
+        Debugger.log(LogLevel.INFO, "Server", "Accepted new client - ", socket.getInetAddress());
+
+        try {
+            while(client.isReady()) {
+                Message message;
+
+                try {
+                    message = client.getMessage(); //blocks until the client sends something
+                }
+                catch(InvalidMessageException e) {
+                    Debugger.log(LogLevel.WARN, "Server", "Client sent invalid message (" + e.getMessage() + "), disconnecting.");
+                    client.disconnect();
+                    return;
+                }
+
+                if(ServerOptions.HEART_BEAT.equals(message.request) || client.handleUpgrade(message)) {
+                    continue; //just a heart beat message or the framing switching, take no note
+                }
+
+                this._server._dispatchMessage(client, message);
+            }
+        }
+        catch(Exception e) {
+            if(!client.isStopped()) {
+                Debugger.log(LogLevel.WARN, "Server", "Failed to read from client ", e);
+                client.disconnect();
+            }
+        }
+    }
+}
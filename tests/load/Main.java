@@ -0,0 +1,418 @@
+package load;
+
+import uk.co.maxtingle.communication.client.Client;
+import uk.co.maxtingle.communication.common.AuthState;
+import uk.co.maxtingle.communication.common.BaseClient;
+import uk.co.maxtingle.communication.common.Message;
+import uk.co.maxtingle.communication.common.events.MessageReceived;
+import uk.co.maxtingle.communication.common.io.EventLoopGroup;
+import uk.co.maxtingle.communication.debug.Debugger;
+import uk.co.maxtingle.communication.debug.LogLevel;
+import uk.co.maxtingle.communication.metrics.LatencyHistogram;
+import uk.co.maxtingle.communication.server.ExecutionMode;
+import uk.co.maxtingle.communication.server.Server;
+import uk.co.maxtingle.communication.server.ServerOptions;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * A headless load generator and soak harness. Starts a Server and
+ * connects clients to it over loopback, then sends messages at a
+ * fixed rate for a while reporting the throughput, reply latency,
+ * server CPU and heap as it goes and a summary at the end. Everything
+ * runs in the one JVM so nothing but loopback is needed.
+ *
+ * Options are given as --name=value, e.g.
+ * java load.Main --clients=200 --auth=both --size=256 --rate=20000 --replyRatio=0.5 --duration=3600
+ *
+ * --clients      Clients to connect (100)
+ * --auth         none, magic, credentials or both (none)
+ * --size         Bytes of payload in each message (64)
+ * --rate         Messages per second across all clients, 0 sends as fast as the clients stay writable (10000)
+ * --replyRatio   The fraction of messages sent with request that the server replies to, the rest use sendMessage (1.0)
+ * --duration     Seconds to send for (30)
+ * --report       Seconds between reports (5)
+ * --senders      Threads sending the messages (2)
+ * --mode         The server's ExecutionMode, SELECTOR or THREAD_PER_CONNECTION (SELECTOR)
+ * --port         The port to listen on (9400)
+ * --timeout      Seconds to wait for a reply before it counts as timed out (10)
+ * --loops        Event loops the clients share, 0 gives every client its own reply listener thread (0)
+ */
+public class Main
+{
+    private static final String _address  = "127.0.0.1";
+    private static final String _magic    = "loadmagic";
+    private static final String _username = "loaduser";
+    private static final String _password = "loadpassword";
+
+    private static final String REQUEST_REPLY    = "load";
+    private static final String REQUEST_NO_REPLY = "loadNoReply";
+
+    /* Server thread names, anything else running is a client */
+    private static final String[] _serverThreads = {"Server IO", "Client listener", "Server client", "Message dispatcher", "Timer"};
+
+    private static final LongAdder _sent      = new LongAdder();
+    private static final LongAdder _replies   = new LongAdder();
+    private static final LongAdder _failed    = new LongAdder();
+    private static final LongAdder _timedOut  = new LongAdder();
+    private static final LongAdder _throttled = new LongAdder();
+
+    private static final LatencyHistogram                  _totalLatency    = new LatencyHistogram();
+    private static final AtomicReference<LatencyHistogram> _intervalLatency = new AtomicReference<LatencyHistogram>(new LatencyHistogram());
+    private static final LatencyHistogram                  _setupLatency    = new LatencyHistogram();
+
+    private static Map<String, String> _options;
+    private static Server              _server;
+    private static Client[]            _clients;
+    private static Object[]            _payload;
+    private static volatile boolean    _sending = true;
+
+    public static void main(String[] args) throws Exception {
+        Main._options = Main._parseOptions(args);
+
+        int clients = Main._intOption("clients", 100);
+        String auth = Main._option("auth", "none");
+        int size = Main._intOption("size", 64);
+        double rate = Double.parseDouble(Main._option("rate", "10000"));
+        double replyRatio = Double.parseDouble(Main._option("replyRatio", "1.0"));
+        long duration = Main._intOption("duration", 30);
+        long report = Main._intOption("report", 5);
+        int senders = Math.max(1, Main._intOption("senders", 2));
+        int port = Main._intOption("port", 9400);
+        long timeout = Main._intOption("timeout", 10);
+
+        Debugger.setDefaultLogger();
+        Debugger.setLevel(LogLevel.WARN); //failures still show, the report is printed separately
+
+        Main._payload = new Object[]{Main._payloadOfSize(size)};
+
+        System.out.println("Load: clients=" + clients + " auth=" + auth + " size=" + size + " rate=" + (rate <= 0 ? "max" : rate)
+                           + " replyRatio=" + replyRatio + " duration=" + duration + "s mode=" + Main._option("mode", "SELECTOR"));
+
+        //server
+        ServerOptions options = new ServerOptions();
+        options.port = port;
+        options.executionMode = ExecutionMode.valueOf(Main._option("mode", "SELECTOR"));
+        options.useMagic = "magic".equals(auth) || "both".equals(auth);
+        options.useCredentials = "credentials".equals(auth) || "both".equals(auth);
+        options.expectedMagic = Main._magic;
+        options.expectedUsername = Main._username;
+        options.expectedPassword = Main._password;
+
+        Main._server = new Server(options);
+        Main._server.onMessageReceived(new MessageReceived()
+        {
+            @Override
+            public void onMessageReceived(BaseClient client, Message msg) throws Exception {
+                if(Main.REQUEST_REPLY.equals(msg.request)) {
+                    msg.respond(new Message(true, msg.params));
+                }
+            }
+        });
+        Main._server.start();
+
+        //clients
+        Main._connectClients(clients, options);
+
+        //load
+        ArrayList<Thread> senderThreads = new ArrayList<Thread>();
+        for(int i = 0; i < senders; i++) {
+            final int first = i;
+            final int step = senders;
+            final double senderRate = rate / senders;
+            final double ratio = replyRatio;
+            final Duration replyTimeout = Duration.ofSeconds(timeout);
+
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run() {
+                    Main._send(first, step, senderRate, ratio, replyTimeout);
+                }
+            }, "Load sender " + i);
+            thread.setDaemon(true);
+            thread.start();
+            senderThreads.add(thread);
+        }
+
+        Main._report(duration, report);
+
+        Main._sending = false;
+        for(Thread thread : senderThreads) {
+            thread.join();
+        }
+
+        Thread.sleep(Math.min(2000, timeout * 1000)); //let the last replies arrive
+        Main._summary(duration);
+
+        Debugger.setLevel(LogLevel.OFF); //every disconnect would be logged
+        for(Client client : Main._clients) {
+            client.disconnect();
+        }
+        Main._server.stop();
+        System.exit(Main._failed.sum() + Main._timedOut.sum() > 0 ? 1 : 0);
+    }
+
+    private static void _connectClients(int count, final ServerOptions options) throws Exception {
+        Main._clients = new Client[count];
+        final CountDownLatch accepted = new CountDownLatch(count);
+        long started = System.nanoTime();
+
+        String magic = options.useMagic ? Main._magic : null;
+        String username = options.useCredentials ? Main._username : null;
+        String password = options.useCredentials ? Main._password : null;
+
+        int loops = Main._intOption("loops", 0);
+        EventLoopGroup group = loops > 0 ? new EventLoopGroup("Client IO", loops, true) : null;
+        InetSocketAddress address = new InetSocketAddress(Main._address, options.port);
+
+        for(int i = 0; i < count; i++) {
+            final long connecting = System.nanoTime();
+
+            Main._clients[i] = new Client(address, group, magic, username, password) //a null group connects a plain socket
+            {
+                @Override
+                public void setAuthState(AuthState state) {
+                    super.setAuthState(state); //connecting and accepted are captured before the super constructor connects, so are safe here
+
+                    if(state == AuthState.ACCEPTED) {
+                        Main._setupLatency.record(System.nanoTime() - connecting);
+                        accepted.countDown();
+                    }
+                }
+
+                @Override
+                protected String _getDebuggerCategory() {
+                    return "Client";
+                }
+            };
+            Main._clients[i].keepMessages = false; //replies are handled by the request futures, nothing needs keeping
+        }
+
+        if(!accepted.await(60, TimeUnit.SECONDS)) {
+            throw new Exception("Only " + (count - accepted.getCount()) + " of " + count + " clients were accepted");
+        }
+
+        System.out.println("Connected " + count + " clients in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started)
+                           + "ms, setup " + Main._formatLatency(Main._setupLatency));
+    }
+
+    private static void _send(int first, int step, double rate, double replyRatio, Duration timeout) {
+        long interval = rate <= 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long next = System.nanoTime();
+        int index = first;
+
+        while(Main._sending) {
+            if(interval > 0) {
+                long wait = next - System.nanoTime();
+
+                if(wait > 0) {
+                    LockSupport.parkNanos(wait);
+                    continue;
+                }
+                else if(wait < -TimeUnit.SECONDS.toNanos(1)) {
+                    next = System.nanoTime(); //more than a second behind, don't try and catch up in one burst
+                }
+
+                next += interval;
+            }
+
+            Client client = Main._clients[index];
+            index = (index + step) % Main._clients.length;
+
+            if(!client.isWritable()) { //over its high water mark, sending more would just queue it in memory
+                if(interval > 0) {
+                    Main._throttled.increment(); //a send the rate asked for that was skipped
+                }
+                else {
+                    Thread.yield();
+                }
+                continue;
+            }
+
+            Main._sent.increment();
+
+            if(ThreadLocalRandom.current().nextDouble() < replyRatio) {
+                final long sentAt = System.nanoTime();
+                CompletableFuture<Message> reply = client.request(new Message(Main.REQUEST_REPLY, Main._payload), timeout);
+                reply.whenComplete(new BiConsumer<Message, Throwable>()
+                {
+                    @Override
+                    public void accept(Message message, Throwable failure) {
+                        if(failure == null) {
+                            long took = System.nanoTime() - sentAt;
+                            Main._replies.increment();
+                            Main._totalLatency.record(took);
+                            Main._intervalLatency.get().record(took);
+                        }
+                        else if(failure instanceof TimeoutException) {
+                            Main._timedOut.increment();
+                        }
+                        else {
+                            Main._failed.increment();
+                        }
+                    }
+                });
+            }
+            else {
+                try {
+                    client.sendMessage(new Message(Main.REQUEST_NO_REPLY, Main._payload));
+                }
+                catch(Exception e) {
+                    Main._failed.increment();
+                }
+            }
+        }
+    }
+
+    private static void _report(long duration, long every) throws InterruptedException {
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long lastAt = start;
+        long lastSent = 0;
+        long lastReplies = 0;
+        long lastServerCpu = Main._serverCpuNanos();
+        long lastProcessCpu = Main._processCpuNanos();
+
+        while(System.nanoTime() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(every), Math.max(1, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()))));
+
+            long now = System.nanoTime();
+            long sent = Main._sent.sum();
+            long replies = Main._replies.sum();
+            long serverCpu = Main._serverCpuNanos();
+            long processCpu = Main._processCpuNanos();
+            double seconds = (now - lastAt) / 1e9;
+            LatencyHistogram interval = Main._intervalLatency.getAndSet(new LatencyHistogram());
+
+            System.out.println(String.format("[%5ds] sent/s=%.0f replies/s=%.0f latency %s serverCpu=%.0f%% processCpu=%.0f%% %s",
+                                             TimeUnit.NANOSECONDS.toSeconds(now - start), (sent - lastSent) / seconds,
+                                             (replies - lastReplies) / seconds, Main._formatLatency(interval),
+                                             (serverCpu - lastServerCpu) / 1e7 / seconds, (processCpu - lastProcessCpu) / 1e7 / seconds,
+                                             Main._formatHeap()));
+
+            lastAt = now;
+            lastSent = sent;
+            lastReplies = replies;
+            lastServerCpu = serverCpu;
+            lastProcessCpu = processCpu;
+        }
+    }
+
+    private static void _summary(long duration) {
+        long gcCount = 0;
+        long gcMillis = 0;
+        for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+
+        System.out.println("Summary:");
+        System.out.println("  sent=" + Main._sent.sum() + " (" + Main._sent.sum() / Math.max(1, duration) + "/s) replies=" + Main._replies.sum()
+                           + " timedOut=" + Main._timedOut.sum() + " failed=" + Main._failed.sum() + " throttled=" + Main._throttled.sum());
+        System.out.println("  reply latency " + Main._formatLatency(Main._totalLatency));
+        System.out.println("  connection setup " + Main._formatLatency(Main._setupLatency));
+        System.out.println("  server in=" + Main._server.getMetrics().getMessagesIn() + " out=" + Main._server.getMetrics().getMessagesOut()
+                           + " decode=" + String.format("%.1f", Main._server.getMetrics().getMeanDecodeMicros()) + "us encode="
+                           + String.format("%.1f", Main._server.getMetrics().getMeanEncodeMicros()) + "us");
+        System.out.println("  gc count=" + gcCount + " time=" + gcMillis + "ms " + Main._formatHeap());
+    }
+
+    private static String _formatLatency(LatencyHistogram histogram) {
+        return String.format("p50=%.0fus p99=%.0fus p999=%.0fus max=%.0fus", histogram.getPercentile(0.5) / 1e3,
+                             histogram.getPercentile(0.99) / 1e3, histogram.getPercentile(0.999) / 1e3, histogram.getMax() / 1e3);
+    }
+
+    private static String _formatHeap() {
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long afterGc = 0;
+
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage collected = pool.getCollectionUsage(); //what was left after the last collection, steady growth here is a leak
+            if(collected != null) {
+                afterGc += collected.getUsed();
+            }
+        }
+
+        return "heap=" + (heap.getUsed() >> 20) + "MB afterGc=" + (afterGc >> 20) + "MB";
+    }
+
+    private static long _serverCpuNanos() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long total = 0;
+
+        for(ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if(info == null) {
+                continue;
+            }
+
+            for(String prefix : Main._serverThreads) {
+                if(info.getThreadName().startsWith(prefix)) {
+                    total += Math.max(0, threads.getThreadCpuTime(info.getThreadId()));
+                    break;
+                }
+            }
+        }
+
+        return total;
+    }
+
+    private static long _processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+        if(os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+
+        return 0;
+    }
+
+    private static String _payloadOfSize(int size) {
+        char[] chars = new char[Math.max(0, size)];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    private static Map<String, String> _parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+
+        for(String arg : args) {
+            if(!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Options are given as --name=value, not " + arg);
+            }
+
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+
+        return options;
+    }
+
+    private static String _option(String name, String fallback) {
+        String value = Main._options.get(name);
+        return value == null ? fallback : value;
+    }
+
+    private static int _intOption(String name, int fallback) {
+        return Integer.parseInt(Main._option(name, String.valueOf(fallback)));
+    }
+}